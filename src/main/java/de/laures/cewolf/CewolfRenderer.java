@@ -23,26 +23,49 @@
 package de.laures.cewolf;
 
 import static de.laures.cewolf.Configuration.getInstance;
+import static de.laures.cewolf.WebConstants.ENCODING_GZIP;
 import static de.laures.cewolf.WebConstants.HEIGHT_PARAM;
 import static de.laures.cewolf.WebConstants.IMG_PARAM;
 import static de.laures.cewolf.WebConstants.REMOVE_AFTER_RENDERING;
 import static de.laures.cewolf.WebConstants.WIDTH_PARAM;
 import static de.laures.cewolf.util.RenderingHelper.renderException;
 import static de.laures.cewolf.util.RenderingHelper.renderMessage;
-
+import de.laures.cewolf.taglib.util.DatasetCache;
+import de.laures.cewolf.taglib.util.DatasetProductionTimeStore;
+import de.laures.cewolf.util.CountingOutputStream;
+import de.laures.cewolf.util.RenderExecutor;
+import de.laures.cewolf.util.RenderMetrics;
+import de.laures.cewolf.util.RenderMetrics.Phase;
+import de.laures.cewolf.util.RenderRegistry;
+import de.laures.cewolf.util.RenderTimer;
+import de.laures.cewolf.util.Renderer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import static jakarta.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static jakarta.servlet.http.HttpServletResponse.SC_OK;
+import static jakarta.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 import static java.lang.Integer.parseInt;
 import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.nio.file.StandardOpenOption.READ;
 
 import javax.management.ObjectName;
 import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
@@ -77,10 +100,9 @@ public class CewolfRenderer
 	private static boolean debugged = false;
 	private static boolean renderingEnabled = true;
 	private static AtomicInteger requestCount = new AtomicInteger(0);
-	private static AtomicInteger cppCount = new AtomicInteger(0);
-	private static Map<String,Integer> chartUsageDetails = new HashMap<>();
-	private static Map<String,Integer> cppUsageDetails = new HashMap<>();
+	private static AtomicInteger notModifiedCount = new AtomicInteger(0);
 	private Configuration config = null;
+	private RenderExecutor renderExecutor = null;
 	private String path;
 
 	@Override
@@ -101,6 +123,20 @@ public class CewolfRenderer
 		// don't use disk cache - we may not have the permissions
 		setUseCache(false);
 
+		if (config != null && config.isAsyncRendering()) {
+			renderExecutor = new RenderExecutor(config.getRenderThreads(), config.isVirtualRenderThreads(),
+					config.getRenderQueueSize(), config.getRenderQueueTimeout());
+			log("rendering asynchronously with " + config.getRenderThreads()
+					+ (config.isVirtualRenderThreads() ? " virtual" : "") + " threads");
+		}
+
+		if (config != null) {
+			DatasetProductionTimeStore.getInstance().configure(config.getProductionTimesPerProducer(),
+					config.getProductionTimeMaxAge());
+			DatasetCache.getInstance().configure(config.getDatasetCacheSize(),
+					config.getDatasetCacheTimeToLive(), config.isDatasetCacheStaleWhileRevalidate());
+		}
+
 		path = context.getContextPath();
 		if (path.equals(""))
 			path = "/";
@@ -110,6 +146,12 @@ public class CewolfRenderer
 			var name = new ObjectName("Cewolf:name=Renderer,path="+path);
 			server.registerMBean(this, name);
 			log("registered MBean: "+name);
+			name = new ObjectName("Cewolf:name=DatasetCache,path="+path);
+			server.registerMBean(DatasetCache.getInstance(), name);
+			log("registered MBean: "+name);
+			name = new ObjectName("Cewolf:name=DatasetProductionTimes,path="+path);
+			server.registerMBean(DatasetProductionTimeStore.getInstance(), name);
+			log("registered MBean: "+name);
 		} catch (Exception ex) {
 			log("Bad JMX object name: "+ex.getMessage());
 		}
@@ -117,10 +159,19 @@ public class CewolfRenderer
 
 	@Override
     public void destroy() {
+		if (renderExecutor != null) {
+			renderExecutor.shutdown();
+		}
+		DatasetCache.getInstance().shutdown();
+		if (config != null && config.getStorage() != null) {
+			config.getStorage().destroy();
+		}
 		try {
-			log("unregistering MBean");
+			log("unregistering MBeans");
 			var server = getPlatformMBeanServer();
             server.unregisterMBean(new ObjectName("Cewolf:name=Renderer,path="+path));
+            server.unregisterMBean(new ObjectName("Cewolf:name=DatasetCache,path="+path));
+            server.unregisterMBean(new ObjectName("Cewolf:name=DatasetProductionTimes,path="+path));
         } catch (Exception ex) {
             log("problem unregistering MBean: "+ex.getMessage());
         }
@@ -145,6 +196,23 @@ public class CewolfRenderer
    */
 	@Override
   protected void doGet (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    serveImage(request, response, true);
+  }
+
+  /**
+   * Processes HTTP <code>HEAD</code> request. Sends the same headers as a <code>GET</code> request
+   * would, but neither renders the chart nor writes a body.
+   * 
+   * @param request servlet request
+   */
+	@Override
+  protected void doHead (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    serveImage(request, response, false);
+  }
+
+  private void serveImage (HttpServletRequest request, HttpServletResponse response, boolean sendBody) throws ServletException, IOException
   {
     if (debugged)
       logRequest(request);
@@ -175,14 +243,14 @@ public class CewolfRenderer
 	// check whether rendering is curently disabled
 	if (! renderingEnabled)
 	{
-		renderNotEnabled(response, 400, 50);
+		renderNotEnabled(response, 400, 50, sendBody);
 		return;
 	}
 
 	// make sure max image size is not exceeded
 	if (width > config.getMaxImageWidth() || height > config.getMaxImageHeight())
 	{
-		renderImageTooLarge(response, 400, 50);
+		renderImageTooLarge(response, 400, 50, sendBody);
 		return;
 	}
 
@@ -194,26 +262,234 @@ public class CewolfRenderer
 		return;
     }
     var storage = config.getStorage();
+
+    var lookupStart = nanoTime();
     var chartImage = storage.getChartImage(imgKey, request);
+    var lookupTime = nanoTime() - lookupStart;
     if (chartImage == null)
     {
 		// use fixed width and height if image doesn't exist or has expired
-		renderImageExpiry(response, 400, 50);
+		renderImageExpiry(response, 400, 50, sendBody);
 		return;
     }
 
+    // the key identifies the content of a chart image, so a client
+    // which already has this image doesn't need to get it again
+    var eTag = getETag(imgKey);
+    if (isNotModified(request, eTag))
+    {
+      addCacheHeaders(response, eTag);
+      response.setStatus(SC_NOT_MODIFIED);
+      notModifiedCount.incrementAndGet();
+      if (removeAfterRendering)
+        removeChartImage(storage, imgKey, request);
+      return;
+    }
+
+    if (!sendBody)
+    {
+      addCacheHeaders(response, eTag);
+      response.setContentType(chartImage.getMimeType());
+      response.setStatus(SC_OK);
+      // the size is only known without rendering if the image has been rendered before
+      if (!(chartImage instanceof StreamableChartImage) || ((StreamableChartImage) chartImage).isRendered())
+      {
+        // the size of a compressed image is unknown to clients that get it decompressed
+        if (!ENCODING_GZIP.equals(chartImage.getContentEncoding()) || addEncodingHeaders(request, response, eTag))
+        {
+          try {
+            response.setContentLength(chartImage.getSize());
+          } catch (CewolfException ex) {
+            log("Size of image " + imgKey + " could not be determined", ex);
+          }
+        }
+      }
+      return;
+    }
+
+    if (renderExecutor != null && request.isAsyncSupported() && needsRendering(chartImage))
+    {
+      renderAsync(request, storage, imgKey, chartImage, eTag, width, height, removeAfterRendering, lookupTime);
+      return;
+    }
+    startTimer(lookupTime);
+    sendImage(request, response, storage, imgKey, chartImage, eTag, width, height, removeAfterRendering);
+  }
+
+  /**
+   * Hands the rendering of a chart over to the render executor and releases the container thread.
+   * If the executor is saturated, or the render takes longer than the render timeout, the
+   * client gets a 503 with a fallback image.
+   */
+  private void renderAsync (final HttpServletRequest request, final Storage storage, final String imgKey,
+		  final ChartImage chartImage, final String eTag, final int width, final int height,
+		  final boolean removeAfterRendering, final long lookupTime) throws IOException
+  {
+    final var asyncContext = request.startAsync();
+    // whoever answers first, the render or the timeout, owns the response
+    final var answered = new AtomicBoolean();
+    asyncContext.setTimeout(config.getRenderTimeout());
+    asyncContext.addListener(new AsyncListener() {
+      public void onTimeout (AsyncEvent event) throws IOException {
+        if (!answered.compareAndSet(false, true))
+          return;
+        try {
+          renderBusy((HttpServletResponse) asyncContext.getResponse(), 400, 50);
+        } finally {
+          if (removeAfterRendering)
+            removeChartImage(storage, imgKey, request);
+          asyncContext.complete();
+        }
+      }
+
+      public void onComplete (AsyncEvent event) {
+      }
+
+      public void onError (AsyncEvent event) {
+      }
+
+      public void onStartAsync (AsyncEvent event) {
+      }
+    });
+    var queued = renderExecutor.submit(timedOut -> {
+      startTimer(lookupTime);
+      var image = chartImage;
+      Throwable failure = null;
+      if (!timedOut) {
+        // the response is not touched while rendering, it's the container's again once the request timed out
+        try {
+          image = renderAhead(chartImage, removeAfterRendering);
+        } catch (Throwable t) {
+          failure = t;
+        }
+      }
+      if (!answered.compareAndSet(false, true)) {
+        log("Chart " + imgKey + " was rendered after its request had timed out");
+        return;
+      }
+      var asyncResponse = (HttpServletResponse) asyncContext.getResponse();
+      try {
+        if (timedOut)
+          renderBusy(asyncResponse, 400, 50);
+        else if (failure != null)
+          logAndRenderException(failure, asyncResponse, width, height);
+        else
+          sendImage(request, asyncResponse, storage, imgKey, image, eTag, width, height, removeAfterRendering);
+      } catch (Throwable t) {
+        log("Asynchronous rendering of chart " + imgKey + " failed", t);
+      } finally {
+        // sendImage removes the image itself
+        if (removeAfterRendering && (timedOut || failure != null))
+          removeChartImage(storage, imgKey, request);
+        asyncContext.complete();
+      }
+    });
+    if (!queued && answered.compareAndSet(false, true))
+    {
+      try {
+        renderBusy((HttpServletResponse) asyncContext.getResponse(), 400, 50);
+      } finally {
+        if (removeAfterRendering)
+          removeChartImage(storage, imgKey, request);
+        asyncContext.complete();
+      }
+    }
+  }
+
+  /**
+   * Renders an image before it is sent asynchronously. An image which would be encoded
+   * straight into the response is encoded into a buffer instead and is not kept.
+   */
+  private ChartImage renderAhead (ChartImage chartImage, boolean removeAfterRendering) throws CewolfException, IOException
+  {
+    if (!isStreamable(chartImage, removeAfterRendering))
+    {
+      chartImage.getBytes();
+      return chartImage;
+    }
+    var buffer = new ByteArrayOutputStream();
+    ((StreamableChartImage) chartImage).writeTo(buffer);
+    return new EncodedChartImage(chartImage, buffer.toByteArray());
+  }
+
+  /**
+   * Starts timing a request on the current thread.
+   */
+  private static void startTimer (long lookupTime)
+  {
+    var timer = RenderTimer.current();
+    timer.reset();
+    timer.add(Phase.STORAGE, lookupTime);
+  }
+
+  private void sendImage (HttpServletRequest request, HttpServletResponse response, Storage storage, String imgKey,
+		  ChartImage chartImage, String eTag, int width, int height, boolean removeAfterRendering) throws IOException
+  {
 	requestCount.incrementAndGet();
 
     // send the img
+    var timer = RenderTimer.current();
+    var serverTiming = config.isServerTiming();
     try {
             var start = currentTimeMillis();
-      final var size = chartImage.getSize();
-      response.setContentType(chartImage.getMimeType());
-      response.setContentLength(size);
-	  // TODO: is the next line necessary?
-      response.setBufferSize(size);
-      response.setStatus(SC_OK);
-      response.getOutputStream().write(chartImage.getBytes());
+      long written;
+      if (chartImage instanceof FileRegionChartImage) {
+        // the image lies on disk already, send it from there without loading it into the heap
+        var region = (FileRegionChartImage) chartImage;
+        addCacheHeaders(response, eTag);
+        var decompress = ENCODING_GZIP.equals(region.getContentEncoding())
+            && !addEncodingHeaders(request, response, eTag);
+        if (serverTiming)
+          addServerTiming(request, response, timer, false);
+        response.setContentType(chartImage.getMimeType());
+        if (!decompress)
+          response.setContentLengthLong(region.getLength());
+        response.setStatus(SC_OK);
+        var writeStart = nanoTime();
+        if (decompress)
+          written = decompress(region.getBytes(), response.getOutputStream());
+        else
+          written = sendFileRegion(request, response, region, !removeAfterRendering);
+        RenderMetrics.getInstance().record(timer.getChartType(), Phase.WRITE, nanoTime() - writeStart);
+      } else if (isStreamable(chartImage, removeAfterRendering)) {
+        // the image isn't needed afterwards, so let the encoder write straight
+        // into the response; without a content length the response gets chunked.
+        // Encoding and writing can't be told apart here, both count as encoding.
+        if (serverTiming)
+          ((StreamableChartImage) chartImage).prepare();
+        addCacheHeaders(response, eTag);
+        var lateTimings = serverTiming ? addServerTiming(request, response, timer, true) : null;
+        response.setContentType(chartImage.getMimeType());
+        response.setStatus(SC_OK);
+        var out = new CountingOutputStream(response.getOutputStream());
+        ((StreamableChartImage) chartImage).writeTo(out);
+        written = out.getCount();
+        if (lateTimings != null)
+          lateTimings[Phase.ENCODE.ordinal()] = timer.get(Phase.ENCODE);
+      } else {
+        var bytes = chartImage.getBytes();
+        addCacheHeaders(response, eTag);
+        // a compressed image is told by its bytes, the image may have been evicted and rendered again meanwhile
+        var decompress = ENCODING_GZIP.equals(Renderer.getContentEncoding(chartImage.getMimeType(), bytes))
+            && !addEncodingHeaders(request, response, eTag);
+        var lateTimings = serverTiming ? addServerTiming(request, response, timer, false) : null;
+        response.setContentType(chartImage.getMimeType());
+        if (!decompress)
+          response.setContentLength(bytes.length);
+        response.setStatus(SC_OK);
+        var writeStart = nanoTime();
+        if (decompress) {
+          written = decompress(bytes, response.getOutputStream());
+        } else {
+          response.getOutputStream().write(bytes);
+          written = bytes.length;
+        }
+        var writeTime = nanoTime() - writeStart;
+        RenderMetrics.getInstance().record(timer.getChartType(), Phase.WRITE, writeTime);
+        if (lateTimings != null)
+          lateTimings[Phase.WRITE.ordinal()] = writeTime;
+      }
+      RenderMetrics.getInstance().written(timer.getChartType(), written);
             var last = currentTimeMillis() - start;
       if (debugged)
         log("creation time for chart " + imgKey + ": " + last + "ms.");
@@ -221,19 +497,225 @@ public class CewolfRenderer
 		logAndRenderException(t, response, width, height);
     } finally {
     	if (removeAfterRendering) {
-    		try {
-				storage.removeChartImage(imgKey , request);
-			} catch (CewolfException e) {
-				log("Removal of image failed", e);
-			}
+    		removeChartImage(storage, imgKey, request);
     	}
     }
   }
 
+	/**
+	 * Sends an image stored in a file region. If the container supports sendfile (Tomcat
+	 * announces this by a request attribute) and the file is kept after this request, the
+	 * container sends the file itself once the request has been processed. Otherwise the
+	 * region is copied into the response by <code>FileChannel.transferTo</code>.
+	 * @return the number of bytes sent
+	 */
+	private static long sendFileRegion (HttpServletRequest request, HttpServletResponse response,
+			FileRegionChartImage region, boolean fileKept) throws IOException {
+		var offset = region.getOffset();
+		var length = region.getLength();
+		if (fileKept && !request.isAsyncStarted()
+				&& Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+			request.setAttribute("org.apache.tomcat.sendfile.filename", region.getPath());
+			request.setAttribute("org.apache.tomcat.sendfile.start", offset);
+			request.setAttribute("org.apache.tomcat.sendfile.end", offset + length);
+			return length;
+		}
+		try (var channel = FileChannel.open(Path.of(region.getPath()), READ)) {
+			var target = Channels.newChannel(response.getOutputStream());
+			var position = offset;
+			var end = offset + length;
+			while (position < end) {
+				var sent = channel.transferTo(position, end - position, target);
+				if (sent <= 0)
+					throw new IOException("chart file " + region.getPath() + " is truncated");
+				position += sent;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Adds a <code>Server-Timing</code> header with the phases measured so far. Phases which
+	 * end only after the body has been sent are announced as trailer if the client accepts
+	 * trailers, i.e. on HTTP/2 or if it sent <code>TE: trailers</code> and the response is chunked.
+	 * @return the array the caller puts the durations of those phases in, or <code>null</code>
+	 * if no trailer is sent
+	 */
+	private static long[] addServerTiming (HttpServletRequest request, HttpServletResponse response,
+			RenderTimer timer, boolean chunked) {
+		var timings = new long[Phase.values().length];
+		for (var phase : Phase.values()) {
+			timings[phase.ordinal()] = timer.get(phase);
+		}
+		response.setHeader("Server-Timing", formatServerTiming(timings));
+
+		var te = request.getHeader("TE");
+		var trailers = "HTTP/2.0".equals(request.getProtocol())
+				|| (chunked && te != null && te.contains("trailers"));
+		if (!trailers)
+			return null;
+		final var late = new long[Phase.values().length];
+		try {
+			response.setTrailerFields(() -> Map.of("Server-Timing", formatServerTiming(late)));
+			response.setHeader("Trailer", "Server-Timing");
+			return late;
+		} catch (IllegalStateException ex) {
+			// the container can't send trailers on this response
+			return null;
+		}
+	}
+
+	private static String formatServerTiming (long[] timings) {
+		var header = new StringBuilder();
+		for (var phase : Phase.values()) {
+			var nanos = timings[phase.ordinal()];
+			if (nanos > 0) {
+				if (header.length() > 0)
+					header.append(", ");
+				header.append(phase.getLabel()).append(";dur=").append(nanos / 1000 / 1000.0);
+			}
+		}
+		return header.toString();
+	}
+
+	private void removeChartImage (Storage storage, String imgKey, HttpServletRequest request) {
+		try {
+			storage.removeChartImage(imgKey , request);
+		} catch (CewolfException e) {
+			log("Removal of image failed", e);
+		}
+	}
+
+	private static String getETag (String imgKey) {
+		return '"' + imgKey + '"';
+	}
+
+	/**
+	 * Checks the conditional headers of a request for an image which is still stored.
+	 * <code>If-None-Match</code> takes precedence over <code>If-Modified-Since</code>. As
+	 * the content of a chart image never changes for a given key, any valid
+	 * <code>If-Modified-Since</code> date means that the client already has the current
+	 * image. <code>*</code> is not matched, it only makes sense for methods changing a resource.
+	 */
+	private static boolean isNotModified (HttpServletRequest request, String eTag) {
+		var ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (var tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/"))
+					tag = tag.substring(2);
+				if (tag.equals(eTag) || tag.equals(getGzipETag(eTag)))
+					return true;
+			}
+			return false;
+		}
+		try {
+			return request.getDateHeader("If-Modified-Since") != -1;
+		} catch (IllegalArgumentException ex) {
+			// not a valid date
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the chart still needs to be rendered before it can be sent.
+	 */
+	private static boolean needsRendering (ChartImage chartImage) {
+		return chartImage instanceof StreamableChartImage && !((StreamableChartImage) chartImage).isRendered();
+	}
+
+	/**
+	 * Checks if an image can be encoded straight into the response. This is the case
+	 * if it has not been rendered yet and won't be needed again after this request.
+	 */
+	private boolean isStreamable (ChartImage chartImage, boolean removeAfterRendering) {
+		if (!(chartImage instanceof StreamableChartImage))
+			return false;
+		if (!removeAfterRendering && config.isRetainingRenderedImages())
+			return false;
+		return !((StreamableChartImage) chartImage).isRendered();
+	}
+
 	private void addHeaders (HttpServletResponse response) {
 		response.setDateHeader("Expires", currentTimeMillis());
 	}
 
+	/**
+	 * Returns the entity tag of the gzip compressed form of an image. Both forms are
+	 * current, so either one makes a conditional request succeed.
+	 */
+	private static String getGzipETag (String eTag) {
+		return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+	}
+
+	/**
+	 * Adds the headers for an image kept gzip compressed, to be called after the cache headers.
+	 * @return <code>true</code> if the client accepts the image compressed, <code>false</code>
+	 * if it has to be decompressed
+	 */
+	private static boolean addEncodingHeaders (HttpServletRequest request, HttpServletResponse response, String eTag) {
+		response.addHeader("Vary", "Accept-Encoding");
+		if (!acceptsGzip(request))
+			return false;
+		response.setHeader("Content-Encoding", ENCODING_GZIP);
+		response.setHeader("ETag", getGzipETag(eTag));
+		return true;
+	}
+
+	/**
+	 * Checks if the client lists gzip, or else *, in <code>Accept-Encoding</code> with a
+	 * q-value other than 0.
+	 */
+	private static boolean acceptsGzip (HttpServletRequest request) {
+		var header = request.getHeader("Accept-Encoding");
+		if (header == null)
+			return false;
+		Boolean gzip = null;
+		Boolean any = null;
+		for (var coding : header.split(",")) {
+			var parts = coding.split(";");
+			var name = parts[0].trim();
+			var accepted = true;
+			for (var i = 1; i < parts.length; i++) {
+				var param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException ex) {
+						accepted = false;
+					}
+				}
+			}
+			if (name.equalsIgnoreCase(ENCODING_GZIP) || name.equalsIgnoreCase("x-gzip"))
+				gzip = accepted;
+			else if (name.equals("*"))
+				any = accepted;
+		}
+		return gzip != null ? gzip : any != null && any;
+	}
+
+	/**
+	 * Decompresses an image for a client not accepting it gzip compressed.
+	 * @return the number of bytes written
+	 */
+	private static long decompress (byte[] gzipped, OutputStream out) throws IOException {
+		try (var in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+			return in.transferTo(out);
+		}
+	}
+
+	/**
+	 * Replaces the default headers of a successful chart response with the configured caching policy.
+	 */
+	private void addCacheHeaders (HttpServletResponse response, String eTag) {
+		var now = currentTimeMillis();
+		var maxAge = config.getCacheMaxAge();
+		response.setHeader("ETag", eTag);
+		response.setDateHeader("Last-Modified", now);
+		response.setDateHeader("Expires", now + maxAge * 1000L);
+		response.setHeader("Cache-Control", config.getCacheControl() + ", max-age=" + maxAge);
+	}
+
 	private void requestState (HttpServletResponse response) throws IOException
 	{
         try (Writer writer = response.getWriter()) {
@@ -251,33 +733,45 @@ public class CewolfRenderer
 	private void logAndRenderException (Throwable ex, HttpServletResponse response, int width, int height) throws IOException
 	{
 		log(ex.getMessage(), ex);
+		if (response.isCommitted()) {
+			// parts of the image have already been streamed; nothing can be rendered anymore
+			return;
+		}
 		response.setContentType("image/jpg");
         try (OutputStream out = response.getOutputStream()) {
             renderException(ex, width, height, out);
         }
 	}
 
-	private void renderImageExpiry (HttpServletResponse response, int width, int height) throws IOException
+	private void renderImageExpiry (HttpServletResponse response, int width, int height, boolean sendBody) throws IOException
 	{
-		response.setContentType("image/jpg");
-        try (OutputStream out = response.getOutputStream()) {
-            renderMessage("This chart has expired. Please reload.", width, height, out);
-        }
+		renderMessageImage("This chart has expired. Please reload.", response, width, height, sendBody);
 	}
 
-	private void renderImageTooLarge (HttpServletResponse response, int width, int height) throws IOException
+	private void renderImageTooLarge (HttpServletResponse response, int width, int height, boolean sendBody) throws IOException
 	{
-		response.setContentType("image/jpg");
-        try (OutputStream out = response.getOutputStream()) {
-            renderMessage("Maximum image size exceeded.", width, height, out);
-        }
+		renderMessageImage("Maximum image size exceeded.", response, width, height, sendBody);
+	}
+
+	private void renderNotEnabled (HttpServletResponse response, int width, int height, boolean sendBody) throws IOException
+	{
+		renderMessageImage("Charts are currently not available.", response, width, height, sendBody);
 	}
 
-	private void renderNotEnabled (HttpServletResponse response, int width, int height) throws IOException
+	private void renderBusy (HttpServletResponse response, int width, int height) throws IOException
+	{
+		response.setStatus(SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", "1");
+		renderMessageImage("Charts are busy. Please reload.", response, width, height, true);
+	}
+
+	private void renderMessageImage (String msg, HttpServletResponse response, int width, int height, boolean sendBody) throws IOException
 	{
 		response.setContentType("image/jpg");
+		if (!sendBody)
+			return;
         try (OutputStream out = response.getOutputStream()) {
-            renderMessage("Charts are currently not available.", width, height, out);
+            renderMessage(msg, width, height, out);
         }
 	}
 
@@ -308,24 +802,12 @@ public class CewolfRenderer
  //   log(new String(bodyData));
   }
 
-	public static synchronized void cppUsed (ChartPostProcessor cpp) {
-		cppCount.incrementAndGet();
-		var name = cpp.getClass().getName();
-		var count = cppUsageDetails.get(name);
-		if (count == null) {
-			cppUsageDetails.put(name, 1);
-		} else {
-			cppUsageDetails.put(name, count+1);
-		}
+	public static void cppUsed (ChartPostProcessor cpp) {
+		RenderMetrics.getInstance().cppUsed(cpp.getClass().getName());
 	}
 
-	public static synchronized void chartUsed (String type) {
-		var count = chartUsageDetails.get(type);
-		if (count == null) {
-			chartUsageDetails.put(type, 1);
-		} else {
-			chartUsageDetails.put(type, count+1);
-		}
+	public static void chartUsed (String type) {
+		RenderMetrics.getInstance().chartUsed(type);
 	}
 
 	// the following methods are just for JMX
@@ -336,16 +818,64 @@ public class CewolfRenderer
 		return requestCount.get();
 	}
 
+	public int getNumberNotModified() {
+		return notModifiedCount.get();
+	}
+
+	public int getRenderQueueDepth() {
+		return renderExecutor == null ? 0 : renderExecutor.getQueueDepth();
+	}
+
+	public int getActiveRenderThreads() {
+		return renderExecutor == null ? 0 : renderExecutor.getActiveCount();
+	}
+
+	public long getAverageRenderQueueWait() {
+		return renderExecutor == null ? 0 : renderExecutor.getAverageQueueWait();
+	}
+
+	public long getMaxRenderQueueWait() {
+		return renderExecutor == null ? 0 : renderExecutor.getMaxQueueWait();
+	}
+
+	public int getNumberRendersRejected() {
+		return renderExecutor == null ? 0 : renderExecutor.getRejectedCount();
+	}
+
+	public long getNumberRendersCoalesced() {
+		return RenderRegistry.getInstance().getCoalescedCount();
+	}
+
+	public int getRendersInFlight() {
+		return RenderRegistry.getInstance().getRendersInFlight();
+	}
+
 	public int getNumberChartPostProcessorsUsed() {
-		return cppCount.get();
+		return RenderMetrics.getInstance().getCppCount();
 	}
 
 	public Map<String,Integer> getCppUsageDetails() {
-		return cppUsageDetails;
+		return RenderMetrics.getInstance().getCppUsage();
 	}
 
 	public Map<String,Integer> getChartUsageDetails() {
-		return chartUsageDetails;
+		return RenderMetrics.getInstance().getChartUsage();
+	}
+
+	public Map<String,String> getChartLatencyDetails() {
+		return RenderMetrics.getInstance().getChartLatencies();
+	}
+
+	public Map<String,String> getCppLatencyDetails() {
+		return RenderMetrics.getInstance().getCppLatencies();
+	}
+
+	public Date getStatisticsSince() {
+		return RenderMetrics.getInstance().getSince();
+	}
+
+	public void resetStatistics() {
+		RenderMetrics.getInstance().reset();
 	}
 
 
@@ -364,4 +894,52 @@ public class CewolfRenderer
 	public void setRenderingEnabled (boolean renderingEnabled) {
 		renderingEnabled = renderingEnabled;
 	}
+
+	/**
+	 * An image encoded ahead of sending it asynchronously. It is not kept by the storage.
+	 */
+	private static final class EncodedChartImage implements ChartImage {
+
+		static final long serialVersionUID = 1L;
+
+		private final ChartImage image;
+		private final byte[] data;
+
+		EncodedChartImage (ChartImage image, byte[] data) {
+			this.image = image;
+			this.data = data;
+		}
+
+		public int getWidth() {
+			return image.getWidth();
+		}
+
+		public int getHeight() {
+			return image.getHeight();
+		}
+
+		public int getType() {
+			return image.getType();
+		}
+
+		public byte[] getBytes() {
+			return data;
+		}
+
+		public String getMimeType() {
+			return image.getMimeType();
+		}
+
+		public int getSize() {
+			return data.length;
+		}
+
+		public Date getTimeoutTime() {
+			return image.getTimeoutTime();
+		}
+
+		public String getContentEncoding() {
+			return Renderer.getContentEncoding(getMimeType(), data);
+		}
+	}
 }
@@ -10,12 +10,49 @@ public interface CewolfRendererMBean {
 
 	public int getNumberChartsRendered();
 
+	public int getNumberNotModified();
+
+	public int getRenderQueueDepth();
+
+	public int getActiveRenderThreads();
+
+	public long getAverageRenderQueueWait();
+
+	public long getMaxRenderQueueWait();
+
+	public int getNumberRendersRejected();
+
+	public long getNumberRendersCoalesced();
+
+	public int getRendersInFlight();
+
 	public int getNumberChartPostProcessorsUsed();
 
 	public Map<String,Integer> getCppUsageDetails();
 
 	public Map<String,Integer> getChartUsageDetails();
 
+	/**
+	 * @return latency percentiles per chart type and phase (dataset, build, cpp, encode, write)
+	 * and the percentiles of the image sizes sent, keyed by <code>type/phase</code>
+	 */
+	public Map<String,String> getChartLatencyDetails();
+
+	/**
+	 * @return latency percentiles per chart post processor class
+	 */
+	public Map<String,String> getCppLatencyDetails();
+
+	/**
+	 * @return the time the usage and latency statistics were last reset
+	 */
+	public Date getStatisticsSince();
+
+	/**
+	 * Clears the usage and latency statistics.
+	 */
+	public void resetStatistics();
+
 	public boolean getDebug();
 
 	public void setDebug (boolean debug);
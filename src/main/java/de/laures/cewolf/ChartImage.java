@@ -23,7 +23,9 @@
 package de.laures.cewolf;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
 /**
  * A special ChartHolder which also holds the image presentation of the chart.
@@ -75,4 +77,35 @@ public interface ChartImage extends Serializable {
     public int getSize() throws CewolfException;
     
     public Date getTimeoutTime();
+
+	/**
+	 * Tells if an image map is made for this image. Only then the entities of the
+	 * chart need to be collected while it is rendered, which for large datasets takes
+	 * about as long as drawing the chart.
+	 * @return <code>true</code> if the rendering info needs the chart entities
+	 */
+	public default boolean isMapped() {
+		return true;
+	}
+
+	/**
+	 * Returns the options for the encoder of this image.
+	 * @return the options, never <code>null</code>
+	 * @see ImageEncoder
+	 */
+	public default Map<String,String> getEncoderOptions() {
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * Returns the content encoding of the bytes of this image, known once it has been
+	 * rendered. SVG images rendered with the encoder option <code>gzip</code> are kept
+	 * gzip compressed, so they can be sent as they are to clients accepting this encoding.
+	 * @return {@link WebConstants#ENCODING_GZIP} if the bytes are gzip compressed, or
+	 * <code>null</code> if they are the image itself or the image has not been rendered
+	 * @see ImageEncoder#OPTION_GZIP
+	 */
+	public default String getContentEncoding() {
+		return null;
+	}
 }
@@ -33,6 +33,7 @@ import jakarta.servlet.ServletContext;
 import static java.lang.Boolean.valueOf;
 import static java.lang.Class.forName;
 import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
 
 /**
  * This class represents the configuration of the Cewolf framework.
@@ -52,6 +53,24 @@ public class Configuration implements Serializable {
 	private Storage storage = null;
 	private int maxImageWidth = 2048;
 	private int maxImageHeight = 1024;
+	private boolean retainRenderedImages = true;
+	private boolean retainRenderedOnly = false;
+	private boolean gzipSVG = false;
+	private String cacheControl = "private";
+	private int cacheMaxAge = 0;
+	private boolean asyncRendering = false;
+	private boolean serverTiming = false;
+	/** 0 picks a default depending on the kind of thread */
+	private int renderThreads = 0;
+	private boolean virtualRenderThreads = false;
+	private int renderQueueSize = 100;
+	private int renderQueueTimeout = 10000;
+	private int renderTimeout = 30000;
+	private int datasetCacheSize = 0;
+	private long datasetCacheTimeToLive = 0;
+	private boolean datasetCacheStaleWhileRevalidate = false;
+	private int productionTimesPerProducer = 1000;
+	private long productionTimeMaxAge = 3600000;
 
 	private transient Map<String,String> parameters = new HashMap<>();
 
@@ -81,6 +100,40 @@ public class Configuration implements Serializable {
 						maxImageWidth = parseInt(value); 
                     } else if ("maxImageHeight".equalsIgnoreCase(param)) {
 						maxImageHeight = parseInt(value); 
+                    } else if ("retainRenderedImages".equalsIgnoreCase(param)) {
+                        retainRenderedImages = Boolean.parseBoolean(value);
+                    } else if ("retainRenderedOnly".equalsIgnoreCase(param)) {
+                        retainRenderedOnly = Boolean.parseBoolean(value);
+                    } else if ("gzipSVG".equalsIgnoreCase(param)) {
+                        gzipSVG = Boolean.parseBoolean(value);
+                    } else if ("cacheControl".equalsIgnoreCase(param)) {
+                        cacheControl = value;
+                    } else if ("cacheMaxAge".equalsIgnoreCase(param)) {
+                        cacheMaxAge = parseInt(value);
+                    } else if ("asyncRendering".equalsIgnoreCase(param)) {
+                        asyncRendering = Boolean.parseBoolean(value);
+                    } else if ("serverTiming".equalsIgnoreCase(param)) {
+                        serverTiming = Boolean.parseBoolean(value);
+                    } else if ("renderThreads".equalsIgnoreCase(param)) {
+                        renderThreads = parseInt(value);
+                    } else if ("virtualRenderThreads".equalsIgnoreCase(param)) {
+                        virtualRenderThreads = Boolean.parseBoolean(value);
+                    } else if ("renderQueueSize".equalsIgnoreCase(param)) {
+                        renderQueueSize = parseInt(value);
+                    } else if ("renderQueueTimeout".equalsIgnoreCase(param)) {
+                        renderQueueTimeout = parseInt(value);
+                    } else if ("renderTimeout".equalsIgnoreCase(param)) {
+                        renderTimeout = parseInt(value);
+                    } else if ("datasetCacheSize".equalsIgnoreCase(param)) {
+                        datasetCacheSize = parseInt(value);
+                    } else if ("datasetCacheTimeToLive".equalsIgnoreCase(param)) {
+                        datasetCacheTimeToLive = parseLong(value);
+                    } else if ("datasetCacheStaleWhileRevalidate".equalsIgnoreCase(param)) {
+                        datasetCacheStaleWhileRevalidate = Boolean.parseBoolean(value);
+                    } else if ("productionTimesPerProducer".equalsIgnoreCase(param)) {
+                        productionTimesPerProducer = parseInt(value);
+                    } else if ("productionTimeMaxAge".equalsIgnoreCase(param)) {
+                        productionTimeMaxAge = parseLong(value);
                     } else {
 						// not quite true: FileStorage.deleteOnExit is used just fine
                         ctx.log(param + " parameter is ignored.");
@@ -113,6 +166,16 @@ public class Configuration implements Serializable {
 		ctx.log("using overlibURL " + overlibURL);
 		ctx.log("max image width: " + maxImageWidth);
 		ctx.log("max image height: " + maxImageHeight);
+		ctx.log("retain rendered images: " + retainRenderedImages + ", rendered only: " + retainRenderedOnly);
+		ctx.log("gzip compression of SVG images is turned " + (gzipSVG ? "on" : "off"));
+		ctx.log("cache control: " + cacheControl + ", max-age=" + cacheMaxAge);
+		ctx.log("asynchronous rendering is turned " + (asyncRendering ? "on" : "off")
+				+ (asyncRendering ? ", render timeout: " + renderTimeout + "ms" : ""));
+		ctx.log("Server-Timing header is turned " + (serverTiming ? "on" : "off"));
+		ctx.log("dataset cache size: " + datasetCacheSize + ", time to live: " + datasetCacheTimeToLive
+				+ " ms, stale-while-revalidate is turned " + (datasetCacheStaleWhileRevalidate ? "on" : "off"));
+		ctx.log("production times kept per producer: " + productionTimesPerProducer
+				+ ", max age: " + productionTimeMaxAge + " ms");
 		ctx.log("debugging is turned " + (debugged ? "on" : "off"));
 		ctx.log("...done.");
 	}
@@ -181,6 +244,182 @@ public class Configuration implements Serializable {
 		return maxImageHeight;
 	}
 
+	/**
+	 * Checks if rendered images are kept in the storage after they have been sent.
+	 * Configured by init param <code>retainRenderedImages</code> in web.xml. Defaults to <code>true</code>.
+	 * If turned off, images not rendered yet are encoded straight into the response
+	 * and will be rendered again if they are requested another time.
+	 * @return <code>true</code> if rendered images are retained, else <code>false</code>
+	 */
+	public boolean isRetainingRenderedImages() {
+		return retainRenderedImages;
+	}
+
+	/**
+	 * Checks if stored chart images release their chart, dataset and rendering info once
+	 * they have been rendered, keeping only the encoded image. Configured by init param
+	 * <code>retainRenderedOnly</code> in web.xml. Defaults to <code>false</code>.
+	 * @return <code>true</code> if only the rendered images are retained
+	 */
+	public boolean isRetainingRenderedOnly() {
+		return retainRenderedOnly;
+	}
+
+	/**
+	 * Checks if SVG images are kept gzip compressed once rendered, to be sent with
+	 * <code>Content-Encoding: gzip</code> to clients accepting it and decompressed for
+	 * others. Configured by init param <code>gzipSVG</code> in web.xml, the <code>gzip</code>
+	 * attribute of an img tag takes precedence. Defaults to <code>false</code>.
+	 * @return <code>true</code> if SVG images are compressed by default
+	 */
+	public boolean isGzippingSVG() {
+		return gzipSVG;
+	}
+
+	/**
+	 * Returns the Cache-Control directive sent with chart images, e.g. <code>private</code>
+	 * or <code>public</code>. Configured by init param <code>cacheControl</code> in web.xml.
+	 * Defaults to <code>private</code>.
+	 * @return String
+	 */
+	public String getCacheControl() {
+		return cacheControl;
+	}
+
+	/**
+	 * Returns the number of seconds a client may use a chart image without revalidating it.
+	 * Configured by init param <code>cacheMaxAge</code> in web.xml. Defaults to 0, so clients
+	 * revalidate every time and get a <code>304 Not Modified</code> if they already have the image.
+	 * @return int
+	 */
+	public int getCacheMaxAge() {
+		return cacheMaxAge;
+	}
+
+	/**
+	 * Checks if charts are rendered on a separate executor instead of the container's
+	 * request thread. Configured by init param <code>asyncRendering</code> in web.xml;
+	 * the servlet must be declared with <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>.
+	 * @return <code>true</code> if asynchronous rendering is on, else <code>false</code>
+	 */
+	public boolean isAsyncRendering() {
+		return asyncRendering;
+	}
+
+	/**
+	 * Checks if chart images are sent with a <code>Server-Timing</code> header showing the
+	 * time spent in storage lookup, dataset production, chart construction, post processing,
+	 * encoding and writing. Configured by init param <code>serverTiming</code> in web.xml.
+	 * @return <code>true</code> if the header is sent, else <code>false</code>
+	 */
+	public boolean isServerTiming() {
+		return serverTiming;
+	}
+
+	/**
+	 * Returns the number of threads rendering charts asynchronously. Configured by init param
+	 * <code>renderThreads</code> in web.xml. Defaults to the number of available processors,
+	 * or to 256 with virtual threads, as a render waiting for its dataset doesn't hold
+	 * a platform thread then.
+	 * @return int
+	 */
+	public int getRenderThreads() {
+		if (renderThreads > 0)
+			return renderThreads;
+		return virtualRenderThreads ? 256 : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Checks if virtual threads are used for rendering. Configured by init param
+	 * <code>virtualRenderThreads</code> in web.xml; only effective on runtimes which
+	 * support virtual threads. Useful if dataset production mostly waits for I/O: every
+	 * render gets a virtual thread of its own, and <code>renderThreads</code> only limits how
+	 * many of them run at the same time.
+	 * @return <code>true</code> if virtual threads are requested, else <code>false</code>
+	 */
+	public boolean isVirtualRenderThreads() {
+		return virtualRenderThreads;
+	}
+
+	/**
+	 * Returns the maximum number of charts waiting for a render thread. Configured by
+	 * init param <code>renderQueueSize</code> in web.xml. Defaults to 100.
+	 * @return int
+	 */
+	public int getRenderQueueSize() {
+		return renderQueueSize;
+	}
+
+	/**
+	 * Returns the time in milliseconds a chart may wait for a render thread before a
+	 * fallback image is sent. Configured by init param <code>renderQueueTimeout</code> in web.xml.
+	 * Defaults to 10000.
+	 * @return int
+	 */
+	public int getRenderQueueTimeout() {
+		return renderQueueTimeout;
+	}
+
+	/**
+	 * Returns the time in milliseconds an asynchronously rendered chart may take in all,
+	 * waiting included, before a fallback image is sent. Configured by init param
+	 * <code>renderTimeout</code> in web.xml. Defaults to 30000.
+	 * @return int
+	 */
+	public int getRenderTimeout() {
+		return renderTimeout;
+	}
+
+	/**
+	 * Returns the maximum number of datasets kept in the application wide dataset cache.
+	 * Configured by init param <code>datasetCacheSize</code> in web.xml. Defaults to 0,
+	 * which turns the cache off. Cached datasets are shared by all users, so the cache
+	 * must only be turned on if every producer's datasets depend on nothing but its id
+	 * and parameters, not on the user.
+	 * @return int
+	 */
+	public int getDatasetCacheSize() {
+		return datasetCacheSize;
+	}
+
+	/**
+	 * Returns the time in milliseconds after which a cached dataset is produced again, even
+	 * if its producer does not report it as expired. Configured by init param
+	 * <code>datasetCacheTimeToLive</code> in web.xml. Defaults to 0, which means no limit.
+	 * @return long
+	 */
+	public long getDatasetCacheTimeToLive() {
+		return datasetCacheTimeToLive;
+	}
+
+	/**
+	 * Checks if expired datasets are served while a background thread produces new ones.
+	 * Configured by init param <code>datasetCacheStaleWhileRevalidate</code> in web.xml.
+	 * @return <code>true</code> if stale-while-revalidate is on, else <code>false</code>
+	 */
+	public boolean isDatasetCacheStaleWhileRevalidate() {
+		return datasetCacheStaleWhileRevalidate;
+	}
+
+	/**
+	 * Returns the maximum number of dataset production times remembered per producer.
+	 * Configured by init param <code>productionTimesPerProducer</code> in web.xml. Defaults to 1000.
+	 * @return int
+	 */
+	public int getProductionTimesPerProducer() {
+		return productionTimesPerProducer;
+	}
+
+	/**
+	 * Returns the time in milliseconds after which a dataset production time is forgotten.
+	 * Configured by init param <code>productionTimeMaxAge</code> in web.xml. Defaults to one hour;
+	 * 0 means no limit.
+	 * @return long
+	 */
+	public long getProductionTimeMaxAge() {
+		return productionTimeMaxAge;
+	}
+
 	/**
 	 * Get the initialization parameters from Cewolf servlet.
 	 * @return The parameter map (String->String) values
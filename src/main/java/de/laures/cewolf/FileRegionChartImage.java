@@ -0,0 +1,47 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf;
+
+/**
+ * A ChartImage whose encoded bytes lie in a region of a file, e.g. one kept by a disk
+ * based storage. The rendering servlet sends such images straight from the file,
+ * using the container's sendfile support or <code>FileChannel.transferTo</code>,
+ * without loading them into the heap.
+ */
+public interface FileRegionChartImage extends ChartImage {
+
+	/**
+	 * @return the absolute path of the file holding the image
+	 */
+	public String getPath();
+
+	/**
+	 * @return the position of the first byte of the image in the file
+	 */
+	public long getOffset();
+
+	/**
+	 * @return the number of bytes of the image
+	 */
+	public long getLength();
+}
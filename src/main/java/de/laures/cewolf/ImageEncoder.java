@@ -0,0 +1,82 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.jfree.chart.ChartRenderingInfo;
+import org.jfree.chart.JFreeChart;
+
+/**
+ * Draws a chart and encodes it in one image format. Encoders are looked up by the MIME
+ * type of the image; additional encoders, or replacements of the built-in ones, are
+ * found with <code>java.util.ServiceLoader</code> by a
+ * <code>META-INF/services/de.laures.cewolf.ImageEncoder</code> file.
+ * <P>
+ * The options of an encoder are given per chart by attributes of the &lt;img&gt; and
+ * &lt;legend&gt; tags. Options an encoder does not know are ignored.
+ *
+ * @see de.laures.cewolf.util.ImageEncoders
+ */
+public interface ImageEncoder {
+
+	/** deflate level of PNG images, 0 to 9 */
+	public static final String OPTION_COMPRESSION = "compression";
+	/** row filter of PNG images: none, sub, up, average, paeth or adaptive */
+	public static final String OPTION_FILTER = "filter";
+	/** palette of PNG images: off, auto (if there are at most 256 colors) or the number of colors to reduce to */
+	public static final String OPTION_PALETTE = "palette";
+	/** quality of JPEG images, 0.0 to 1.0 */
+	public static final String OPTION_QUALITY = "quality";
+	/** chroma subsampling of JPEG images: 4:4:4, 4:2:2 or 4:2:0 */
+	public static final String OPTION_SUBSAMPLING = "subsampling";
+	/** number of decimal places of SVG coordinates */
+	public static final String OPTION_PRECISION = "precision";
+	/** generator of SVG images: batik to build a document first, or stream to write it while drawing */
+	public static final String OPTION_GENERATOR = "generator";
+	/** true to keep SVG images gzip compressed once rendered; applied by the renderer, not by the encoder */
+	public static final String OPTION_GZIP = "gzip";
+	/** "fast" or "small", the defaults of all options not given */
+	public static final String OPTION_ENCODING = "encoding";
+
+	/**
+	 * Returns the MIME type of the images created by this encoder.
+	 * @return the MIME type
+	 */
+	public String getMimeType();
+
+	/**
+	 * Draws the chart and writes the encoded image into the stream. The stream is not closed.
+	 * @param chart the chart to draw
+	 * @param width the width of the image in pixel
+	 * @param height the height of the image in pixel
+	 * @param info collects the rendering info, may be <code>null</code>
+	 * @param options the encoder options of the chart, never <code>null</code>
+	 * @param out the stream to write to
+	 * @throws IOException if writing to the stream failed
+	 */
+	public void encode(JFreeChart chart, int width, int height, ChartRenderingInfo info,
+			Map<String,String> options, OutputStream out) throws IOException;
+}
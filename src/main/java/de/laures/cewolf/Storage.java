@@ -83,4 +83,11 @@ public interface Storage extends Serializable {
 	 * @throws CewolfException
 	 */
 	public String removeChartImage(String imgId, HttpServletRequest request) throws CewolfException;
+
+	/**
+	 * Called when the rendering servlet is taken out of service. Storages which
+	 * started threads or registered MBeans in {@link #init(ServletContext)} release them here.
+	 */
+	public default void destroy() {
+	}
 }
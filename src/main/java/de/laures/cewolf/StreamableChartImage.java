@@ -0,0 +1,74 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import de.laures.cewolf.util.RenderedImage;
+
+/**
+ * A ChartImage which is able to encode itself directly into an output stream.
+ * This allows the rendering servlet to send charts which are not needed any more
+ * after rendering without holding a complete copy of the encoded image in memory.
+ */
+public interface StreamableChartImage extends ChartImage {
+
+	/**
+	 * Tests if the image has already been rendered and its bytes are available.
+	 * @return <code>true</code> if the image has already been rendered
+	 */
+	public boolean isRendered();
+
+	/**
+	 * Returns the rendered image, including the rendering info needed for image maps.
+	 * @return the rendered image or <code>null</code> if the image has not been rendered
+	 * or has been streamed without being retained
+	 */
+	public RenderedImage getRenderedImage();
+
+	/**
+	 * Takes over the render of an equal image, e.g. one held by a cache, so that this
+	 * image does not need to be rendered again. Ignored if this image has been rendered already.
+	 * @param image the rendered image
+	 */
+	public void adoptRenderedImage(RenderedImage image);
+
+	/**
+	 * Does all the work needed before encoding can start, e.g. producing the
+	 * dataset and building the chart, without encoding the image.
+	 * @throws CewolfException if the chart could not be built
+	 */
+	public void prepare() throws CewolfException;
+
+	/**
+	 * Writes the image into the passed stream. If the image has not been rendered
+	 * yet, the encoder writes straight into the stream and the encoded bytes are
+	 * not retained. The image is written uncompressed, even if it is kept gzip
+	 * compressed. The stream is not closed.
+	 * @param out the stream to write the image to
+	 * @throws CewolfException if the image could not be rendered
+	 * @throws IOException if writing to the stream failed
+	 */
+	public void writeTo(OutputStream out) throws CewolfException, IOException;
+}
@@ -74,5 +74,10 @@ public interface WebConstants {
      * MIME name of a SVG image
      */
 	String MIME_SVG = "image/svg+xml";
+
+    /**
+     * Content encoding of SVG images stored gzip compressed.
+     */
+	String ENCODING_GZIP = "gzip";
   
 }
@@ -26,6 +26,9 @@ public interface ChartImageRenderListener {
 	/**
 	 * Callback right after a new image gets rendered.
 	 * 
+	 * If the image was streamed directly to the client the data of the
+	 * rendered image is <code>null</code>.
+	 * 
 	 * @param renderedImage The fresh image just got rendered
 	 */
 	public void onImageRendered (RenderedImage renderedImage);
@@ -23,6 +23,7 @@
 package de.laures.cewolf.storage;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
 
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.http.HttpServletRequest;
@@ -32,16 +33,28 @@ import jakarta.servlet.jsp.PageContext;
 import de.laures.cewolf.CewolfException;
 import de.laures.cewolf.ChartImage;
 import de.laures.cewolf.Storage;
+import static de.laures.cewolf.Configuration.getInstance;
 import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
-import static java.lang.String.valueOf;
+import static java.lang.System.currentTimeMillis;
 
 /**
+ * Base class of the storages keeping images in the HTTP session. All images of a
+ * session are kept in one {@link SessionChartStore}. Images expire at their timeout,
+ * and the number of images and bytes per session are limited by the init parameters
+ * <code>SessionStorage.maxEntries</code> (default 100) and <code>SessionStorage.maxBytes</code>
+ * (default 8 MB); beyond that the least recently used images are evicted.
  * @author glaures
  */
 public abstract class AbstractSessionStorage implements Storage
 {
+  private static final String SESSION_STORE = "CewolfSessionCharts";
+
 	// to keep track of object getting added and removed from the storage
-	protected volatile static int stored=0, removed=0;
+	protected static final LongAdder stored = new LongAdder(), removed = new LongAdder();
+	static final LongAdder expired = new LongAdder(), evicted = new LongAdder();
+
+  private int maxEntries = 100;
+  private long maxBytes = 8L * 1024 * 1024;
 
   /**
    * @see de.laures.cewolf.Storage#storeChartImage(ChartImage, PageContext)
@@ -49,12 +62,18 @@ public abstract class AbstractSessionStorage implements Storage
   @Override
   public String storeChartImage( ChartImage cid, PageContext pageContext ) throws CewolfException
   {
-    if ( contains(cid, pageContext) )
+    final var session = pageContext.getSession();
+    var store = getStore(session, false);
+    if ( store != null )
     {
-      return getKey(cid);
+      // the same chart shown again lives as long as the latest page showing it
+      final var sessionKey = getKey(cid);
+      if ( store.extend(sessionKey, cid.getTimeoutTime().getTime(), currentTimeMillis()) )
+      {
+        replicate(session, store);
+        return sessionKey;
+      }
     }
-    final var session = pageContext.getSession();
-    //String key = getKey(cid);
     return storeChartImage(cid, session);
   }
 
@@ -64,37 +83,39 @@ public abstract class AbstractSessionStorage implements Storage
   @Override
   public ChartImage getChartImage( String id, HttpServletRequest request )
   {
-    var session = request.getSession();
-    return (ChartImage) session.getAttribute(id);
+    var store = getStore(request.getSession(false), false);
+    if ( store == null )
+    {
+      return null;
+    }
+    return (ChartImage) store.get(id, currentTimeMillis());
   }
 
   public boolean contains( ChartImage cid, PageContext pageContext )
   {
-    return pageContext.getSession().getAttribute(getKey(cid)) != null;
+    var store = getStore(pageContext.getSession(), false);
+    return store != null && store.contains(getKey(cid), currentTimeMillis());
   }
 
   public final String getKey( ChartImage cid )
   {
-    return valueOf(generateKey((Serializable) cid));
+    return generateKey((Serializable) cid);
   }
 
   protected String storeChartImage( ChartImage cid, HttpSession session ) throws CewolfException
   {
     final var sessionKey = getKey(cid);
-    synchronized (session)
-    {
-      session.setAttribute(sessionKey, getCacheObject(cid));
-    }
-	synchronized (AbstractSessionStorage.class) {
-		stored++;
-		//System.out.println("stored="+stored+", removed="+removed);
-	}
+    var store = getStore(session, true);
+    var expires = cid.getTimeoutTime().getTime();
+    evicted.add(store.put(sessionKey, getCacheObject(cid), expires, currentTimeMillis(), maxEntries, maxBytes));
+    replicate(session, store);
+    stored.increment();
     return sessionKey;
   }
   
         @Override
 	public String removeChartImage(String imgKey, HttpServletRequest request) throws CewolfException {
-		final var session = request.getSession();
+		final var session = request.getSession(false);
 		if (session == null)
 		{
 			return imgKey;
@@ -103,16 +124,60 @@ public abstract class AbstractSessionStorage implements Storage
 	}
 
 	protected String removeChartImage(String cid, HttpSession session) throws CewolfException {
-		synchronized (session) {
-			session.removeAttribute(cid);
-		}
-		synchronized (AbstractSessionStorage.class) {
-			removed++;
-			//System.out.println("stored="+stored+", removed="+removed);
+		var store = getStore(session, false);
+		if (store != null && store.remove(cid)) {
+			replicate(session, store);
+			removed.increment();
 		}
 		return cid;
 	}
 
+  /**
+   * Returns the image store of the session. It is only created under the session's
+   * monitor, all other access goes without locking.
+   */
+  private static SessionChartStore getStore( HttpSession session, boolean create )
+  {
+    if ( session == null )
+    {
+      return null;
+    }
+    var store = (SessionChartStore) session.getAttribute(SESSION_STORE);
+    if ( store == null && create )
+    {
+      synchronized (session)
+      {
+        store = (SessionChartStore) session.getAttribute(SESSION_STORE);
+        if ( store == null )
+        {
+          store = new SessionChartStore();
+          session.setAttribute(SESSION_STORE, store);
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Sets the store as session attribute again after it changed, so that session
+   * managers replicating only changed attributes pick up the change.
+   */
+  private void replicate( HttpSession session, SessionChartStore store )
+  {
+    if ( isReplicated() )
+    {
+      session.setAttribute(SESSION_STORE, store);
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the stored images are meant to be replicated across a cluster
+   */
+  protected boolean isReplicated()
+  {
+    return false;
+  }
+
   protected abstract Object getCacheObject( ChartImage cid ) throws CewolfException;
 
   /**
@@ -120,6 +185,16 @@ public abstract class AbstractSessionStorage implements Storage
    */
   public void init( ServletContext servletContext ) throws CewolfException
   {
+    var params = getInstance(servletContext).getParameters();
+    try {
+      if (params.get("SessionStorage.maxEntries") != null)
+        maxEntries = Integer.parseInt(params.get("SessionStorage.maxEntries").trim());
+      if (params.get("SessionStorage.maxBytes") != null)
+        maxBytes = Long.parseLong(params.get("SessionStorage.maxBytes").trim());
+    } catch (NumberFormatException ex) {
+      throw new CewolfException("invalid session storage limit: " + ex.getMessage());
+    }
+    servletContext.log(getClass().getSimpleName() + " initialized, maxEntries=" + maxEntries + ", maxBytes=" + maxBytes);
   }
 
 }
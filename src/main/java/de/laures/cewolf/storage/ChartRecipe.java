@@ -0,0 +1,185 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Date;
+
+import de.laures.cewolf.CewolfException;
+import de.laures.cewolf.StreamableChartImage;
+import de.laures.cewolf.taglib.ChartImageDefinition;
+import de.laures.cewolf.util.RenderedImage;
+import de.laures.cewolf.util.Renderer;
+
+/**
+ * What a {@link ClusterableSessionStorage} keeps in the session instead of the image
+ * bytes: the definition of the chart, including its post processors and the id and
+ * parameters of its producer, but neither the chart nor the data nor the rendered image.
+ * The image is rendered on whichever node it is requested from and kept in the
+ * {@link NodeImageCache} of that node.
+ */
+final class ChartRecipe implements StreamableChartImage, Serializable {
+
+	static final long serialVersionUID = 3398472957717390116L;
+
+	private final String key;
+	/** never rendered itself, so it is replicated without image */
+	private transient ChartImageDefinition definition;
+	/**
+	 * the definition stored on this node, it may still be rendered for an image map;
+	 * dropped as soon as its image has been handed over to the node cache
+	 */
+	private transient volatile ChartImageDefinition original;
+
+	ChartRecipe (String key, ChartImageDefinition definition) {
+		this.key = key;
+		this.definition = definition.getRecipe();
+		this.original = definition;
+		takeOver();
+	}
+
+	/**
+	 * Hands the image of the definition stored on this node over to the node cache once
+	 * it has been rendered, and drops the definition with its chart and data.
+	 * @return <code>true</code> if the definition has been dropped
+	 */
+	private boolean takeOver() {
+		var source = original;
+		if (source == null) {
+			return true;
+		}
+		var rendered = source.getRenderedImage();
+		if (rendered == null) {
+			return false;
+		}
+		NodeImageCache.getInstance().put(key, rendered.data);
+		original = null;
+		return true;
+	}
+
+	/**
+	 * Returns the bytes the recipe holds on to on this node. Until the definition stored
+	 * on this node has been rendered and dropped, it is weighed like a definition still
+	 * to be rendered.
+	 */
+	long getWeight() {
+		return takeOver() ? SessionChartStore.RECIPE_WEIGHT : SessionChartStore.PENDING_WEIGHT;
+	}
+
+	public int getWidth() {
+		return definition.getWidth();
+	}
+
+	public int getHeight() {
+		return definition.getHeight();
+	}
+
+	public int getType() {
+		return definition.getType();
+	}
+
+	public String getMimeType() {
+		return definition.getMimeType();
+	}
+
+	public Date getTimeoutTime() {
+		return definition.getTimeoutTime();
+	}
+
+	/**
+	 * Returns the image from the cache of this node, rendering it if necessary. An image
+	 * rendered on this node already, e.g. for an image map, is taken over.
+	 * @see de.laures.cewolf.ChartImage#getBytes()
+	 */
+	public byte[] getBytes() throws CewolfException {
+		var cache = NodeImageCache.getInstance();
+		var data = cache.get(key);
+		if (data == null) {
+			if (takeOver()) {
+				data = cache.get(key);
+			}
+			if (data == null) {
+				data = definition.getRecipe().getBytes();
+				cache.put(key, data);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return the content encoding of the image in the cache of this node, or
+	 * <code>null</code> if it is not in there
+	 */
+	public String getContentEncoding() {
+		return Renderer.getContentEncoding(getMimeType(), NodeImageCache.getInstance().get(key));
+	}
+
+	public int getSize() throws CewolfException {
+		return getBytes().length;
+	}
+
+	/**
+	 * @return <code>true</code> if the image is in the cache of this node
+	 */
+	public boolean isRendered() {
+		return NodeImageCache.getInstance().contains(key);
+	}
+
+	/**
+	 * The bytes are kept by the node, not by the recipe.
+	 * @see de.laures.cewolf.StreamableChartImage#getRenderedImage()
+	 */
+	public RenderedImage getRenderedImage() {
+		return null;
+	}
+
+	public void adoptRenderedImage (RenderedImage image) {
+		if (image.data != null) {
+			NodeImageCache.getInstance().put(key, image.data);
+		}
+	}
+
+	public void prepare() throws CewolfException {
+		if (!isRendered()) {
+			definition.prepare();
+		}
+	}
+
+	public void writeTo (OutputStream out) throws CewolfException, IOException {
+		Renderer.writeUncompressed(getMimeType(), getBytes(), out);
+	}
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(definition);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		definition = (ChartImageDefinition) in.readObject();
+	}
+}
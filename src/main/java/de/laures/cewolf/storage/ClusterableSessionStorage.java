@@ -22,21 +22,72 @@
 
 package de.laures.cewolf.storage;
 
+import jakarta.servlet.ServletContext;
+
 import de.laures.cewolf.CewolfException;
 import de.laures.cewolf.ChartImage;
+import de.laures.cewolf.taglib.ChartImageDefinition;
+import static de.laures.cewolf.Configuration.getInstance;
 
 /**
+ * Session storage for clustered environments. By default the rendered images are kept
+ * in the session, so they are replicated to all nodes with the session.
+ * <p>
+ * With the init parameter <code>ClusterableSessionStorage.mode</code> set to "recipe"
+ * only the definitions of the charts are kept in the session, a few hundred bytes per
+ * chart instead of the whole image. The image is rendered when it is requested, on the
+ * node receiving the request, and kept in a cache of that node, limited by
+ * <code>ClusterableSessionStorage.nodeCacheBytes</code> (default 16 MB). The dataset
+ * producers are replicated with the definitions, unless they are registered as shared with
+ * the {@link de.laures.cewolf.taglib.util.ProducerRegistry} on every node.
  * @author guido
  */
 public class ClusterableSessionStorage extends AbstractSessionStorage {
 
 	static final long serialVersionUID = 7219777503244589374L;
 
+	private boolean recipes = false;
+
 	/* (non-Javadoc)
 	 * @see de.laures.cewolf.storage.AbstractSessionStorage#getCacheObject(de.laures.cewolf.ChartImage)
 	 */
 	protected Object getCacheObject(ChartImage cid) throws CewolfException {
+		if (recipes && cid instanceof ChartImageDefinition) {
+			return new ChartRecipe(getKey(cid), (ChartImageDefinition) cid);
+		}
 		return new SerializableChartImage(cid);
 	}
 
+	/**
+	 * @see de.laures.cewolf.storage.AbstractSessionStorage#isReplicated()
+	 */
+	protected boolean isReplicated() {
+		return true;
+	}
+
+	/**
+	 * @see de.laures.cewolf.storage.AbstractSessionStorage#init(ServletContext)
+	 */
+	public void init(ServletContext servletContext) throws CewolfException {
+		super.init(servletContext);
+		var params = getInstance(servletContext).getParameters();
+		recipes = "recipe".equalsIgnoreCase(params.get("ClusterableSessionStorage.mode"));
+		if (recipes) {
+			try {
+				if (params.get("ClusterableSessionStorage.nodeCacheBytes") != null)
+					NodeImageCache.getInstance().setMaxBytes(Long.parseLong(params.get("ClusterableSessionStorage.nodeCacheBytes").trim()));
+			} catch (NumberFormatException ex) {
+				throw new CewolfException("invalid ClusterableSessionStorage parameter: " + ex.getMessage());
+			}
+			servletContext.log("ClusterableSessionStorage replicates chart recipes");
+		}
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#destroy()
+	 */
+	public void destroy() {
+		NodeImageCache.getInstance().clear();
+	}
+
 }
@@ -0,0 +1,176 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static de.laures.cewolf.WebConstants.MIME_JPEG;
+import static de.laures.cewolf.WebConstants.MIME_PNG;
+import static de.laures.cewolf.WebConstants.MIME_SVG;
+
+/**
+ * Building blocks of the compact externalized form of stored images: variable length
+ * integers, MIME types coded as a single byte and image data which is deflated if it
+ * is text, like SVG. PNG and JPEG are compressed already and are written as they are.
+ */
+final class CompactFormat {
+
+	private static final String[] MIME_TYPES = {null, MIME_PNG, MIME_JPEG, MIME_SVG};
+
+	private static final int RAW = 0;
+	private static final int DEFLATED = 1;
+
+	/** text shorter than this is not worth deflating */
+	private static final int MIN_DEFLATE = 256;
+
+	/** the largest image data accepted, a length beyond is taken as a corrupt stream */
+	static final int MAX_LENGTH = 256 * 1024 * 1024;
+
+	private CompactFormat() { }
+
+	static void writeVarInt (DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt (DataInput in) throws IOException {
+		var value = 0;
+		for (var shift = 0; shift < 35; shift += 7) {
+			var b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new InvalidObjectException("malformed variable length integer");
+	}
+
+	/**
+	 * Reads the length of image data, checked before anything is allocated for it.
+	 */
+	static int readLength (DataInput in) throws IOException {
+		var length = readVarInt(in);
+		if (length < 0 || length > MAX_LENGTH) {
+			throw new InvalidObjectException("invalid image data length " + length);
+		}
+		return length;
+	}
+
+	static void writeMimeType (DataOutput out, String mimeType) throws IOException {
+		for (var i = 1; i < MIME_TYPES.length; i++) {
+			if (MIME_TYPES[i].equals(mimeType)) {
+				out.writeByte(i);
+				return;
+			}
+		}
+		out.writeByte(0);
+		out.writeUTF(mimeType);
+	}
+
+	/**
+	 * @return the MIME type, the constant instance for the well known types
+	 */
+	static String readMimeType (DataInput in) throws IOException {
+		var code = in.readUnsignedByte();
+		if (code == 0) {
+			return in.readUTF().intern();
+		}
+		if (code >= MIME_TYPES.length) {
+			throw new InvalidObjectException("unknown MIME type " + code);
+		}
+		return MIME_TYPES[code];
+	}
+
+	static boolean isText (String mimeType) {
+		return MIME_SVG.equals(mimeType) || mimeType.startsWith("text/") || mimeType.endsWith("+xml");
+	}
+
+	/**
+	 * Writes the image data, deflated if it is text and deflating makes it smaller.
+	 */
+	static void writeData (DataOutput out, String mimeType, byte[] data) throws IOException {
+		if (isText(mimeType) && data.length >= MIN_DEFLATE) {
+			var deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				var buffer = new byte[data.length];
+				var length = deflater.deflate(buffer);
+				if (deflater.finished() && length < data.length) {
+					out.writeByte(DEFLATED);
+					writeVarInt(out, data.length);
+					writeVarInt(out, length);
+					out.write(buffer, 0, length);
+					return;
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+		out.writeByte(RAW);
+		writeVarInt(out, data.length);
+		out.write(data);
+	}
+
+	static byte[] readData (DataInput in) throws IOException {
+		var encoding = in.readUnsignedByte();
+		if (encoding != RAW && encoding != DEFLATED) {
+			throw new InvalidObjectException("unknown data encoding " + encoding);
+		}
+		var length = readLength(in);
+		if (encoding == RAW) {
+			var data = new byte[length];
+			in.readFully(data);
+			return data;
+		}
+		var compressedLength = readLength(in);
+		if (compressedLength > length) {
+			// never written, data which doesn't shrink is kept raw
+			throw new InvalidObjectException("invalid compressed length " + compressedLength);
+		}
+		var data = new byte[length];
+		var compressed = new byte[compressedLength];
+		in.readFully(compressed);
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			if (inflater.inflate(data) != data.length || !inflater.finished()) {
+				throw new InvalidObjectException("image data is corrupt");
+			}
+		} catch (DataFormatException ex) {
+			throw new InvalidObjectException("image data is corrupt: " + ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return data;
+	}
+}
@@ -0,0 +1,140 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Date;
+
+import de.laures.cewolf.CewolfException;
+import de.laures.cewolf.FileRegionChartImage;
+import de.laures.cewolf.WebConstants;
+import de.laures.cewolf.util.Renderer;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A chart image kept by the {@link FileStorage}. Only the header has been read,
+ * the image bytes are only loaded if somebody asks for them.
+ */
+class FileChartImage implements FileRegionChartImage {
+
+	static final long serialVersionUID = 2416330716185587513L;
+
+	private final int width;
+	private final int height;
+	private final int type;
+	private final String mimeType;
+	private final Date timeoutTime;
+	private final String path;
+	private final long offset;
+	private final int length;
+
+	FileChartImage (int width, int height, int type, String mimeType, Date timeoutTime,
+			String path, long offset, int length) {
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		this.mimeType = mimeType;
+		this.timeoutTime = timeoutTime;
+		this.path = path;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Reads the image from its file.
+	 * @see de.laures.cewolf.ChartImage#getBytes()
+	 */
+	public byte[] getBytes() throws CewolfException {
+		var buffer = ByteBuffer.allocate(length);
+		try (var channel = FileChannel.open(Path.of(path), READ)) {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) {
+					throw new CewolfException("chart file " + path + " is truncated");
+				}
+			}
+		} catch (IOException ex) {
+			throw new CewolfException("could not read chart file " + path, ex);
+		}
+		return buffer.array();
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Reads the first bytes of an SVG image to tell if it is gzip compressed.
+	 * @see de.laures.cewolf.ChartImage#getContentEncoding()
+	 */
+	public String getContentEncoding() {
+		if (!WebConstants.MIME_SVG.equals(mimeType) || length < 2) {
+			return null;
+		}
+		var head = ByteBuffer.allocate(2);
+		try (var channel = FileChannel.open(Path.of(path), READ)) {
+			while (head.hasRemaining()) {
+				if (channel.read(head, offset + head.position()) < 0) {
+					return null;
+				}
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+		return Renderer.getContentEncoding(mimeType, head.array());
+	}
+
+	public int getSize() {
+		return length;
+	}
+
+	public Date getTimeoutTime() {
+		return timeoutTime;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+}
@@ -22,33 +22,69 @@
 
 package de.laures.cewolf.storage;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.jsp.PageContext;
 
+import org.apache.commons.logging.Log;
+
 import de.laures.cewolf.CewolfException;
 import de.laures.cewolf.ChartImage;
-import de.laures.cewolf.Configuration;
-import static de.laures.cewolf.Configuration.getInstance;
 import de.laures.cewolf.Storage;
-import de.laures.cewolf.taglib.util.KeyGenerator;
+import static de.laures.cewolf.Configuration.getInstance;
 import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
-import static java.lang.String.valueOf;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
 
 /**
- * Storage for storing images as files in the web application directory as files _chart-XXXXX.
- * Note that by default the files won't ever be removed. To remove saved images on VM exit set
- * the <code>FileStorage.deleteOnExit</code> configuration parameter to "true". For example:
+ * Storage keeping rendered images as files in a disk cache. Each image is written as a
+ * small header followed by the raw image bytes into a file below two levels of hashed
+ * sub-directories. Images are rendered off the request thread by a pool of render
+ * threads and written by a single writer thread to a temporary file which is then
+ * renamed, so readers never see a partial image. Until the write has finished, the
+ * image is served from memory.
+ * <p>
+ * A background sweeper removes images whose timeout has passed and, if the cache has
+ * grown beyond its size limit, the least recently used ones. The cache is configured by
+ * the following init parameters:
+ * <ul>
+ * <li><code>FileStorage.directory</code>: the cache directory, by default <code>cewolf-charts</code>
+ * in the temporary directory of the web application</li>
+ * <li><code>FileStorage.maxBytes</code>: the size limit, by default 256 MB</li>
+ * <li><code>FileStorage.sweepInterval</code>: milliseconds between two sweeps, by default 60000</li>
+ * <li><code>FileStorage.deleteOnExit</code>: if "true", all images are deleted when the
+ * web application is shut down</li>
+ * </ul>
+ * For example:
  * 
  * <pre>
  *		<init-param>
@@ -56,8 +92,8 @@ import static java.lang.String.valueOf;
  *			<param-value>de.laures.cewolf.storage.FileStorage</param-value>
  *		</init-param>
  *		<init-param>
- *				<param-name>FileStorage.deleteOnExit</param-name>
- *				<param-value>true</param-value>
+ *				<param-name>FileStorage.directory</param-name>
+ *				<param-value>/var/cache/cewolf</param-value>
  *		</init-param> 
  *	</pre> 
  * 
@@ -67,112 +103,437 @@ public class FileStorage implements Storage {
 
 	static final long serialVersionUID = -6342203760851077577L;
 
-	String basePath = null;
-	List stored = new ArrayList();
+	private static final Log log = getLog(FileStorage.class);
+
+	static final int MAGIC = 0x4357464c; // "CWFL"
+	static final int VERSION = 1;
+	static final String SUFFIX = ".chart";
+	private static final int EXPIRES_OFFSET = 5;
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * What the storage knows about an image on disk.
+	 */
+	static final class FileEntry {
+
+		final Path path;
+		final long size;
+		final long expires;
+		volatile long lastAccess;
+
+		FileEntry (Path path, long size, long expires, long lastAccess) {
+			this.path = path;
+			this.size = size;
+			this.expires = expires;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private transient Path directory;
+	private long maxBytes = 256L * 1024 * 1024;
+	private long sweepInterval = 60000;
 	private boolean deleteOnExit = false;
 
+	private final transient ConcurrentHashMap<String,FileEntry> index = new ConcurrentHashMap<>();
+	private final transient ConcurrentHashMap<String,ChartImage> pending = new ConcurrentHashMap<>();
+	private final transient AtomicLong bytes = new AtomicLong();
+	private transient ScheduledThreadPoolExecutor executor;
+	private transient ThreadPoolExecutor renderers;
+
 	/**
 	 * @see de.laures.cewolf.Storage#storeChartImage(ChartImage, PageContext)
 	 */
-	public String storeChartImage(ChartImage cid, PageContext pageContext) {
-		if(contains(cid, pageContext)){
-			return getKey(cid);
+	public String storeChartImage(final ChartImage cid, PageContext pageContext) {
+		final var id = getKey(cid);
+		if (pending.containsKey(id) || extend(id, cid.getTimeoutTime().getTime())) {
+			return id;
+		}
+		if (pending.putIfAbsent(id, cid) != null) {
+			return id;
 		}
-		var id = getKey(cid);
-		ObjectOutputStream oos = null;
 		try {
-			var fileName = getFileName(id);
-			pageContext.getServletContext().log("Storing image to file " + fileName);
-			var f = new File(fileName);
-			if (deleteOnExit) {
-				f.deleteOnExit();
+			renderers.execute(() -> render(id, cid));
+		} catch (RejectedExecutionException ex) {
+			// shutting down, serve the image from memory as long as we can
+			log.warn("FileStorage: could not queue render of chart " + id);
+		}
+		return id;
+	}
+
+	/**
+	 * Extends the expiry of an image on disk that is stored again, so the page gets a key
+	 * that stays valid for the new timeout. The file header is updated by the writer thread.
+	 * @return <code>false</code> if the image is not on disk or has expired
+	 */
+	private boolean extend(String id, long expires) {
+		var now = currentTimeMillis();
+		var extended = new AtomicBoolean();
+		var entry = index.computeIfPresent(id, (k, e) -> {
+			if (e.expires < now || e.expires >= expires) {
+				return e;
 			}
-			oos = new ObjectOutputStream(new FileOutputStream(f));
-			oos.writeObject(new SerializableChartImage(cid));
-			oos.close();
-		} catch(IOException | CewolfException ioex){
-			ioex.printStackTrace();
-		} finally {
-			if(oos != null){
-				try {
-					oos.close();
-				} catch(IOException ioex){
-					ioex.printStackTrace();
-				}
+			extended.set(true);
+			return new FileEntry(e.path, e.size, expires, e.lastAccess);
+		});
+		if (entry == null || entry.expires < now) {
+			return false;
+		}
+		if (extended.get()) {
+			try {
+				executor.execute(() -> writeExpires(id, entry));
+			} catch (RejectedExecutionException ex) {
+				// shutting down, the index is not kept anyway
 			}
 		}
-		return id;
+		return true;
 	}
 
 	/**
-	 * @see de.laures.cewolf.Storage#getChartImage(String, HttpServletRequest)
+	 * Writes the expiry of an index entry into the header of its file, unless the image
+	 * has been replaced or removed meanwhile.
 	 */
-	public ChartImage getChartImage (String id, HttpServletRequest request) {
-		ChartImage res = null;
-		ObjectInputStream ois = null;
+	private void writeExpires(String id, FileEntry entry) {
+		if (index.get(id) != entry) {
+			return;
+		}
+		try (var channel = FileChannel.open(entry.path, WRITE)) {
+			var expires = ByteBuffer.allocate(8).putLong(entry.expires);
+			expires.flip();
+			while (expires.hasRemaining()) {
+				channel.write(expires, EXPIRES_OFFSET + expires.position());
+			}
+		} catch (IOException ex) {
+			log.warn("FileStorage: could not extend chart " + id + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Renders the image on a render thread and hands the bytes over to the writer thread.
+	 */
+	private void render(String id, ChartImage cid) {
+		if (pending.get(id) != cid) {
+			// removed before it was rendered
+			return;
+		}
+		try {
+			var data = cid.getBytes();
+			executor.execute(() -> write(id, cid, data));
+		} catch (CewolfException | RuntimeException ex) {
+			log.error("FileStorage: could not render chart " + id, ex);
+			pending.remove(id, cid);
+		}
+	}
+
+	/**
+	 * Writes the image to a temporary file which is renamed once complete. An image
+	 * removed while it was written is deleted again instead of being indexed.
+	 */
+	private void write(String id, ChartImage cid, byte[] data) {
+		if (pending.get(id) != cid) {
+			return;
+		}
+		Path temp = null;
 		try {
-			ois = new ObjectInputStream(new FileInputStream(getFileName(id)));
-			res = (ChartImage) ois.readObject();
-			ois.close();
-		} catch (Exception ex){
-			ex.printStackTrace();
+			var path = getPath(id);
+			Files.createDirectories(path.getParent());
+			temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+			var expires = cid.getTimeoutTime().getTime();
+			try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				writeHeader(out, cid, expires, data.length);
+				out.write(data);
+			}
+			move(temp, path);
+			temp = null;
+			var size = Files.size(path);
+			var entry = new FileEntry(path, size, expires, currentTimeMillis());
+			var old = index.put(id, entry);
+			bytes.addAndGet(size - (old == null ? 0 : old.size));
+			// indexed before the image leaves pending, so readers always find it somewhere
+			if (!pending.remove(id, cid)) {
+				remove(id, entry);
+			}
+		} catch (IOException | RuntimeException ex) {
+			log.error("FileStorage: could not write chart " + id, ex);
+			pending.remove(id, cid);
 		} finally {
-			if (ois != null){
-				try {
-					ois.close();
-				} catch (IOException ioex){
-					ioex.printStackTrace();
-				}
+			if (temp != null) {
+				deleteQuietly(temp);
 			}
 		}
-		return res;
+	}
+
+	static void writeHeader(DataOutputStream out, ChartImage cid, long expires, int length) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(expires);
+		out.writeInt(cid.getWidth());
+		out.writeInt(cid.getHeight());
+		out.writeInt(cid.getType());
+		out.writeUTF(cid.getMimeType());
+		out.writeInt(length);
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (IOException ex) {
+			// not every file system supports atomic moves
+			Files.move(source, target, REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#getChartImage(String, HttpServletRequest)
+	 */
+	public ChartImage getChartImage (String id, HttpServletRequest request) {
+		var cid = pending.get(id);
+		if (cid != null) {
+			return cid;
+		}
+		var entry = index.get(id);
+		if (entry == null) {
+			return null;
+		}
+		var now = currentTimeMillis();
+		if (entry.expires < now) {
+			remove(id, entry);
+			return null;
+		}
+		entry.lastAccess = now;
+		try (var channel = FileChannel.open(entry.path, READ)) {
+			return readImage(entry, channel);
+		} catch (IOException ex) {
+			log.error("FileStorage: could not read chart " + id, ex);
+			remove(id, entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the header of an image file. The image bytes are left on disk. The expiry is
+	 * taken from the index, the header may not have been updated yet after an extension.
+	 */
+	private static ChartImage readImage(FileEntry entry, FileChannel channel) throws IOException {
+		var path = entry.path;
+		var in = new DataInputStream(Channels.newInputStream(channel));
+		if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+			throw new IOException("not a chart file");
+		}
+		in.readLong();
+		var expires = entry.expires;
+		var width = in.readInt();
+		var height = in.readInt();
+		var type = in.readInt();
+		var mimeType = in.readUTF();
+		var length = in.readInt();
+		var offset = channel.position();
+		if (channel.size() < offset + length) {
+			throw new IOException("chart file is truncated");
+		}
+		return new FileChartImage(width, height, type, mimeType, new Date(expires),
+				path.toAbsolutePath().toString(), offset, length);
 	}
 
 	/**
 	 * see de.laures.cewolf.Storage#contains(ChartImage, PageContext)
 	 */
 	public boolean contains(ChartImage chartImage, PageContext pageContext) {
-		return new File(getFileName(chartImage)).exists();
+		return contains(getKey(chartImage));
+	}
+
+	private boolean contains(String id) {
+		if (pending.containsKey(id)) {
+			return true;
+		}
+		var entry = index.get(id);
+		return entry != null && entry.expires >= currentTimeMillis();
 	}
 
 	/**
 	 * see de.laures.cewolf.Storage#getKey(ChartImage)
 	 */
 	public String getKey(ChartImage chartImage) {
-		return valueOf(generateKey((Serializable)chartImage));
+		return generateKey((Serializable)chartImage);
 	}
 
 	/**
 	 * @see de.laures.cewolf.Storage#init(ServletContext)
 	 */
 	public void init(ServletContext servletContext) throws CewolfException {
-		basePath = servletContext.getRealPath("/");
-		var config = getInstance(servletContext);
-		deleteOnExit = "true".equalsIgnoreCase("" + config.getParameters().get("FileStorage.deleteOnExit"));
-		servletContext.log("FileStorage initialized, deleteOnExit=" + deleteOnExit);
+		var params = getInstance(servletContext).getParameters();
+		deleteOnExit = "true".equalsIgnoreCase("" + params.get("FileStorage.deleteOnExit"));
+		try {
+			if (params.get("FileStorage.maxBytes") != null)
+				maxBytes = Long.parseLong(params.get("FileStorage.maxBytes").trim());
+			if (params.get("FileStorage.sweepInterval") != null)
+				sweepInterval = Long.parseLong(params.get("FileStorage.sweepInterval").trim());
+		} catch (NumberFormatException ex) {
+			throw new CewolfException("invalid FileStorage parameter: " + ex.getMessage());
+		}
+		var dir = params.get("FileStorage.directory");
+		if (dir != null) {
+			directory = Path.of(dir);
+		} else {
+			var tempDir = (File) servletContext.getAttribute(ServletContext.TEMPDIR);
+			directory = (tempDir != null ? tempDir.toPath() : Path.of(System.getProperty("java.io.tmpdir"))).resolve("cewolf-charts");
+		}
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException ex) {
+			throw new CewolfException("FileStorage: can not create directory " + directory + ": " + ex.getMessage());
+		}
+		loadIndex();
+
+		executor = new ScheduledThreadPoolExecutor(1, r -> {
+			var thread = new Thread(r, "Cewolf-FileStorage");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		var threads = Runtime.getRuntime().availableProcessors();
+		var count = new AtomicInteger();
+		renderers = new ThreadPoolExecutor(threads, threads, 60, SECONDS, new LinkedBlockingQueue<>(), r -> {
+			var thread = new Thread(r, "Cewolf-FileStorage-Render-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		renderers.allowCoreThreadTimeOut(true);
+		executor.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, MILLISECONDS);
+		servletContext.log("FileStorage initialized in " + directory + ", " + index.size() + " charts found, maxBytes="
+				+ maxBytes + ", deleteOnExit=" + deleteOnExit);
 	}
 
-	private String getFileName(ChartImage chartImage){
-		return getFileName(getKey(chartImage));
+	/**
+	 * Picks up the images written before the last shutdown.
+	 */
+	private void loadIndex() {
+		try (var files = Files.walk(directory, 3)) {
+			files.filter(Files::isRegularFile).forEach(path -> {
+				if (path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+					// left over from a write interrupted by the last shutdown
+					deleteQuietly(path);
+					return;
+				}
+				if (!path.getFileName().toString().endsWith(SUFFIX)) {
+					return;
+				}
+				try (var channel = FileChannel.open(path, READ)) {
+					var header = ByteBuffer.allocate(13);
+					while (header.hasRemaining() && channel.read(header) >= 0) {
+					}
+					header.flip();
+					if (header.remaining() < 13 || header.getInt() != MAGIC || header.get() != VERSION) {
+						deleteQuietly(path);
+						return;
+					}
+					var expires = header.getLong();
+					var id = path.getFileName().toString();
+					id = id.substring(0, id.length() - SUFFIX.length());
+					var size = channel.size();
+					index.put(id, new FileEntry(path, size, expires, Files.getLastModifiedTime(path).toMillis()));
+					bytes.addAndGet(size);
+				} catch (IOException ex) {
+					log.warn("FileStorage: skipping unreadable chart file " + path + ": " + ex.getMessage());
+				}
+			});
+		} catch (IOException ex) {
+			log.error("FileStorage: could not scan " + directory, ex);
+		}
 	}
 
-	private String getFileName(String id){
-		return basePath + "_chart" + id;
+	/**
+	 * Removes expired images and, if the cache is too large, the least recently used ones.
+	 */
+	void sweep() {
+		try {
+			var now = currentTimeMillis();
+			for (var entry : index.entrySet()) {
+				if (entry.getValue().expires < now) {
+					remove(entry.getKey(), entry.getValue());
+				}
+			}
+			if (bytes.get() > maxBytes) {
+				var entries = new ArrayList<>(index.entrySet());
+				entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+				for (var entry : entries) {
+					if (bytes.get() <= maxBytes) {
+						break;
+					}
+					remove(entry.getKey(), entry.getValue());
+				}
+			}
+		} catch (RuntimeException ex) {
+			log.error("FileStorage: sweep failed", ex);
+		}
+	}
+
+	private void remove(String id, FileEntry entry) {
+		if (index.remove(id, entry)) {
+			bytes.addAndGet(-entry.size);
+			deleteQuietly(entry.path);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ex) {
+			log.warn("FileStorage: could not delete " + path + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the file of an image. Two levels of sub-directories derived from the
+	 * hash of the key keep the number of files per directory small.
+	 */
+	Path getPath(String id){
+		var hash = id.hashCode();
+		return directory.resolve(String.format("%02x", (hash >>> 8) & 0xff))
+				.resolve(String.format("%02x", hash & 0xff))
+				.resolve(id + SUFFIX);
 	}
 
 	/**
 	 * @see de.laures.cewolf.Storage#removeChartImage(java.lang.String, javax.servlet.http.HttpServletRequest)
 	 */
 	public String removeChartImage(String imgKey, HttpServletRequest pageContext) throws CewolfException {
-		var file = new File(getFileName(imgKey));
-		if (file.exists())
-		{
-			if (!file.delete())
-			{
-				throw new CewolfException("Could not delete file " + file.getAbsolutePath());
-			}
+		pending.remove(imgKey);
+		var entry = index.get(imgKey);
+		if (entry != null) {
+			remove(imgKey, entry);
 		}
 		return imgKey;
 	}
 
+	/**
+	 * Finishes the pending renders and writes and stops the sweeper. With <code>deleteOnExit</code>
+	 * all images are deleted.
+	 * @see de.laures.cewolf.Storage#destroy()
+	 */
+	public void destroy() {
+		if (renderers != null) {
+			renderers.shutdown();
+			try {
+				renderers.awaitTermination(10, SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			renderers = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(10, SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		if (deleteOnExit) {
+			for (var entry : index.entrySet()) {
+				remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
 }
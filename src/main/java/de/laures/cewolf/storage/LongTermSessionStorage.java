@@ -33,7 +33,6 @@ import de.laures.cewolf.ChartImage;
 import de.laures.cewolf.Storage;
 import de.laures.cewolf.taglib.util.KeyGenerator;
 import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
-import static java.lang.String.valueOf;
 
 /**
  * Storage stores images in session, but expires them after a certain time. 
@@ -48,7 +47,7 @@ public class LongTermSessionStorage implements Storage
 
   public final String getKey( ChartImage cid )
   {
-    return valueOf(generateKey((Serializable) cid));
+    return generateKey((Serializable) cid);
   }
 
   /*
@@ -66,8 +65,8 @@ public class LongTermSessionStorage implements Storage
       session.setAttribute("CewolfCharts", ssg);
     }
     var cid = getKey(chartImage);
-    var ssi = new SessionStorageItem(chartImage, cid, chartImage.getTimeoutTime());
-    ssg.put(cid, ssi);
+    // same chart shown again, keep the image rendered before
+    ssg.store(cid, chartImage, chartImage.getTimeoutTime());
 
     return cid;
   }
@@ -99,6 +98,15 @@ public class LongTermSessionStorage implements Storage
    * @see de.laures.cewolf.Storage#init(javax.servlet.ServletContext)
    */
   public void init( ServletContext servletContext ) throws CewolfException {
+    SessionStorageGroup.startCleaner();
+  }
+
+  /**
+   * Stops the thread expiring the charts.
+   * @see de.laures.cewolf.Storage#destroy()
+   */
+  public void destroy() {
+    SessionStorageGroup.stopCleaner();
   }
 
   /**
@@ -0,0 +1,87 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Images rendered from {@link ChartRecipe}s on this node. The cache is not part of any
+ * session, so it is never replicated; every node renders the charts asked for there.
+ * The least recently used images are dropped once the cache exceeds its size limit.
+ */
+final class NodeImageCache {
+
+	private static final NodeImageCache instance = new NodeImageCache();
+
+	private final LinkedHashMap<String,byte[]> images = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxBytes = 16L * 1024 * 1024;
+	private long bytes;
+
+	private NodeImageCache() { }
+
+	static NodeImageCache getInstance() {
+		return instance;
+	}
+
+	synchronized void setMaxBytes (long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	synchronized byte[] get (String key) {
+		return images.get(key);
+	}
+
+	synchronized boolean contains (String key) {
+		return images.containsKey(key);
+	}
+
+	synchronized void put (String key, byte[] data) {
+		if (data.length > maxBytes) {
+			return;
+		}
+		var old = images.put(key, data);
+		bytes += data.length - (old == null ? 0 : old.length);
+		trim();
+	}
+
+	synchronized void remove (String key) {
+		var old = images.remove(key);
+		if (old != null) {
+			bytes -= old.length;
+		}
+	}
+
+	synchronized void clear() {
+		images.clear();
+		bytes = 0;
+	}
+
+	private void trim() {
+		var it = images.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().length;
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+/**
+ * Open addressing hash index of the {@link SegmentStorage}, mapping the 128 bit key of
+ * a chart to the location of its record. All data is kept in primitive arrays, so an
+ * entry costs no object and a lookup touches only a few array slots. Not thread safe.
+ */
+final class SegmentIndex {
+
+	private static final byte FREE = 0;
+	private static final byte USED = 1;
+	private static final byte DELETED = 2;
+
+	private byte[] state;
+	private long[] keyHigh;
+	private long[] keyLow;
+	private int[] segment;
+	private int[] offset;
+	private long[] expires;
+	private int size;
+	private int occupied;
+
+	SegmentIndex (int capacity) {
+		allocate(Integer.highestOneBit(Math.max(16, capacity - 1)) << 1);
+	}
+
+	private void allocate (int capacity) {
+		state = new byte[capacity];
+		keyHigh = new long[capacity];
+		keyLow = new long[capacity];
+		segment = new int[capacity];
+		offset = new int[capacity];
+		expires = new long[capacity];
+		size = 0;
+		occupied = 0;
+	}
+
+	private static int slot (long high, long low, int mask) {
+		var h = high ^ low;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+
+	/**
+	 * @return the slot of the key or -1 if the key is not in the index
+	 */
+	int find (long high, long low) {
+		var mask = state.length - 1;
+		for (var i = slot(high, low, mask); ; i = (i + 1) & mask) {
+			if (state[i] == FREE) {
+				return -1;
+			}
+			if (state[i] == USED && keyHigh[i] == high && keyLow[i] == low) {
+				return i;
+			}
+		}
+	}
+
+	void put (long high, long low, int seg, int off, long exp) {
+		var existing = find(high, low);
+		if (existing >= 0) {
+			segment[existing] = seg;
+			offset[existing] = off;
+			expires[existing] = exp;
+			return;
+		}
+		if ((occupied + 1) * 2 > state.length) {
+			rehash(size * 2 + 2 > state.length ? state.length * 2 : state.length);
+		}
+		var mask = state.length - 1;
+		var i = slot(high, low, mask);
+		while (state[i] == USED) {
+			i = (i + 1) & mask;
+		}
+		if (state[i] == FREE) {
+			occupied++;
+		}
+		state[i] = USED;
+		keyHigh[i] = high;
+		keyLow[i] = low;
+		segment[i] = seg;
+		offset[i] = off;
+		expires[i] = exp;
+		size++;
+	}
+
+	boolean remove (long high, long low) {
+		var i = find(high, low);
+		if (i < 0) {
+			return false;
+		}
+		state[i] = DELETED;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Removes all entries pointing into a segment.
+	 * @return the number of entries removed
+	 */
+	int removeSegment (int seg) {
+		var removed = 0;
+		for (var i = 0; i < state.length; i++) {
+			if (state[i] == USED && segment[i] == seg) {
+				state[i] = DELETED;
+				size--;
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private void rehash (int capacity) {
+		var oldState = state;
+		var oldHigh = keyHigh;
+		var oldLow = keyLow;
+		var oldSegment = segment;
+		var oldOffset = offset;
+		var oldExpires = expires;
+		allocate(capacity);
+		for (var i = 0; i < oldState.length; i++) {
+			if (oldState[i] == USED) {
+				put(oldHigh[i], oldLow[i], oldSegment[i], oldOffset[i], oldExpires[i]);
+			}
+		}
+	}
+
+	int segmentAt (int slot) {
+		return segment[slot];
+	}
+
+	int offsetAt (int slot) {
+		return offset[slot];
+	}
+
+	long expiresAt (int slot) {
+		return expires[slot];
+	}
+
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,677 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.jsp.PageContext;
+
+import org.apache.commons.logging.Log;
+
+import de.laures.cewolf.CewolfException;
+import de.laures.cewolf.ChartImage;
+import de.laures.cewolf.Storage;
+import static de.laures.cewolf.Configuration.getInstance;
+import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * Storage appending rendered images to a few large, pre-allocated segment files which
+ * are memory mapped. An in-memory index built from primitive arrays maps the key of an
+ * image to its segment, offset and timeout, so a lookup costs neither a file system
+ * operation nor an object per cached image. Images are shared by all sessions and
+ * survive a restart, the index is rebuilt from the segments on startup.
+ * <p>
+ * Images are rendered by a pool of render threads and appended by a single writer thread.
+ * Segments are never rewritten in place. Once everything in a segment has expired the
+ * whole file is dropped; a segment of which only a small part is still alive is
+ * compacted by copying the living images to the current segment first. If the segment
+ * limit is reached, the oldest segment is dropped. The file of a dropped segment is only
+ * deleted a while later, as images handed out before may still be sent from it. The
+ * store is configured by the
+ * following init parameters:
+ * <ul>
+ * <li><code>SegmentStorage.directory</code>: the segment directory, by default <code>cewolf-segments</code>
+ * in the temporary directory of the web application</li>
+ * <li><code>SegmentStorage.segmentSize</code>: the size of one segment, by default 64 MB</li>
+ * <li><code>SegmentStorage.maxSegments</code>: the number of segments kept, by default 8</li>
+ * <li><code>SegmentStorage.sweepInterval</code>: milliseconds between two sweeps, by default 60000</li>
+ * </ul>
+ * For example:
+ * 
+ * <pre>
+ *		<init-param>
+ *			<param-name>storage</param-name>
+ *			<param-value>de.laures.cewolf.storage.SegmentStorage</param-value>
+ *		</init-param>
+ *		<init-param>
+ *				<param-name>SegmentStorage.segmentSize</param-name>
+ *				<param-value>134217728</param-value>
+ *		</init-param> 
+ *	</pre> 
+ */
+public class SegmentStorage implements Storage {
+
+	static final long serialVersionUID = 6117364905386392735L;
+
+	private static final Log log = getLog(SegmentStorage.class);
+
+	/** marks a complete record, written after the rest of the record */
+	static final int MAGIC = 0x43575347; // "CWSG"
+	/** marks a removed record */
+	static final int DELETED = 0x43575358; // "CWSX"
+	static final String SUFFIX = ".seg";
+	/** magic, key, expires, width, height, type and the length of the mime type */
+	private static final int FIXED_HEADER = 4 + 16 + 8 + 4 + 4 + 4 + 2;
+	/** offset of the expiry within a record */
+	private static final int EXPIRES_OFFSET = 4 + 16;
+	/** milliseconds a dropped segment file is kept for images still being sent from it */
+	private static final long DROP_GRACE = 60000;
+
+	/**
+	 * One pre-allocated segment file, mapped as a whole.
+	 */
+	static final class Segment {
+
+		final int id;
+		final Path path;
+		final MappedByteBuffer buffer;
+		/** end of the last record, only changed by the writer thread */
+		volatile int position;
+
+		Segment (int id, Path path, MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+		}
+
+		int headerLength (int offset) {
+			return FIXED_HEADER + buffer.getShort(offset + FIXED_HEADER - 2) + 4;
+		}
+
+		int dataLength (int offset) {
+			return buffer.getInt(offset + headerLength(offset) - 4);
+		}
+
+		int recordLength (int offset) {
+			return headerLength(offset) + dataLength(offset);
+		}
+	}
+
+	private transient Path directory;
+	private int segmentSize = 64 * 1024 * 1024;
+	private int maxSegments = 8;
+	private long sweepInterval = 60000;
+
+	private final transient ConcurrentSkipListMap<Integer,Segment> segments = new ConcurrentSkipListMap<>();
+	private final transient ConcurrentHashMap<String,ChartImage> pending = new ConcurrentHashMap<>();
+	private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private transient SegmentIndex index;
+	private transient Segment current;
+	/** the id of the next segment, never reused so a new segment can't take the file of a dropped one */
+	private transient int nextId;
+	/** files of dropped segments waiting to be deleted */
+	private final transient Set<Path> dropped = ConcurrentHashMap.newKeySet();
+	private transient ScheduledThreadPoolExecutor executor;
+	private transient ThreadPoolExecutor renderers;
+
+	/**
+	 * @see de.laures.cewolf.Storage#storeChartImage(ChartImage, PageContext)
+	 */
+	public String storeChartImage(final ChartImage cid, PageContext pageContext) {
+		final var id = getKey(cid);
+		if (pending.containsKey(id) || extend(id, cid.getTimeoutTime().getTime())) {
+			return id;
+		}
+		if (pending.putIfAbsent(id, cid) != null) {
+			return id;
+		}
+		try {
+			renderers.execute(() -> render(id, cid));
+		} catch (RejectedExecutionException ex) {
+			// shutting down, serve the image from memory as long as we can
+			log.warn("SegmentStorage: could not queue render of chart " + id);
+		}
+		return id;
+	}
+
+	/**
+	 * Extends the expiry of an image in a segment that is stored again, so the page gets
+	 * a key that stays valid for the new timeout. The expiry is updated in the record as
+	 * well, so it survives a restart.
+	 * @return <code>false</code> if the image is not in a segment or has expired
+	 */
+	private boolean extend(String id, long expires) {
+		var key = decode(id);
+		lock.writeLock().lock();
+		try {
+			var slot = index.find(key[0], key[1]);
+			if (slot < 0 || index.expiresAt(slot) < currentTimeMillis()) {
+				return false;
+			}
+			if (index.expiresAt(slot) < expires) {
+				var segment = segments.get(index.segmentAt(slot));
+				if (segment == null) {
+					return false;
+				}
+				var offset = index.offsetAt(slot);
+				segment.buffer.putLong(offset + EXPIRES_OFFSET, expires);
+				index.put(key[0], key[1], segment.id, offset, expires);
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Renders the image on a render thread and hands the bytes over to the writer thread.
+	 */
+	private void render(String id, ChartImage cid) {
+		if (pending.get(id) != cid) {
+			// removed before it was rendered
+			return;
+		}
+		try {
+			var data = cid.getBytes();
+			executor.execute(() -> write(id, cid, data));
+		} catch (CewolfException | RuntimeException ex) {
+			log.error("SegmentStorage: could not render chart " + id, ex);
+			pending.remove(id, cid);
+		}
+	}
+
+	/**
+	 * Appends the image to the current segment. Only called on the writer thread. An
+	 * image removed while it was appended is removed from the index again.
+	 */
+	private void write(String id, ChartImage cid, byte[] data) {
+		if (pending.get(id) != cid) {
+			return;
+		}
+		try {
+			var key = decode(id);
+			append(key[0], key[1], cid.getTimeoutTime().getTime(), cid.getWidth(), cid.getHeight(),
+					cid.getType(), cid.getMimeType(), ByteBuffer.wrap(data));
+			// indexed before the image leaves pending, so readers always find it somewhere
+			if (!pending.remove(id, cid)) {
+				remove(key);
+			}
+		} catch (IOException | RuntimeException ex) {
+			log.error("SegmentStorage: could not write chart " + id, ex);
+			pending.remove(id, cid);
+		}
+	}
+
+	private void append(long high, long low, long expires, int width, int height, int type,
+			String mimeType, ByteBuffer data) throws IOException {
+		var mime = mimeType.getBytes(StandardCharsets.UTF_8);
+		var length = FIXED_HEADER + mime.length + 4 + data.remaining();
+		if (length > segmentSize) {
+			log.warn("SegmentStorage: chart of " + length + " bytes does not fit into a segment");
+			return;
+		}
+		if (current == null || current.position + length > segmentSize) {
+			roll();
+		}
+		var segment = current;
+		var offset = segment.position;
+		var out = segment.buffer.duplicate();
+		out.position(offset + 4);
+		out.putLong(high).putLong(low).putLong(expires);
+		out.putInt(width).putInt(height).putInt(type);
+		out.putShort((short) mime.length).put(mime);
+		out.putInt(data.remaining()).put(data);
+		// the record only counts once it is complete
+		segment.buffer.putInt(offset, MAGIC);
+		segment.position = offset + length;
+		lock.writeLock().lock();
+		try {
+			var old = index.find(high, low);
+			if (old >= 0) {
+				if (index.expiresAt(old) > expires) {
+					// extended while the record was copied by a compaction
+					expires = index.expiresAt(old);
+					segment.buffer.putLong(offset + EXPIRES_OFFSET, expires);
+				}
+				markDeleted(index.segmentAt(old), index.offsetAt(old));
+			}
+			index.put(high, low, segment.id, offset, expires);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts a new segment, dropping the oldest one if the segment limit is reached.
+	 */
+	private void roll() throws IOException {
+		while (segments.size() >= maxSegments) {
+			drop(segments.firstEntry().getValue());
+		}
+		var id = nextId++;
+		var segment = open(directory.resolve(String.format("segment-%08d%s", id, SUFFIX)), id);
+		segments.put(id, segment);
+		if (current != null) {
+			current.buffer.force();
+		}
+		current = segment;
+	}
+
+	private Segment open(Path path, int id) throws IOException {
+		try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+			if (file.length() != segmentSize) {
+				file.setLength(segmentSize);
+			}
+			// the mapping stays valid after the channel has been closed
+			return new Segment(id, path, file.getChannel().map(READ_WRITE, 0, segmentSize));
+		}
+	}
+
+	private void drop(Segment segment) {
+		lock.writeLock().lock();
+		try {
+			segments.remove(segment.id);
+			index.removeSegment(segment.id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (segment == current) {
+			current = null;
+		}
+		// images read from the segment just before may still be sent from its file
+		dropped.add(segment.path);
+		try {
+			executor.schedule(() -> delete(segment.path), DROP_GRACE, MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			// shutting down, destroy deletes the file
+		}
+	}
+
+	private void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+			dropped.remove(path);
+		} catch (IOException ex) {
+			log.warn("SegmentStorage: could not delete " + path + ": " + ex.getMessage());
+		}
+	}
+
+	private void markDeleted(int segmentId, int offset) {
+		var segment = segments.get(segmentId);
+		if (segment != null) {
+			segment.buffer.putInt(offset, DELETED);
+		}
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#getChartImage(String, HttpServletRequest)
+	 */
+	public ChartImage getChartImage (String id, HttpServletRequest request) {
+		var cid = pending.get(id);
+		if (cid != null) {
+			return cid;
+		}
+		long[] key;
+		try {
+			key = decode(id);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+		lock.readLock().lock();
+		try {
+			var slot = index.find(key[0], key[1]);
+			if (slot < 0 || index.expiresAt(slot) < currentTimeMillis()) {
+				return null;
+			}
+			var segment = segments.get(index.segmentAt(slot));
+			if (segment == null) {
+				return null;
+			}
+			return readImage(segment, index.offsetAt(slot));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the header of a record from the mapped segment. The image bytes are served
+	 * from the segment file.
+	 */
+	private static ChartImage readImage(Segment segment, int offset) {
+		var in = segment.buffer.duplicate();
+		in.position(offset + EXPIRES_OFFSET);
+		var expires = in.getLong();
+		var width = in.getInt();
+		var height = in.getInt();
+		var type = in.getInt();
+		var mime = new byte[in.getShort()];
+		in.get(mime);
+		var length = in.getInt();
+		return new FileChartImage(width, height, type, new String(mime, StandardCharsets.UTF_8),
+				new Date(expires), segment.path.toAbsolutePath().toString(), in.position(), length);
+	}
+
+	/**
+	 * see de.laures.cewolf.Storage#contains(ChartImage, PageContext)
+	 */
+	public boolean contains(ChartImage chartImage, PageContext pageContext) {
+		return contains(getKey(chartImage));
+	}
+
+	private boolean contains(String id) {
+		if (pending.containsKey(id)) {
+			return true;
+		}
+		var key = decode(id);
+		lock.readLock().lock();
+		try {
+			var slot = index.find(key[0], key[1]);
+			return slot >= 0 && index.expiresAt(slot) >= currentTimeMillis();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the two halves of the 128 bit key.
+	 * @throws IllegalArgumentException if the id is not a key generated by the storage
+	 */
+	private static long[] decode(String id) {
+		var bytes = Base64.getUrlDecoder().decode(id);
+		if (bytes.length != 16) {
+			throw new IllegalArgumentException("not a chart key: " + id);
+		}
+		var buffer = ByteBuffer.wrap(bytes);
+		return new long[] {buffer.getLong(), buffer.getLong()};
+	}
+
+	/**
+	 * see de.laures.cewolf.Storage#getKey(ChartImage)
+	 */
+	public String getKey(ChartImage chartImage) {
+		return generateKey((Serializable)chartImage);
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#init(ServletContext)
+	 */
+	public void init(ServletContext servletContext) throws CewolfException {
+		var params = getInstance(servletContext).getParameters();
+		try {
+			if (params.get("SegmentStorage.segmentSize") != null)
+				segmentSize = Integer.parseInt(params.get("SegmentStorage.segmentSize").trim());
+			if (params.get("SegmentStorage.maxSegments") != null)
+				maxSegments = Math.max(1, Integer.parseInt(params.get("SegmentStorage.maxSegments").trim()));
+			if (params.get("SegmentStorage.sweepInterval") != null)
+				sweepInterval = Long.parseLong(params.get("SegmentStorage.sweepInterval").trim());
+		} catch (NumberFormatException ex) {
+			throw new CewolfException("invalid SegmentStorage parameter: " + ex.getMessage());
+		}
+		var dir = params.get("SegmentStorage.directory");
+		if (dir != null) {
+			directory = Path.of(dir);
+		} else {
+			var tempDir = (File) servletContext.getAttribute(ServletContext.TEMPDIR);
+			directory = (tempDir != null ? tempDir.toPath() : Path.of(System.getProperty("java.io.tmpdir"))).resolve("cewolf-segments");
+		}
+		index = new SegmentIndex(1024);
+		try {
+			Files.createDirectories(directory);
+			loadSegments();
+		} catch (IOException ex) {
+			throw new CewolfException("SegmentStorage: can not open segments in " + directory + ": " + ex.getMessage());
+		}
+
+		executor = new ScheduledThreadPoolExecutor(1, r -> {
+			var thread = new Thread(r, "Cewolf-SegmentStorage");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		var threads = Runtime.getRuntime().availableProcessors();
+		var count = new AtomicInteger();
+		renderers = new ThreadPoolExecutor(threads, threads, 60, SECONDS, new LinkedBlockingQueue<>(), r -> {
+			var thread = new Thread(r, "Cewolf-SegmentStorage-Render-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		renderers.allowCoreThreadTimeOut(true);
+		executor.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, MILLISECONDS);
+		servletContext.log("SegmentStorage initialized in " + directory + ", " + segments.size() + " segments with "
+				+ index.size() + " charts found, segmentSize=" + segmentSize + ", maxSegments=" + maxSegments);
+	}
+
+	/**
+	 * Maps the segments written before the last shutdown and rebuilds the index from
+	 * their records. Later records replace earlier ones with the same key.
+	 */
+	private void loadSegments() throws IOException {
+		var paths = new ArrayList<Path>();
+		try (var files = Files.list(directory)) {
+			files.filter(path -> path.getFileName().toString().startsWith("segment-")
+					&& path.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(paths::add);
+		}
+		var now = currentTimeMillis();
+		for (var path : paths) {
+			var name = path.getFileName().toString();
+			int id;
+			try {
+				id = Integer.parseInt(name.substring("segment-".length(), name.length() - SUFFIX.length()));
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			if (Files.size(path) != segmentSize) {
+				// written with another segment size
+				Files.delete(path);
+				continue;
+			}
+			var segment = open(path, id);
+			var offset = 0;
+			while (offset + FIXED_HEADER + 4 <= segmentSize) {
+				var magic = segment.buffer.getInt(offset);
+				if (magic != MAGIC && magic != DELETED) {
+					break;
+				}
+				var length = segment.recordLength(offset);
+				if (length < FIXED_HEADER + 4 || offset + length > segmentSize) {
+					break;
+				}
+				var high = segment.buffer.getLong(offset + 4);
+				var low = segment.buffer.getLong(offset + 12);
+				var expires = segment.buffer.getLong(offset + EXPIRES_OFFSET);
+				if (magic == MAGIC && expires >= now) {
+					index.put(high, low, id, offset, expires);
+				} else {
+					index.remove(high, low);
+				}
+				offset += length;
+			}
+			segment.position = offset;
+			segments.put(id, segment);
+			current = segment;
+			nextId = Math.max(nextId, id + 1);
+		}
+	}
+
+	/**
+	 * Drops segments without living images and compacts the ones which are mostly dead.
+	 * Runs on the writer thread, so no record is appended meanwhile.
+	 */
+	void sweep() {
+		try {
+			var now = currentTimeMillis();
+			for (var segment : new ArrayList<>(segments.values())) {
+				if (segment == current) {
+					continue;
+				}
+				var live = 0L;
+				lock.readLock().lock();
+				try {
+					for (var offset = 0; offset < segment.position; offset += segment.recordLength(offset)) {
+						if (isLive(segment, offset, now)) {
+							live += segment.recordLength(offset);
+						}
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+				if (live == 0) {
+					drop(segment);
+				} else if (live < segment.position / 4 && current != null
+						&& current.position + live <= segmentSize) {
+					compact(segment, now);
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			log.error("SegmentStorage: sweep failed", ex);
+		}
+	}
+
+	private boolean isLive(Segment segment, int offset, long now) {
+		if (segment.buffer.getInt(offset) != MAGIC) {
+			return false;
+		}
+		var slot = index.find(segment.buffer.getLong(offset + 4), segment.buffer.getLong(offset + 12));
+		return slot >= 0 && index.segmentAt(slot) == segment.id && index.offsetAt(slot) == offset
+				&& index.expiresAt(slot) >= now;
+	}
+
+	/**
+	 * Copies the living images of a segment to the current one and drops it.
+	 */
+	private void compact(Segment segment, long now) throws IOException {
+		for (var offset = 0; offset < segment.position; offset += segment.recordLength(offset)) {
+			boolean live;
+			lock.readLock().lock();
+			try {
+				live = isLive(segment, offset, now);
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (live) {
+				var in = segment.buffer.duplicate();
+				in.position(offset + 4);
+				var high = in.getLong();
+				var low = in.getLong();
+				var expires = in.getLong();
+				var width = in.getInt();
+				var height = in.getInt();
+				var type = in.getInt();
+				var mime = new byte[in.getShort()];
+				in.get(mime);
+				var length = in.getInt();
+				in.limit(in.position() + length);
+				append(high, low, expires, width, height, type, new String(mime, StandardCharsets.UTF_8), in.slice());
+			}
+		}
+		drop(segment);
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#removeChartImage(java.lang.String, javax.servlet.http.HttpServletRequest)
+	 */
+	public String removeChartImage(String imgKey, HttpServletRequest pageContext) throws CewolfException {
+		pending.remove(imgKey);
+		try {
+			remove(decode(imgKey));
+		} catch (IllegalArgumentException ex) {
+			// not a key of this storage
+		}
+		return imgKey;
+	}
+
+	private void remove(long[] key) {
+		lock.writeLock().lock();
+		try {
+			var slot = index.find(key[0], key[1]);
+			if (slot >= 0) {
+				// so the image does not come back after a restart
+				markDeleted(index.segmentAt(slot), index.offsetAt(slot));
+				index.remove(key[0], key[1]);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Finishes the pending renders and writes, stops the sweeper, flushes the segments to
+	 * disk and deletes the dropped ones, so their images don't come back after a restart.
+	 * @see de.laures.cewolf.Storage#destroy()
+	 */
+	public void destroy() {
+		if (renderers != null) {
+			renderers.shutdown();
+			try {
+				renderers.awaitTermination(10, SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			renderers = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(10, SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		for (var segment : segments.values()) {
+			segment.buffer.force();
+		}
+		for (var path : dropped) {
+			delete(path);
+		}
+	}
+
+}
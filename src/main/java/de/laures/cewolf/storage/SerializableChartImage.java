@@ -22,26 +22,42 @@
 
 package de.laures.cewolf.storage;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 
 import de.laures.cewolf.CewolfException;
 import de.laures.cewolf.ChartImage;
+import de.laures.cewolf.util.Renderer;
 
 /**
+ * A rendered image which can be kept in a replicated session. It is externalized in a
+ * compact, versioned form: sizes as variable length integers, the timeout as epoch
+ * milliseconds, the MIME type as a single byte and SVG data deflated.
  * @author guido
  *
  */
-public class SerializableChartImage implements ChartImage, Serializable {
+public class SerializableChartImage implements ChartImage, Externalizable {
 
 	static final long serialVersionUID = -6746254726157616461L;
 
-	private final int width;
-	private final int height;
-	private final int type;
-	private final Date timeoutTime;
-	private final String mimeType;
-	private final byte[] data;
+	private static final int VERSION = 1;
+
+	private int width;
+	private int height;
+	private int type;
+	private Date timeoutTime;
+	private String mimeType;
+	private byte[] data;
+
+	/**
+	 * Only to be used by deserialization.
+	 */
+	public SerializableChartImage() {
+	}
 
 	public SerializableChartImage(ChartImage img) throws CewolfException{
 		this.width = img.getWidth();
@@ -87,6 +103,13 @@ public class SerializableChartImage implements ChartImage, Serializable {
 		return mimeType;
 	}
 
+	/**
+	 * @see de.laures.cewolf.ChartImage#getContentEncoding()
+	 */
+	public String getContentEncoding() {
+		return Renderer.getContentEncoding(mimeType, data);
+	}
+
 	/**
 	 * @see de.laures.cewolf.ChartImage#getSize()
 	 */
@@ -101,4 +124,28 @@ public class SerializableChartImage implements ChartImage, Serializable {
     return timeoutTime;
   }
 
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    CompactFormat.writeVarInt(out, width);
+    CompactFormat.writeVarInt(out, height);
+    CompactFormat.writeVarInt(out, type);
+    out.writeLong(timeoutTime == null ? -1 : timeoutTime.getTime());
+    CompactFormat.writeMimeType(out, mimeType);
+    CompactFormat.writeData(out, mimeType, data);
+  }
+
+  public void readExternal(ObjectInput in) throws IOException {
+    var version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new InvalidObjectException("unsupported chart image version " + version);
+    }
+    width = CompactFormat.readVarInt(in);
+    height = CompactFormat.readVarInt(in);
+    type = CompactFormat.readVarInt(in);
+    var timeout = in.readLong();
+    timeoutTime = timeout < 0 ? null : new Date(timeout);
+    mimeType = CompactFormat.readMimeType(in);
+    data = CompactFormat.readData(in);
+  }
+
 }
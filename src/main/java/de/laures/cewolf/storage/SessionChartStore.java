@@ -0,0 +1,222 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package de.laures.cewolf.storage;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.laures.cewolf.ChartImage;
+import de.laures.cewolf.StreamableChartImage;
+import de.laures.cewolf.taglib.ChartImageDefinition;
+
+/**
+ * The chart images of one session, kept as a single session attribute. Images expire
+ * at their timeout; if the session holds more images or bytes than allowed, the least
+ * recently used ones are evicted. The store is safe for concurrent requests of the session.
+ * @see AbstractSessionStorage
+ */
+public class SessionChartStore implements Serializable {
+
+	static final long serialVersionUID = -2170981560093432371L;
+
+	/** bytes counted for an image which has not been rendered yet, or for the chart a rendered one still holds */
+	static final int PENDING_WEIGHT = 16 * 1024;
+	/** bytes counted for a chart recipe, whose image is not kept in the session */
+	static final int RECIPE_WEIGHT = 1024;
+
+	private static final class Item implements Serializable {
+
+		static final long serialVersionUID = 5125837716401938871L;
+
+		final Object image;
+		volatile long expires;
+		volatile long weight;
+		volatile long lastAccess;
+
+		Item (Object image, long expires, long weight, long now) {
+			this.image = image;
+			this.expires = expires;
+			this.weight = weight;
+			lastAccess = now;
+		}
+	}
+
+	private final ConcurrentHashMap<String,Item> items = new ConcurrentHashMap<>();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @return the image stored under the key, or <code>null</code> if there is none or it has expired
+	 */
+	Object get (String key, long now) {
+		var item = items.get(key);
+		if (item == null) {
+			return null;
+		}
+		if (item.expires < now) {
+			if (removeIfExpired(key, now)) {
+				AbstractSessionStorage.expired.increment();
+			}
+			return null;
+		}
+		item.lastAccess = now;
+		// the definition may have been rendered or released in the meantime, count its real
+		// size; under the lock of the map, so concurrent requests don't apply the change twice
+		items.computeIfPresent(key, (k, current) -> {
+			var weight = weigh(current.image);
+			if (weight != current.weight) {
+				bytes.addAndGet(weight - current.weight);
+				current.weight = weight;
+			}
+			return current;
+		});
+		return item.image;
+	}
+
+	boolean contains (String key, long now) {
+		var item = items.get(key);
+		return item != null && item.expires >= now;
+	}
+
+	/**
+	 * Extends the expiry of an image which is shown again, so that it lives as long as
+	 * the latest page showing it.
+	 * @return <code>true</code> if the image is stored and has not expired yet
+	 */
+	boolean extend (String key, long expires, long now) {
+		var item = items.computeIfPresent(key, (k, current) -> {
+			if (current.expires >= now) {
+				current.expires = Math.max(current.expires, expires);
+				current.lastAccess = now;
+			}
+			return current;
+		});
+		return item != null && item.expires >= now;
+	}
+
+	/**
+	 * Stores an image and evicts expired and least recently used images until the
+	 * session is within its limits again. The image just stored is never evicted.
+	 * @return the number of images evicted
+	 */
+	int put (String key, Object image, long expires, long now, int maxEntries, long maxBytes) {
+		var item = new Item(image, expires, weigh(image), now);
+		var old = items.put(key, item);
+		bytes.addAndGet(item.weight - (old == null ? 0 : old.weight));
+		var evicted = 0;
+		if (items.size() > maxEntries || bytes.get() > maxBytes) {
+			evicted += purgeExpired(now);
+		}
+		while (items.size() > maxEntries || bytes.get() > maxBytes) {
+			Map.Entry<String,Item> eldest = null;
+			for (var entry : items.entrySet()) {
+				if (entry.getValue() != item
+						&& (eldest == null || entry.getValue().lastAccess < eldest.getValue().lastAccess)) {
+					eldest = entry;
+				}
+			}
+			if (eldest == null) {
+				break;
+			}
+			if (items.remove(eldest.getKey(), eldest.getValue())) {
+				bytes.addAndGet(-eldest.getValue().weight);
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	boolean remove (String key) {
+		var item = items.remove(key);
+		if (item == null) {
+			return false;
+		}
+		bytes.addAndGet(-item.weight);
+		return true;
+	}
+
+	/**
+	 * @return the number of expired images removed
+	 */
+	int purgeExpired (long now) {
+		var purged = 0;
+		for (var entry : items.entrySet()) {
+			if (entry.getValue().expires < now && removeIfExpired(entry.getKey(), now)) {
+				purged++;
+			}
+		}
+		return purged;
+	}
+
+	/**
+	 * Removes the image stored under the key if it has expired. The check is repeated
+	 * under the lock of the map, so that a fresh image stored under the same key
+	 * meanwhile, or an extended one, is kept.
+	 */
+	private boolean removeIfExpired (String key, long now) {
+		var removed = new Item[1];
+		items.computeIfPresent(key, (k, item) -> {
+			if (item.expires >= now) {
+				return item;
+			}
+			removed[0] = item;
+			return null;
+		});
+		if (removed[0] == null) {
+			return false;
+		}
+		bytes.addAndGet(-removed[0].weight);
+		return true;
+	}
+
+	int size() {
+		return items.size();
+	}
+
+	long getBytes() {
+		return bytes.get();
+	}
+
+	private static long weigh (Object image) {
+		if (image instanceof ChartRecipe) {
+			return ((ChartRecipe) image).getWeight();
+		}
+		if (image instanceof StreamableChartImage) {
+			var rendered = ((StreamableChartImage) image).getRenderedImage();
+			if (rendered == null) {
+				return PENDING_WEIGHT;
+			}
+			// a definition not released after rendering still holds the chart and its dataset
+			var retained = image instanceof ChartImageDefinition && ((ChartImageDefinition) image).isChartRetained();
+			return rendered.data.length + (retained ? PENDING_WEIGHT : 0);
+		}
+		if (image instanceof ChartImage) {
+			try {
+				return ((ChartImage) image).getSize();
+			} catch (Exception ex) {
+				return PENDING_WEIGHT;
+			}
+		}
+		return PENDING_WEIGHT;
+	}
+}
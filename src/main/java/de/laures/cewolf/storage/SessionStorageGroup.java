@@ -1,13 +1,15 @@
-
 package de.laures.cewolf.storage;
 
 import static de.laures.cewolf.storage.StorageCleaner.getInstance;
 import static java.lang.Thread.MIN_PRIORITY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.lang.ref.WeakReference;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.WeakHashMap;
+import de.laures.cewolf.ChartImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A container for any images for an user session. This is needed to ensure
@@ -18,63 +20,109 @@ import java.util.WeakHashMap;
 public class SessionStorageGroup {
 
   // map contains chartId->SessionStorageItem mappings
-  private Map<String, SessionStorageItem> map = new HashMap<>();
-  
-  /**
-   * Constructor registers this storage group for the 
-   *
-   */
-  public SessionStorageGroup() {
-	  // register this storage group in the cleanup thread
-	  getInstance().addStorageGroup(this);
-  }
+  private final ConcurrentHashMap<String, SessionStorageItem> map = new ConcurrentHashMap<>();
 
   /**
    * Get the storage for a chart
    * @param chartId The id of a chart
    * @return The storage
    */
-  public synchronized SessionStorageItem get(Object chartId)
+  public SessionStorageItem get(Object chartId)
   {
     return map.get(chartId);
   }
 
   /**
-   * Add a chart to the storage
+   * Add a chart to the storage. The chart is removed by the cleaner thread when it expires.
    * @param chartId The id
    * @param item The storage item
    */
-  public synchronized void put( String chartId, SessionStorageItem item)
+  public void put( String chartId, SessionStorageItem item)
   {
     map.put(chartId, item);
+    getInstance().schedule(this, chartId, item);
   }
   
+  /**
+   * Stores a chart, unless the same chart is stored and has not expired yet; then its
+   * item is kept with the image rendered before, and its timeout is extended if the new
+   * one is later. Atomic with the removal of expired charts, so the chart can't be
+   * removed between the check and the extension.
+   * @param chartId The id
+   * @param chart The chart image
+   * @param timeout The timeout of the chart
+   */
+  void store(String chartId, ChartImage chart, Date timeout)
+  {
+    var now = new Date();
+    var added = new SessionStorageItem[1];
+    map.compute(chartId, (id, current) -> {
+      if (current != null && !current.isExpired(now))
+      {
+        // the cleaner queues the item again when it finds the later timeout
+        if (timeout.after(current.getTimeout()))
+          current.setTimeout(timeout);
+        return current;
+      }
+      added[0] = new SessionStorageItem(chart, id, timeout);
+      return added[0];
+    });
+    if (added[0] != null)
+      getInstance().schedule(this, chartId, added[0]);
+  }
+
   /**
    * Remove one chart item.
    * @param chartId
    */
-  public synchronized void remove(String chartId) {
+  public void remove(String chartId) {
 	  map.remove(chartId);
   }
 
+	/**
+	 * Removes a chart item if it is still the stored one and has expired.
+	 * @return <code>false</code> if the item is stored but has not expired yet
+	 */
+	boolean removeIfExpired(String chartId, SessionStorageItem item, Date now) {
+		var kept = new boolean[1];
+		map.computeIfPresent(chartId, (id, current) -> {
+			if (current != item) {
+				return current;
+			}
+			if (!item.isExpired(now)) {
+				kept[0] = true;
+				return item;
+			}
+			return null;
+		});
+		return !kept[0];
+	}
+
 	/**
 	 * Clean up (remove) all expired charts from this storage group.
 	 */
-	protected synchronized void cleanup() {
+	protected void cleanup() {
 		var now = new Date();
-
-		Iterator iter = map.keySet().iterator();
-		while (iter.hasNext()) {
-			// System.out.println("Get Next");
-			var cid = (String) iter.next();
-			var ssi = get(cid);
-			if (ssi.isExpired(now)) {
-				// System.out.println("Removing " + ssi);
-				iter.remove();
-			}
+		// checked again under the lock of the map, a chart may be extended meanwhile
+		for (var chartId : map.keySet()) {
+			map.computeIfPresent(chartId, (id, ssi) -> ssi.isExpired(now) ? null : ssi);
 		}
 	}
 
+	/**
+	 * Starts the thread removing expired charts from all storage groups, if not running yet.
+	 */
+	static void startCleaner() {
+		getInstance().start();
+	}
+
+	/**
+	 * Stops the thread removing expired charts and forgets all charts queued for it.
+	 */
+	static void stopCleaner() {
+		getInstance().stop();
+	}
+
 	/**
 	 * If the storage group is empty
 	 * @return If empty
@@ -86,15 +134,43 @@ public class SessionStorageGroup {
 }
 
 /**
- * Single (singleton) thread (well,...almost) to clean up many storage groups
+ * Single (singleton) thread to expire the charts of all storage groups. Charts are
+ * queued by their expiry time, so the thread only wakes up when a chart is due and
+ * the work done is proportional to the number of expiring charts.
  * @author zluspai
  *
  */
 class StorageCleaner implements Runnable {
 
-	  // storage groups are stored in weak references, so they go away when the session goes away
-	  private WeakHashMap<SessionStorageGroup,Object> storageGroups = new WeakHashMap<>();
-	  
+	/**
+	 * A chart due to expire. Group and item are only weakly referenced, so charts
+	 * of sessions which went away are not kept alive by the queue.
+	 */
+	private static final class Expiry implements Delayed {
+
+		final WeakReference<SessionStorageGroup> group;
+		final WeakReference<SessionStorageItem> item;
+		final String chartId;
+		final long expires;
+
+		Expiry (SessionStorageGroup group, String chartId, SessionStorageItem item) {
+			this.group = new WeakReference<>(group);
+			this.item = new WeakReference<>(item);
+			this.chartId = chartId;
+			expires = item.getTimeout().getTime();
+		}
+
+		public long getDelay (TimeUnit unit) {
+			return unit.convert(expires - System.currentTimeMillis(), MILLISECONDS);
+		}
+
+		public int compareTo (Delayed other) {
+			return Long.compare(expires, ((Expiry) other).expires);
+		}
+	}
+
+	  private final DelayQueue<Expiry> queue = new DelayQueue<>();
+
 	  // the runner thread
 	  private Thread runner;
 
@@ -113,11 +189,13 @@ class StorageCleaner implements Runnable {
 	  }
 	  
 	  /**
-	   * Register a storage group to be automatically cleaned up.
+	   * Queues a chart to be removed from its group when it expires.
 	   * @param group The group
+	   * @param chartId The id of the chart
+	   * @param item The storage item
 	   */
-	  public void addStorageGroup(SessionStorageGroup group) {
-		  this.storageGroups.put(group, null);
+	  public void schedule(SessionStorageGroup group, String chartId, SessionStorageItem item) {
+		  queue.add(new Expiry(group, chartId, item));
 		  // start the thread if needed
 		  start();
 	  }
@@ -125,7 +203,7 @@ class StorageCleaner implements Runnable {
 	  /**
 	   * Start the runner thread for this cleanup class, if not running yet.
 	   */
-	  private void start()
+	  synchronized void start()
 	  {
 		// start a new thread if our thread is not running
 	    if (!isRunning())
@@ -137,30 +215,43 @@ class StorageCleaner implements Runnable {
 	      runner.start();
 	    }
 	  }
+
+	  /**
+	   * Stops the runner thread and forgets all queued charts.
+	   */
+	  synchronized void stop()
+	  {
+	    if (runner != null)
+	    {
+	      runner.interrupt();
+	      runner = null;
+	    }
+	    queue.clear();
+	  }
 	  
 	 /**
 	  * If the cleanup thread is currently running.
 	  * @return True if running
 	  */
-	 boolean isRunning() {
+	 synchronized boolean isRunning() {
 		 return ( runner != null && runner.isAlive() );
 	 }
 
 	/**
-	 * Clean up the known storage groups
+	 * Removes the charts as they expire. A chart whose timeout has been extended
+	 * in the meantime is queued again.
 	 */
 	public void run() {		
         try {
-			// note my thread will stop if there are no more groups to clean up
-			while (! storageGroups.keySet().isEmpty()) {
-				// clean up all session groups
-				for (var ssg : storageGroups.keySet()) {
-					// delegate the task to the storage group to clean up itself
-					ssg.cleanup();
+			while (!Thread.currentThread().isInterrupted()) {
+				var expiry = queue.take();
+				var group = expiry.group.get();
+				var item = expiry.item.get();
+				if (group == null || item == null) {
+					continue;
 				}
-		        // wait a bit
-				synchronized (this) {
-					wait(1000);
+				if (!group.removeIfExpired(expiry.chartId, item, new Date())) {
+					queue.add(new Expiry(group, expiry.chartId, item));
 				}
 			}
 		} catch (InterruptedException e) {
@@ -3,23 +3,30 @@
  */
 package de.laures.cewolf.storage;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 
 import de.laures.cewolf.ChartImage;
 
 /**
- * Wrapper for the images stored in SessionStorageGroups.
+ * Wrapper for the images stored in SessionStorageGroups. It is externalized in a
+ * compact, versioned form with the timeout as epoch milliseconds.
  *
  * @author brianf
  */
-public class SessionStorageItem implements java.io.Serializable 
+public class SessionStorageItem implements Externalizable 
 {
 	static final long serialVersionUID = -481087874120532816L;
 
+  private static final int VERSION = 1;
+
   String     cid     = null;
   ChartImage chart   = null;
-  Date       timeout = null;
+  volatile Date timeout = null;
 
   public SessionStorageItem()
   {
@@ -90,4 +97,26 @@ public class SessionStorageItem implements java.io.Serializable
   {
     this.timeout = timeout;
   }
+
+  public void writeExternal( ObjectOutput out ) throws IOException
+  {
+    out.writeByte(VERSION);
+    out.writeUTF(cid);
+    var time = timeout;
+    out.writeLong(time == null ? -1 : time.getTime());
+    out.writeObject(chart);
+  }
+
+  public void readExternal( ObjectInput in ) throws IOException, ClassNotFoundException
+  {
+    var version = in.readUnsignedByte();
+    if (version != VERSION)
+    {
+      throw new InvalidObjectException("unsupported session storage item version " + version);
+    }
+    cid = in.readUTF();
+    var time = in.readLong();
+    timeout = time < 0 ? null : new Date(time);
+    chart = (ChartImage) in.readObject();
+  }
 }
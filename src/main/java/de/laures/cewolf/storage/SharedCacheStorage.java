@@ -0,0 +1,492 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package de.laures.cewolf.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.jsp.PageContext;
+
+import javax.management.ObjectName;
+
+import de.laures.cewolf.CewolfException;
+import de.laures.cewolf.ChartImage;
+import de.laures.cewolf.Storage;
+import de.laures.cewolf.StreamableChartImage;
+import de.laures.cewolf.util.RenderedImage;
+import de.laures.cewolf.util.Renderer;
+import static de.laures.cewolf.Configuration.getInstance;
+import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
+
+/**
+ * Storage which keeps chart images in one cache shared by all sessions, so that a
+ * chart shown to many users at the same time is rendered and held only once. Images
+ * are addressed by their key, which is derived from the content of the chart.
+ * <p>
+ * Sessions only hold the set of keys they stored. An image is only handed out to a
+ * session which stored it itself, so a key seen elsewhere can't be used to fetch a
+ * chart from another user's page.
+ * <p>
+ * The cache is bounded by the bytes of the rendered images. It is a segmented LRU:
+ * new images enter a probationary segment and move to the protected segment when they
+ * are requested again, so a burst of charts viewed once does not push out the charts
+ * everybody looks at. Until an image has been rendered, a fixed estimate is counted
+ * for it. Once rendered, only its bytes and rendering info are kept and the chart
+ * definition with its data is dropped.
+ * <p>
+ * The size of the cache is set by the init parameter <code>SharedCacheStorage.maxBytes</code>
+ * (default 64 MB). Its statistics are published as MBean <code>Cewolf:name=SharedChartCache</code>.
+ *
+ * <pre>
+ *		&lt;init-param&gt;
+ *			&lt;param-name&gt;storage&lt;/param-name&gt;
+ *			&lt;param-value&gt;de.laures.cewolf.storage.SharedCacheStorage&lt;/param-value&gt;
+ *		&lt;/init-param&gt;
+ *		&lt;init-param&gt;
+ *			&lt;param-name&gt;SharedCacheStorage.maxBytes&lt;/param-name&gt;
+ *			&lt;param-value&gt;134217728&lt;/param-value&gt;
+ *		&lt;/init-param&gt;
+ * </pre>
+ */
+public class SharedCacheStorage implements Storage, SharedCacheStorageMBean {
+
+	static final long serialVersionUID = 3816625091275468331L;
+
+	private static final String SESSION_KEYS = "CewolfSharedCharts";
+
+	/** number of keys a session gathers before the keys gone from the cache are dropped */
+	private static final int PRUNE_INTERVAL = 64;
+
+	/** bytes counted for an image which has not been rendered yet */
+	private static final int PENDING_WEIGHT = 16 * 1024;
+
+	/** bytes counted per entity of the rendering info */
+	private static final int ENTITY_WEIGHT = 256;
+
+	/** share of the cache reserved for images requested more than once */
+	private static final double PROTECTED_SHARE = 0.8;
+
+	/**
+	 * A cached image, either the definition still to be rendered or the rendered image.
+	 */
+	private static final class Entry {
+
+		final String key;
+		ChartImage image;
+		long weight;
+		long expires;
+		boolean protectedSegment;
+
+		Entry (String key, ChartImage image, long weight, long expires) {
+			this.key = key;
+			this.image = image;
+			this.weight = weight;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * The rendered form of a cached image. It holds no reference to the chart or its data.
+	 */
+	private static final class CachedImage implements StreamableChartImage {
+
+		static final long serialVersionUID = 1L;
+
+		private final int width;
+		private final int height;
+		private final int type;
+		private final Date timeoutTime;
+		private final RenderedImage renderedImage;
+
+		CachedImage (ChartImage image, RenderedImage renderedImage) {
+			width = image.getWidth();
+			height = image.getHeight();
+			type = image.getType();
+			timeoutTime = image.getTimeoutTime();
+			this.renderedImage = renderedImage;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public byte[] getBytes() {
+			return renderedImage.data;
+		}
+
+		public String getMimeType() {
+			return renderedImage.mimeType;
+		}
+
+		public String getContentEncoding() {
+			return Renderer.getContentEncoding(renderedImage.mimeType, renderedImage.data);
+		}
+
+		public int getSize() {
+			return renderedImage.data.length;
+		}
+
+		public Date getTimeoutTime() {
+			return timeoutTime;
+		}
+
+		public boolean isRendered() {
+			return true;
+		}
+
+		public RenderedImage getRenderedImage() {
+			return renderedImage;
+		}
+
+		public void adoptRenderedImage (RenderedImage image) {
+		}
+
+		public void prepare() {
+		}
+
+		public void writeTo (OutputStream out) throws IOException {
+			Renderer.writeUncompressed(renderedImage.mimeType, renderedImage.data, out);
+		}
+	}
+
+	private final transient LinkedHashMap<String,Entry> probation = new LinkedHashMap<>();
+	private final transient LinkedHashMap<String,Entry> protectedEntries = new LinkedHashMap<>();
+	private transient long probationBytes;
+	private transient long protectedBytes;
+	private volatile long maxBytes = 64L * 1024 * 1024;
+
+	private final transient LongAdder hits = new LongAdder();
+	private final transient LongAdder misses = new LongAdder();
+	private final transient LongAdder evictions = new LongAdder();
+	private final transient LongAdder expirations = new LongAdder();
+	private final transient LongAdder denied = new LongAdder();
+
+	private transient ObjectName mbeanName;
+
+	/**
+	 * @see de.laures.cewolf.Storage#init(ServletContext)
+	 */
+	public void init (ServletContext servletContext) throws CewolfException {
+		var config = getInstance(servletContext);
+		var value = config.getParameters().get("SharedCacheStorage.maxBytes");
+		if (value != null) {
+			maxBytes = Long.parseLong(value.trim());
+		}
+		var path = servletContext.getContextPath();
+		if (path.equals(""))
+			path = "/";
+		try {
+			mbeanName = new ObjectName("Cewolf:name=SharedChartCache,path=" + path);
+			getPlatformMBeanServer().registerMBean(this, mbeanName);
+		} catch (Exception ex) {
+			servletContext.log("SharedCacheStorage could not register MBean: " + ex.getMessage());
+			mbeanName = null;
+		}
+		servletContext.log("SharedCacheStorage initialized, maxBytes=" + maxBytes);
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#destroy()
+	 */
+	public void destroy() {
+		if (mbeanName != null) {
+			try {
+				getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch (Exception ex) {
+				// already gone
+			}
+			mbeanName = null;
+		}
+		clear();
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#storeChartImage(ChartImage, PageContext)
+	 */
+	public String storeChartImage (ChartImage chartImage, PageContext pageContext) throws CewolfException {
+		var key = generateKey((Serializable) chartImage);
+		var keys = getSessionKeys(pageContext.getSession(), true);
+		var added = keys.add(key);
+		var expires = chartImage.getTimeoutTime().getTime();
+		RenderedImage cached = null;
+		synchronized (this) {
+			var entry = lookup(key, currentTimeMillis());
+			if (entry != null) {
+				entry.expires = Math.max(entry.expires, expires);
+				var image = entry.image;
+				if (image instanceof CachedImage) {
+					cached = ((CachedImage) image).getRenderedImage();
+				}
+			} else {
+				add(new Entry(key, chartImage, PENDING_WEIGHT, expires));
+				completeIfRendered(key, chartImage);
+			}
+		}
+		if (added && keys.size() % PRUNE_INTERVAL == 0) {
+			pruneSessionKeys(keys);
+		}
+		if (cached != null && chartImage instanceof StreamableChartImage) {
+			// the page can use the rendering info of the cached image for its image map
+			((StreamableChartImage) chartImage).adoptRenderedImage(cached);
+		}
+		return key;
+	}
+
+	/**
+	 * @see de.laures.cewolf.Storage#getChartImage(String, HttpServletRequest)
+	 */
+	public ChartImage getChartImage (String id, HttpServletRequest request) {
+		var keys = getSessionKeys(request.getSession(false), false);
+		if (keys == null || !keys.contains(id)) {
+			denied.increment();
+			return null;
+		}
+		synchronized (this) {
+			var entry = lookup(id, currentTimeMillis());
+			if (entry == null) {
+				return null;
+			}
+			completeIfRendered(id, entry.image);
+			return entry.image;
+		}
+	}
+
+	/**
+	 * Only the reference of the session is removed, other sessions may still show the image.
+	 * @see de.laures.cewolf.Storage#removeChartImage(String, HttpServletRequest)
+	 */
+	public String removeChartImage (String imgKey, HttpServletRequest request) throws CewolfException {
+		var keys = getSessionKeys(request.getSession(false), false);
+		if (keys != null) {
+			keys.remove(imgKey);
+		}
+		return imgKey;
+	}
+
+	/**
+	 * Drops the keys of a session whose images have been evicted from the cache or have
+	 * expired, so that pages refreshing themselves with new charts don't make the set grow
+	 * for the lifetime of the session.
+	 */
+	private void pruneSessionKeys (Set<String> keys) {
+		var now = currentTimeMillis();
+		synchronized (this) {
+			keys.removeIf(key -> {
+				var entry = probation.get(key);
+				if (entry == null) {
+					entry = protectedEntries.get(key);
+				}
+				return entry == null || entry.expires < now;
+			});
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> getSessionKeys (HttpSession session, boolean create) {
+		if (session == null) {
+			return null;
+		}
+		var keys = (Set<String>) session.getAttribute(SESSION_KEYS);
+		if (keys == null && create) {
+			synchronized (session) {
+				keys = (Set<String>) session.getAttribute(SESSION_KEYS);
+				if (keys == null) {
+					keys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+					session.setAttribute(SESSION_KEYS, keys);
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Looks up an entry and moves it to the front of its segment. An entry found in the
+	 * probationary segment is promoted to the protected segment. Must hold the lock.
+	 */
+	private Entry lookup (String key, long now) {
+		var entry = probation.get(key);
+		if (entry == null) {
+			entry = protectedEntries.get(key);
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		if (entry.expires < now) {
+			remove(entry);
+			expirations.increment();
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		remove(entry);
+		entry.protectedSegment = true;
+		protectedEntries.put(key, entry);
+		protectedBytes += entry.weight;
+		// keep the protected segment within its share, demoting its least recently used entries
+		var protectedMax = (long) (maxBytes * PROTECTED_SHARE);
+		var it = protectedEntries.values().iterator();
+		while (protectedBytes > protectedMax && it.hasNext()) {
+			var demoted = it.next();
+			if (demoted == entry) {
+				break;
+			}
+			it.remove();
+			protectedBytes -= demoted.weight;
+			demoted.protectedSegment = false;
+			probation.put(demoted.key, demoted);
+			probationBytes += demoted.weight;
+		}
+		trim();
+		return entry;
+	}
+
+	private void add (Entry entry) {
+		probation.put(entry.key, entry);
+		probationBytes += entry.weight;
+		trim();
+	}
+
+	private void remove (Entry entry) {
+		if (entry.protectedSegment) {
+			protectedEntries.remove(entry.key);
+			protectedBytes -= entry.weight;
+		} else {
+			probation.remove(entry.key);
+			probationBytes -= entry.weight;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used images, taking them from the probationary segment first.
+	 */
+	private void trim() {
+		while (probationBytes + protectedBytes > maxBytes) {
+			var segment = probation.isEmpty() ? protectedEntries : probation;
+			var it = segment.values().iterator();
+			if (!it.hasNext()) {
+				return;
+			}
+			var eldest = it.next();
+			remove(eldest);
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Replaces a rendered chart definition by its rendered image and counts its real size.
+	 * Must hold the lock.
+	 */
+	private void completeIfRendered (String key, ChartImage image) {
+		if (image instanceof CachedImage || !(image instanceof StreamableChartImage)) {
+			return;
+		}
+		var rendered = ((StreamableChartImage) image).getRenderedImage();
+		if (rendered == null) {
+			return;
+		}
+		var entry = probation.get(key);
+		if (entry == null) {
+			entry = protectedEntries.get(key);
+		}
+		if (entry == null || entry.image != image) {
+			return;
+		}
+		var weight = (long) rendered.data.length;
+		if (rendered.renderingInfo != null && rendered.renderingInfo.getEntityCollection() != null) {
+			weight += (long) rendered.renderingInfo.getEntityCollection().getEntityCount() * ENTITY_WEIGHT;
+		}
+		if (entry.protectedSegment) {
+			protectedBytes += weight - entry.weight;
+		} else {
+			probationBytes += weight - entry.weight;
+		}
+		entry.weight = weight;
+		entry.image = new CachedImage(image, rendered);
+		trim();
+	}
+
+	public synchronized int getEntryCount() {
+		return probation.size() + protectedEntries.size();
+	}
+
+	public synchronized long getBytesHeld() {
+		return probationBytes + protectedBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public double getHitRate() {
+		var h = hits.sum();
+		var total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public long getExpiredCount() {
+		return expirations.sum();
+	}
+
+	public long getDeniedCount() {
+		return denied.sum();
+	}
+
+	public synchronized void clear() {
+		probation.clear();
+		protectedEntries.clear();
+		probationBytes = 0;
+		protectedBytes = 0;
+	}
+}
@@ -36,13 +36,18 @@ import org.jfree.chart.plot.*;
 import org.jfree.chart.title.LegendTitle;
 
 import de.laures.cewolf.*;
-import static de.laures.cewolf.CewolfRenderer.cppUsed;
 import de.laures.cewolf.event.ChartImageRenderListener;
 import static de.laures.cewolf.taglib.TaglibConstants.ANCHOR_EAST;
 import static de.laures.cewolf.taglib.TaglibConstants.ANCHOR_NORTH;
 import static de.laures.cewolf.taglib.TaglibConstants.ANCHOR_SOUTH;
 import static de.laures.cewolf.taglib.TaglibConstants.ANCHOR_WEST;
+import de.laures.cewolf.taglib.util.Fingerprint;
+import de.laures.cewolf.taglib.util.Fingerprintable;
+import de.laures.cewolf.util.RenderMetrics;
+import de.laures.cewolf.util.RenderMetrics.Phase;
+import de.laures.cewolf.util.RenderTimer;
 import de.laures.cewolf.util.RenderedImage;
+import static java.lang.System.nanoTime;
 import static javax.imageio.ImageIO.read;
 
 import org.apache.commons.logging.Log;
@@ -59,7 +64,7 @@ import static org.jfree.ui.RectangleEdge.TOP;
  * @see de.laures.cewolf.ChartHolder
  */
 public abstract class AbstractChartDefinition
-		implements ChartHolder, Serializable, ChartImageRenderListener {
+		implements ChartHolder, Fingerprintable, Serializable, ChartImageRenderListener {
 
     private static final Log log = getLog(AbstractChartDefinition.class);
 
@@ -83,7 +88,7 @@ public abstract class AbstractChartDefinition
     private List<ChartPostProcessor> postProcessors = new ArrayList<>();
     private List<Map<String,String>> postProcessorsParams = new ArrayList<>();
 
-    private JFreeChart chart;
+    private transient JFreeChart chart;
 	private String webRootDir;
 
 	protected abstract JFreeChart produceChart() throws DatasetProduceException, ChartValidationException;
@@ -133,6 +138,10 @@ public abstract class AbstractChartDefinition
      */
     public JFreeChart getChart() throws DatasetProduceException, ChartValidationException, PostProcessingException {
         if (chart == null) {
+            var timer = RenderTimer.current();
+            timer.setChartType(type);
+            var datasetTime = timer.get(Phase.DATASET);
+            var start = nanoTime();
             chart = produceChart();
             chart.setAntiAlias(antialias);
 
@@ -266,12 +275,22 @@ public abstract class AbstractChartDefinition
 				}
 			}
 
+			// the dataset is produced while the chart is built, keep both apart
+			var metrics = RenderMetrics.getInstance();
+			datasetTime = timer.get(Phase.DATASET) - datasetTime;
+			var buildTime = nanoTime() - start - datasetTime;
+			timer.add(Phase.BUILD, buildTime);
+			metrics.record(type, Phase.DATASET, datasetTime);
+			metrics.record(type, Phase.BUILD, buildTime);
+
             // postProcessing
 			var i = 0;
+			var cppStart = nanoTime();
 			for (var cpp : postProcessors) {
 				try {
-					cppUsed(cpp);
+					var processStart = nanoTime();
 					cpp.processChart(chart, postProcessorsParams.get(i));
+					metrics.cppProcessed(cpp.getClass().getName(), nanoTime() - processStart);
 					i++;
 				} catch (Throwable t) {
 					t.printStackTrace();
@@ -279,6 +298,11 @@ public abstract class AbstractChartDefinition
 							cpp + "'.\nPost processing of this post processor " + "has been ignored.");
 				}
 			}
+			if (!postProcessors.isEmpty()) {
+				var cppTime = nanoTime() - cppStart;
+				timer.add(Phase.CPP, cppTime);
+				metrics.record(type, Phase.CPP, cppTime);
+			}
         }
         return chart;
     }
@@ -441,6 +465,28 @@ public abstract class AbstractChartDefinition
         this.plotBorderPaint = paint;
     }
 
+    /**
+     * Adds all attributes of the chart tag and the post processors with their parameters.
+     * Subclasses add the definition of their data.
+     * @see de.laures.cewolf.taglib.util.Fingerprintable#fingerprint(Fingerprint)
+     */
+    public void fingerprint (Fingerprint fp) {
+        fp.add(title).add(xAxisLabel).add(yAxisLabel).add(type);
+        fp.add(xAxisInteger).add(yAxisInteger);
+        fp.add(xTickMarksVisible).add(yTickMarksVisible);
+        fp.add(xTickLabelsVisible).add(yTickLabelsVisible);
+        fp.add(borderVisible).add(plotBorderVisible).add(antialias);
+        fp.add(background).add(backgroundImageAlpha);
+        fp.add((Object) backgroundPaint).add((Object) plotBackgroundPaint);
+        fp.add((Object) borderPaint).add((Object) plotBorderPaint);
+        fp.add(legendAnchor).add(showLegend);
+        fp.add(postProcessors.size());
+        for (var i = 0; i < postProcessors.size(); i++) {
+            fp.add((Object) postProcessors.get(i));
+            fp.add((Object) postProcessorsParams.get(i));
+        }
+    }
+
     public void addPostProcessor (ChartPostProcessor cpp, Map<String,String> params) {
         postProcessors.add(cpp);
         postProcessorsParams.add(params);
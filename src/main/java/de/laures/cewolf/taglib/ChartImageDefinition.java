@@ -22,10 +22,14 @@
 
 package de.laures.cewolf.taglib;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.Map;
 
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
@@ -37,10 +41,19 @@ import de.laures.cewolf.ChartImage;
 import de.laures.cewolf.ChartValidationException;
 import de.laures.cewolf.DatasetProduceException;
 import de.laures.cewolf.PostProcessingException;
+import de.laures.cewolf.StreamableChartImage;
 import de.laures.cewolf.event.ChartImageRenderListener;
+import de.laures.cewolf.util.RenderMetrics;
+import de.laures.cewolf.util.RenderMetrics.Phase;
+import de.laures.cewolf.util.RenderTimer;
 import de.laures.cewolf.util.RenderedImage;
 import de.laures.cewolf.util.Renderer;
+import de.laures.cewolf.taglib.util.Fingerprint;
+import de.laures.cewolf.taglib.util.Fingerprintable;
+import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
+import static de.laures.cewolf.util.RenderRegistry.getInstance;
 import static de.laures.cewolf.util.Renderer.render;
+import static java.lang.System.nanoTime;
 import static java.util.Calendar.SECOND;
 
 /**
@@ -48,18 +61,23 @@ import static java.util.Calendar.SECOND;
  * @author glaures
  * @see de.laures.cewolf.ChartImage
  */
-public class ChartImageDefinition implements ChartImage, ChartHolder, Serializable {
+public class ChartImageDefinition implements StreamableChartImage, ChartHolder, Fingerprintable, Serializable {
 
 	static final long serialVersionUID = 8919126983568810996L;
 
-	private final ChartHolder chartHolder;
+	private volatile ChartHolder chartHolder;
+	private final String chartType;
 	private final int height;
 	private final int width;
 	private final int type;
 	private final String mimeType;
 	private final Date timeoutTime;
 
-	private RenderedImage renderedImage;
+	private volatile RenderedImage renderedImage;
+	private volatile String renderKey;
+	private volatile boolean retainRenderedOnly;
+	private volatile boolean mapped = true;
+	private Map<String,String> encoderOptions = Collections.emptyMap();
 
 	/**
 	 * Constructor for ChartImage
@@ -69,6 +87,7 @@ public class ChartImageDefinition implements ChartImage, ChartHolder, Serializab
 			throw new IllegalArgumentException("ChartImage with height or width <= 0 is illegal");
 		}
 		this.chartHolder = ch;
+		this.chartType = ch instanceof AbstractChartDefinition ? ((AbstractChartDefinition) ch).type : null;
 		this.width = width;
 		this.height = height;
 		this.type = type;
@@ -78,6 +97,33 @@ public class ChartImageDefinition implements ChartImage, ChartHolder, Serializab
 		this.timeoutTime = cal.getTime();
 	}
 
+	private ChartImageDefinition (ChartImageDefinition cid) {
+		this.chartHolder = cid.chartHolder;
+		this.chartType = cid.chartType;
+		this.width = cid.width;
+		this.height = cid.height;
+		this.type = cid.type;
+		this.mimeType = cid.mimeType;
+		this.timeoutTime = cid.timeoutTime;
+		this.renderKey = cid.renderKey;
+		this.encoderOptions = cid.encoderOptions;
+		this.mapped = false;
+	}
+
+	/**
+	 * Returns a copy of this definition without the rendered image. It shares the
+	 * chart definition and is the recipe to render the image again, e.g. on another node.
+	 * The copy is rendered without image map. It must be taken before the chart is released.
+	 * @return a new, not rendered definition of the same chart image
+	 * @throws IllegalStateException if the chart has been released after rendering
+	 */
+	public ChartImageDefinition getRecipe() {
+		if (chartHolder == null) {
+			throw new IllegalStateException("the chart has been released after rendering");
+		}
+		return new ChartImageDefinition(this);
+	}
+
 	/**
 	 * Returns the height.
 	 * @return int
@@ -99,11 +145,48 @@ public class ChartImageDefinition implements ChartImage, ChartHolder, Serializab
 	}
 
 	public JFreeChart getChart() throws DatasetProduceException, ChartValidationException, PostProcessingException {
-		return chartHolder.getChart();
+		var holder = chartHolder;
+		if (holder == null) {
+			throw new ChartValidationException("the chart has been released after rendering");
+		}
+		return holder.getChart();
 	}
 
 	public Dataset getDataset() throws DatasetProduceException {
-		return chartHolder.getDataset();
+		var holder = chartHolder;
+		if (holder == null) {
+			throw new DatasetProduceException("the dataset has been released after rendering");
+		}
+		return holder.getDataset();
+	}
+
+	/**
+	 * Keeps only the encoded image once it has been rendered. The chart with its dataset
+	 * and the rendering info with its entity collection are released, as soon as the
+	 * image has been rendered or immediately if this has happened already. Must not be
+	 * called before an image map has been written from the rendering info.
+	 */
+	public void retainRenderedOnly() {
+		retainRenderedOnly = true;
+		if (renderedImage != null) {
+			release();
+		}
+	}
+
+	/**
+	 * Drops everything but the encoded image. The key is determined first, it can't
+	 * be generated from the chart any more afterwards.
+	 */
+	private void release() {
+		var image = renderedImage;
+		if (image == null || image.data == null) {
+			return;
+		}
+		getRenderKey();
+		chartHolder = null;
+		if (image.renderingInfo != null) {
+			renderedImage = new RenderedImage(image.data, image.mimeType, null);
+		}
 	}
 
 	/**
@@ -114,23 +197,214 @@ public class ChartImageDefinition implements ChartImage, ChartHolder, Serializab
 		return mimeType;
 	}
 
+	/**
+	 * Returns the rendering info. If an image map is made for this image, it holds
+	 * the chart entities.
+	 */
 	public ChartRenderingInfo getRenderingInfo() throws CewolfException {
 		ensureRendered();
-		return renderedImage.renderingInfo;
+		var image = renderedImage;
+		if (mapped && !hasEntities(image)) {
+			// rendered without entities, e.g. by an equal chart image without image map;
+			// the re-render is coalesced apart from the plain one
+			var rendered = getInstance().render(getRenderKey() + "#mapped", () -> {
+				var current = renderedImage;
+				if (hasEntities(current)) {
+					return current;
+				}
+				var chart = getChart();
+				var start = nanoTime();
+				current = render(this, chart);
+				recordEncoding(nanoTime() - start);
+				renderedImage = current;
+				onImageRendered(current);
+				return current;
+			});
+			if (!hasEntities(renderedImage)) {
+				// the re-render was done for an equal chart image instance
+				renderedImage = rendered;
+			}
+			image = renderedImage;
+		}
+		return image.renderingInfo;
+	}
+
+	private static boolean hasEntities(RenderedImage image) {
+		return image.renderingInfo != null && image.renderingInfo.getEntityCollection() != null;
+	}
+
+	/**
+	 * @see de.laures.cewolf.ChartImage#getContentEncoding()
+	 */
+	public String getContentEncoding() {
+		var image = renderedImage;
+		return image == null ? null : Renderer.getContentEncoding(image.mimeType, image.data);
+	}
+
+	/**
+	 * @see de.laures.cewolf.ChartImage#getEncoderOptions()
+	 */
+	public Map<String,String> getEncoderOptions() {
+		return encoderOptions;
+	}
+
+	/**
+	 * Sets the options for the image encoder. Must be set before the image is rendered.
+	 * @param encoderOptions the options, a serializable map
+	 */
+	public void setEncoderOptions(Map<String,String> encoderOptions) {
+		this.encoderOptions = encoderOptions == null ? Collections.emptyMap() : encoderOptions;
+	}
+
+	/**
+	 * @see de.laures.cewolf.ChartImage#isMapped()
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Sets if an image map is made for this image. Must be set before the image is
+	 * rendered, the default is <code>true</code>.
+	 * @param mapped <code>false</code> to render the image without collecting chart entities
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
 	}
 
 	public byte[] getBytes() throws CewolfException{
+		RenderTimer.current().setChartType(getChartType());
 		ensureRendered();
 		return renderedImage.data;
 	}
 
+	/**
+	 * Renders the image if this has not happened yet. Concurrent callers for the
+	 * same chart wait for a single render and share its result.
+	 */
 	private void ensureRendered() throws CewolfException{
 		if(renderedImage == null){
-			renderedImage = render(this, chartHolder.getChart());
-			onImageRendered(renderedImage);
+			var rendered = getInstance().render(getRenderKey(), () -> {
+				// another thread may have finished the render just before we got here
+				var image = renderedImage;
+				if (image == null) {
+					var chart = getChart();
+					var start = nanoTime();
+					image = render(this, chart);
+					recordEncoding(nanoTime() - start);
+					renderedImage = image;
+					onImageRendered(image);
+				}
+				return image;
+			});
+			if (renderedImage == null) {
+				// the render was done for an equal chart image instance
+				renderedImage = rendered;
+			}
+			if (retainRenderedOnly) {
+				release();
+			}
 		}
 	}
 
+	/**
+	 * Returns the key under which renders of this image are coalesced. It is
+	 * determined before the image is rendered, so it equals the key the storages use.
+	 * It is kept with the definition, as it can't be determined any more once the chart
+	 * has been released.
+	 */
+	private String getRenderKey() {
+		var key = renderKey;
+		if (key == null) {
+			key = generateKey(this);
+			renderKey = key;
+		}
+		return key;
+	}
+
+	/**
+	 * @see de.laures.cewolf.StreamableChartImage#isRendered()
+	 */
+	public boolean isRendered() {
+		return renderedImage != null;
+	}
+
+	/**
+	 * @return <code>true</code> if the chart with its dataset is still held, it is released
+	 * after rendering only if {@link #retainRenderedOnly()} has been called
+	 */
+	public boolean isChartRetained() {
+		return chartHolder != null;
+	}
+
+	/**
+	 * @see de.laures.cewolf.StreamableChartImage#getRenderedImage()
+	 */
+	public RenderedImage getRenderedImage() {
+		var image = renderedImage;
+		return image == null || image.data == null ? null : image;
+	}
+
+	/**
+	 * @see de.laures.cewolf.StreamableChartImage#adoptRenderedImage(RenderedImage)
+	 */
+	public void adoptRenderedImage(RenderedImage image) {
+		if (renderedImage == null) {
+			renderedImage = image;
+			if (retainRenderedOnly) {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Builds the chart, unless the image has been rendered already.
+	 * @see de.laures.cewolf.StreamableChartImage#prepare()
+	 */
+	public void prepare() throws CewolfException {
+		RenderTimer.current().setChartType(getChartType());
+		if (renderedImage == null) {
+			getChart();
+		}
+	}
+
+	/**
+	 * Writes the image into the stream, never gzip compressed. An image which has not
+	 * been rendered before is encoded straight into the stream and is not kept afterwards.
+	 * @see de.laures.cewolf.StreamableChartImage#writeTo(OutputStream)
+	 */
+	public void writeTo(OutputStream out) throws CewolfException, IOException {
+		RenderTimer.current().setChartType(getChartType());
+		var rendered = renderedImage;
+		if (rendered == null) {
+			// don't render a second time if the same chart is being rendered already
+			rendered = getInstance().awaitInFlight(getRenderKey());
+		}
+		if (rendered != null) {
+			// a joined render may be kept compressed
+			Renderer.writeUncompressed(mimeType, rendered.data, out);
+			return;
+		}
+		var chart = getChart();
+		var start = nanoTime();
+		var info = render(this, chart, out);
+		recordEncoding(nanoTime() - start);
+		onImageRendered(new RenderedImage(null, mimeType, info));
+	}
+
+	/**
+	 * @return the type of the chart, or <code>null</code> for charts not defined by a chart tag
+	 */
+	private String getChartType() {
+		return chartType;
+	}
+
+	private void recordEncoding (long nanos) {
+		var chartType = getChartType();
+		RenderTimer.current().add(Phase.ENCODE, nanos);
+		RenderMetrics.getInstance().record(chartType, Phase.ENCODE, nanos);
+	}
+
 	/**
 	 * @see de.laures.cewolf.ChartImage#getSize()
 	 */
@@ -146,15 +420,38 @@ public class ChartImageDefinition implements ChartImage, ChartHolder, Serializab
 		return timeoutTime;
 	}
 
+	/**
+	 * The identity of a chart image is defined by its chart, size, type and MIME type.
+	 * The timeout and the rendered image are left out, so that the same chart shown
+	 * again gets the same key and can reuse an image rendered before.
+	 * @see de.laures.cewolf.taglib.util.Fingerprintable#fingerprint(Fingerprint)
+	 */
+	public void fingerprint (Fingerprint fp) {
+		fp.add(width).add(height).add(type).add(mimeType);
+		fp.add((Object) chartHolder);
+		if (!encoderOptions.isEmpty()) {
+			// left out otherwise, so that the keys of images with default encoding stay as they are
+			fp.add((Object) encoderOptions);
+		}
+	}
+
+	/**
+	 * @see de.laures.cewolf.taglib.util.Fingerprintable#getKnownKey()
+	 */
+	public String getKnownKey() {
+		return renderKey;
+	}
+
 	/**
 	 * Implemented onImageRendered method.
 	 * @see de.laures.cewolf.ChartHolder#onImageRendered(de.laures.cewolf.util.RenderedImage).
 	 * @param renderedImage The image
 	 */
 	private void onImageRendered(RenderedImage renderedImage) {
-		if (chartHolder instanceof ChartImageRenderListener) {
+		var holder = chartHolder;
+		if (holder instanceof ChartImageRenderListener) {
 			// delegate to chartHolder if it's interested...
-			((ChartImageRenderListener) chartHolder).onImageRendered(renderedImage);
+			((ChartImageRenderListener) holder).onImageRendered(renderedImage);
 		}
 	}
 
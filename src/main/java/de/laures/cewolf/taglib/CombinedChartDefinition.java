@@ -11,6 +11,7 @@ import org.jfree.chart.plot.DrawingSupplier;
 
 import de.laures.cewolf.ChartValidationException;
 import de.laures.cewolf.DatasetProduceException;
+import de.laures.cewolf.taglib.util.Fingerprint;
 import static de.laures.cewolf.taglib.CewolfChartFactory.getCombinedChartInstance;
 
 /**
@@ -41,6 +42,12 @@ public class CombinedChartDefinition extends AbstractChartDefinition {
         plotDefinitions.add(pd);
     }
 
+    public void fingerprint (Fingerprint fp) {
+        super.fingerprint(fp);
+        fp.add(layout);
+        fp.add(plotDefinitions);
+    }
+
     protected JFreeChart produceChart() throws DatasetProduceException, ChartValidationException {
         return getCombinedChartInstance(type, title, xAxisLabel, yAxisLabel, plotDefinitions, layout, showLegend);
     }
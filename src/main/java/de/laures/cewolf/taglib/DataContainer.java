@@ -3,6 +3,9 @@
  */
 package de.laures.cewolf.taglib;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Map;
@@ -11,45 +14,89 @@ import org.jfree.data.general.Dataset;
 
 import de.laures.cewolf.DatasetProduceException;
 import de.laures.cewolf.DatasetProducer;
-import de.laures.cewolf.taglib.util.DatasetProductionTimeStore;
+import de.laures.cewolf.taglib.util.DatasetCache;
+import de.laures.cewolf.taglib.util.DatasetProductionTimesKey;
+import de.laures.cewolf.taglib.util.Fingerprint;
+import de.laures.cewolf.taglib.util.Fingerprintable;
+import de.laures.cewolf.taglib.util.ProducerRegistry;
 import static de.laures.cewolf.taglib.util.DatasetProductionTimeStore.getInstance;
 import de.laures.cewolf.taglib.util.KeyGenerator;
 import de.laures.cewolf.util.Assert;
+import de.laures.cewolf.util.RenderMetrics.Phase;
+import de.laures.cewolf.util.RenderTimer;
 import static de.laures.cewolf.util.Assert.check;
 import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 
 /**
  * @author guido
  */
-public class DataContainer implements DataAware, Serializable {
+public class DataContainer implements DataAware, Fingerprintable, Serializable {
 
 	static final long serialVersionUID = 8018224798228025683L;
 
     private transient Dataset data;
     private transient DatasetProducer producer;
+    private transient DatasetProductionTimesKey productionKey;
 
+    private String producerId;
     private Map<String,Object> datasetProductionParams;
     private long datasetProduceTime;
     private boolean useCache = true;
 
     public void setDataProductionConfig(DatasetProducer dsp, Map<String,Object> params, boolean useCache) {
         producer = dsp;
+        producerId = dsp.getProducerId();
         datasetProductionParams = params;
+        productionKey = new DatasetProductionTimesKey(producerId, params);
         this.useCache = useCache;
         checkDataProductionNeed();
     }
 
     public Dataset getDataset() throws DatasetProduceException {
-        check(producer != null, "you need to specifiy a producer for the data of the chart.");
+        check(producerId != null, "you need to specifiy a producer for the data of the chart.");
+        if (producer == null) {
+            // deserialized with a reference to a shared producer
+            producer = ProducerRegistry.getInstance().get(producerId);
+        }
+        check(producer != null, "shared producer " + producerId + " is not registered on this node.");
         if (data == null) {
-            data = (Dataset) producer.produceDataset(datasetProductionParams);
-            var dataCache = getInstance();
-            dataCache.addEntry(producer.getProducerId(), datasetProductionParams, new Date(datasetProduceTime));
+            var start = nanoTime();
+            data = DatasetCache.getInstance().get(productionKey, producer, datasetProductionParams, new Date(datasetProduceTime), useCache);
+            RenderTimer.current().add(Phase.DATASET, nanoTime() - start);
         }
         check(data != null, "your producer of type " + producer.getClass().getName() + " produced a null dataset.");
         return data;
     }
 
+    /**
+     * A producer registered as shared with the {@link ProducerRegistry} is not serialized,
+     * it is looked up by its id on the node the container is deserialized on. Any other
+     * producer may hold per-user state and is serialized with the container.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(ProducerRegistry.getInstance().isShared(producer) ? null : producer);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        producer = (DatasetProducer) in.readObject();
+        if (producerId != null) {
+            productionKey = new DatasetProductionTimesKey(producerId, datasetProductionParams);
+        }
+    }
+
+    /**
+     * The data is identified by the producer, its parameters and the time the data
+     * had been produced. The latter only changes if the producer reports its data as expired.
+     * @see de.laures.cewolf.taglib.util.Fingerprintable#fingerprint(Fingerprint)
+     */
+    public void fingerprint (Fingerprint fp) {
+        fp.add(producerId).add((Object) datasetProductionParams);
+        fp.add(datasetProduceTime).add(useCache);
+    }
+
     /**
      * This method checks if there has been a dataset production 
      * for the same DatasetProvider and parameters. If so the DatasetProducer
@@ -64,16 +111,17 @@ public class DataContainer implements DataAware, Serializable {
      * representation of this and a eventually formally stored object.
      */
     private void checkDataProductionNeed() {
-        final var prodId = producer.getProducerId();
         var dataCache = getInstance();
-        if (useCache && dataCache.containsEntry(prodId, datasetProductionParams)) {
-            var produceTime = dataCache.getProductionTime(prodId, datasetProductionParams);
+        if (useCache) {
+            var produceTime = dataCache.getProductionTime(productionKey);
             // cached data available
-            if (!producer.hasExpired(datasetProductionParams, produceTime)) {
-                this.datasetProduceTime = produceTime.getTime();
-                return;
+            if (produceTime != null) {
+                if (!producer.hasExpired(datasetProductionParams, produceTime)) {
+                    this.datasetProduceTime = produceTime.getTime();
+                    return;
+                }
+                dataCache.removeEntry(productionKey);
             }
-            dataCache.removeEntry(prodId, datasetProductionParams);
         }
         datasetProduceTime = currentTimeMillis();
     }
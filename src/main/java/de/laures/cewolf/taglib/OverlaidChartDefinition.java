@@ -14,6 +14,7 @@ import org.jfree.data.general.Dataset;
 
 import de.laures.cewolf.ChartValidationException;
 import de.laures.cewolf.DatasetProduceException;
+import de.laures.cewolf.taglib.util.Fingerprint;
 import static de.laures.cewolf.taglib.CewolfChartFactory.getOverlaidChartInstance;
 
 /**
@@ -38,6 +39,12 @@ public class OverlaidChartDefinition extends AbstractChartDefinition {
         plotDefinitions.add(pd);
     }
 
+    public void fingerprint (Fingerprint fp) {
+        super.fingerprint(fp);
+        fp.add(xAxisType).add(yAxisType);
+        fp.add(plotDefinitions);
+    }
+
     protected JFreeChart produceChart() throws DatasetProduceException, ChartValidationException {
         return getOverlaidChartInstance(type, title, xAxisLabel, yAxisLabel, xAxisType, yAxisType, plotDefinitions, showLegend);
     }
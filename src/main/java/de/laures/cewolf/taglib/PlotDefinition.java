@@ -41,6 +41,8 @@ import org.jfree.data.xy.XYDataset;
 import de.laures.cewolf.ChartValidationException;
 import de.laures.cewolf.DatasetProduceException;
 import de.laures.cewolf.DatasetProducer;
+import de.laures.cewolf.taglib.util.Fingerprint;
+import de.laures.cewolf.taglib.util.Fingerprintable;
 import static de.laures.cewolf.taglib.ChartConstants.COMBINED_XY;
 import static de.laures.cewolf.taglib.ChartConstants.OVERLAY_CATEGORY;
 import static de.laures.cewolf.taglib.ChartConstants.OVERLAY_XY;
@@ -69,7 +71,7 @@ import static de.laures.cewolf.taglib.PlotTypes.typeList;
  * @author Chris McCann
  * @author Guido Laures
  */
-public class PlotDefinition implements DataAware, Serializable {
+public class PlotDefinition implements DataAware, Fingerprintable, Serializable {
 
 	static final long serialVersionUID = 1789401987855998576L;
 
@@ -233,6 +235,12 @@ public class PlotDefinition implements DataAware, Serializable {
 		}
 	}
 
+	public void fingerprint(Fingerprint fp) {
+		fp.add(type).add(xAxisLabel).add(yAxisLabel);
+		fp.add(xAxisInteger).add(yAxisInteger);
+		dataAware.fingerprint(fp);
+	}
+
 	public void setDataProductionConfig(DatasetProducer dsp, Map<String,Object> params, boolean useCache) {
 		dataAware.setDataProductionConfig(dsp, params, useCache);
 	}
@@ -12,6 +12,7 @@ import org.jfree.data.general.Dataset;
 import de.laures.cewolf.ChartValidationException;
 import de.laures.cewolf.DatasetProduceException;
 import de.laures.cewolf.DatasetProducer;
+import de.laures.cewolf.taglib.util.Fingerprint;
 import static de.laures.cewolf.taglib.CewolfChartFactory.getChartInstance;
 
 /**
@@ -31,6 +32,11 @@ public class SimpleChartDefinition extends AbstractChartDefinition implements Da
         return dataAware.getDataset();
     }
 
+    public void fingerprint (Fingerprint fp) {
+        super.fingerprint(fp);
+        dataAware.fingerprint(fp);
+    }
+
     public void setDataProductionConfig(DatasetProducer dsp, Map<String,Object> params, boolean useCache) {
     	dataAware.setDataProductionConfig(dsp, params, useCache);
     }
@@ -41,6 +41,7 @@ import de.laures.cewolf.ChartImage;
 import static de.laures.cewolf.ChartImage.IMG_TYPE_CHART;
 import de.laures.cewolf.Configuration;
 import static de.laures.cewolf.Configuration.getInstance;
+import static de.laures.cewolf.ImageEncoder.OPTION_GZIP;
 import de.laures.cewolf.Storage;
 import de.laures.cewolf.WebConstants;
 import static de.laures.cewolf.WebConstants.AMPERSAND;
@@ -89,11 +90,32 @@ public class ChartImgTag extends HTMLImgTag implements CewolfRootTag, Mapped
 	protected String             sessionKey        = null;
 
 	private ChartImageDefinition chartImageDefinition;
+	// like width and height not reset, see reset()
+	private final EncoderOptions encoderOptions = new EncoderOptions();
 
   public int doStartTag() throws JspException
   {
     final var chartHolder = getChartHolder(chartId, pageContext);
     this.chartImageDefinition = new ChartImageDefinition(chartHolder, width, height, IMG_TYPE_CHART, mimeType, timeout);
+    if (MIME_SVG.equals(mimeType) && getInstance(pageContext.getServletContext()).isGzippingSVG())
+    {
+      chartImageDefinition.setEncoderOptions(encoderOptions.toMap(OPTION_GZIP, "true"));
+    }
+    else
+    {
+      chartImageDefinition.setEncoderOptions(encoderOptions.toMap());
+    }
+    // a map tag in the body turns mapping on
+    chartImageDefinition.setMapped(false);
+    return EVAL_PAGE;
+  }
+
+  /**
+   * Stores the image once the body has been evaluated, so that a storage rendering
+   * the image right away knows whether an image map is made for it.
+   */
+  protected void storeChartImage() throws JspException
+  {
     var storage = getInstance(pageContext.getServletContext()).getStorage();
     try
     {
@@ -103,7 +125,6 @@ public class ChartImgTag extends HTMLImgTag implements CewolfRootTag, Mapped
     {
       throw new JspException(cwex.getMessage());
     }
-    return EVAL_PAGE;
   }
 
   public int doAfterBody() throws JspException
@@ -132,6 +153,13 @@ public class ChartImgTag extends HTMLImgTag implements CewolfRootTag, Mapped
 
   public int doEndTag() throws JspException
   {
+    storeChartImage();
+    // an image map in the body has been written, the chart is not needed any more once rendered;
+    // released only after storing, a storage may take the recipe to render it on another node
+    if (getInstance(pageContext.getServletContext()).isRetainingRenderedOnly())
+    {
+      chartImageDefinition.retainRenderedOnly();
+    }
     super.doStartTag();
     final var buffer = new StringBuffer(" src=\"");
     buffer.append(getImgURL());
@@ -245,6 +273,7 @@ public class ChartImgTag extends HTMLImgTag implements CewolfRootTag, Mapped
 
   public void enableMapping()
   {
+    chartImageDefinition.setMapped(true);
     setUsemap("#" + chartId);
   }
 
@@ -293,6 +322,87 @@ public class ChartImgTag extends HTMLImgTag implements CewolfRootTag, Mapped
     this.mimeType = mimeType;
   }
 
+  /**
+   * Sets the encoding preset, "fast" or "small".
+   * @see de.laures.cewolf.ImageEncoder#OPTION_ENCODING
+   */
+  public void setEncoding (String encoding)
+  {
+    encoderOptions.setEncoding(encoding);
+  }
+
+  /**
+   * Sets the deflate level of PNG images.
+   * @see de.laures.cewolf.ImageEncoder#OPTION_COMPRESSION
+   */
+  public void setCompression (String compression)
+  {
+    encoderOptions.setCompression(compression);
+  }
+
+  /**
+   * Sets the row filter of PNG images.
+   * @see de.laures.cewolf.ImageEncoder#OPTION_FILTER
+   */
+  public void setFilter (String filter)
+  {
+    encoderOptions.setFilter(filter);
+  }
+
+  /**
+   * Sets the palette of PNG images, "off", "auto" or a number of colors.
+   * @see de.laures.cewolf.ImageEncoder#OPTION_PALETTE
+   */
+  public void setPalette (String palette)
+  {
+    encoderOptions.setPalette(palette);
+  }
+
+  /**
+   * Sets the quality of JPEG images.
+   * @see de.laures.cewolf.ImageEncoder#OPTION_QUALITY
+   */
+  public void setQuality (String quality)
+  {
+    encoderOptions.setQuality(quality);
+  }
+
+  /**
+   * Sets the chroma subsampling of JPEG images.
+   * @see de.laures.cewolf.ImageEncoder#OPTION_SUBSAMPLING
+   */
+  public void setSubsampling (String subsampling)
+  {
+    encoderOptions.setSubsampling(subsampling);
+  }
+
+  /**
+   * Sets the number of decimal places of SVG coordinates.
+   * @see de.laures.cewolf.ImageEncoder#OPTION_PRECISION
+   */
+  public void setPrecision (String precision)
+  {
+    encoderOptions.setPrecision(precision);
+  }
+
+  /**
+   * Sets if SVG images are kept gzip compressed, "true" or "false".
+   * @see de.laures.cewolf.ImageEncoder#OPTION_GZIP
+   */
+  public void setGzip (String gzip)
+  {
+    encoderOptions.setGzip(gzip);
+  }
+
+  /**
+   * Sets the generator of SVG images, "batik" or "stream".
+   * @see de.laures.cewolf.ImageEncoder#OPTION_GENERATOR
+   */
+  public void setGenerator (String generator)
+  {
+    encoderOptions.setGenerator(generator);
+  }
+
   /**
    * @see de.laures.cewolf.taglib.html.AbstractHTMLBaseTag#getTagName()
    */
@@ -53,6 +53,7 @@ public class ChartImgURLTag extends ChartImgTag {
 	String var = null;
     
     public int doEndTag() throws JspException {
+        storeChartImage();
         try {
         	if (var == null) {
 	            pageContext.getOut().write(getImgURL());
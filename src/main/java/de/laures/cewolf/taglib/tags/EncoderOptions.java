@@ -0,0 +1,112 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.taglib.tags;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static de.laures.cewolf.ImageEncoder.OPTION_COMPRESSION;
+import static de.laures.cewolf.ImageEncoder.OPTION_ENCODING;
+import static de.laures.cewolf.ImageEncoder.OPTION_FILTER;
+import static de.laures.cewolf.ImageEncoder.OPTION_GENERATOR;
+import static de.laures.cewolf.ImageEncoder.OPTION_GZIP;
+import static de.laures.cewolf.ImageEncoder.OPTION_PALETTE;
+import static de.laures.cewolf.ImageEncoder.OPTION_PRECISION;
+import static de.laures.cewolf.ImageEncoder.OPTION_QUALITY;
+import static de.laures.cewolf.ImageEncoder.OPTION_SUBSAMPLING;
+
+/**
+ * The encoder options set by the attributes of an image tag.
+ * @see de.laures.cewolf.ImageEncoder
+ */
+class EncoderOptions implements Serializable {
+
+	static final long serialVersionUID = 4473460951732125063L;
+
+	private final TreeMap<String,String> options = new TreeMap<>();
+
+	private void set(String name, String value) {
+		if (value == null || value.trim().isEmpty()) {
+			options.remove(name);
+		} else {
+			options.put(name, value.trim());
+		}
+	}
+
+	void setEncoding(String encoding) {
+		set(OPTION_ENCODING, encoding);
+	}
+
+	void setCompression(String compression) {
+		set(OPTION_COMPRESSION, compression);
+	}
+
+	void setFilter(String filter) {
+		set(OPTION_FILTER, filter);
+	}
+
+	void setPalette(String palette) {
+		set(OPTION_PALETTE, palette);
+	}
+
+	void setQuality(String quality) {
+		set(OPTION_QUALITY, quality);
+	}
+
+	void setSubsampling(String subsampling) {
+		set(OPTION_SUBSAMPLING, subsampling);
+	}
+
+	void setPrecision(String precision) {
+		set(OPTION_PRECISION, precision);
+	}
+
+	void setGenerator(String generator) {
+		set(OPTION_GENERATOR, generator);
+	}
+
+	void setGzip(String gzip) {
+		set(OPTION_GZIP, gzip);
+	}
+
+	/**
+	 * @return a copy of the options set
+	 */
+	Map<String,String> toMap() {
+		return options.isEmpty() ? Collections.emptyMap() : new TreeMap<>(options);
+	}
+
+	/**
+	 * @return a copy of the options set, with the option given if it is not set
+	 */
+	Map<String,String> toMap(String name, String defaultValue) {
+		if (options.containsKey(name)) {
+			return toMap();
+		}
+		var map = new TreeMap<>(options);
+		map.put(name, defaultValue);
+		return map;
+	}
+}
@@ -29,7 +29,6 @@ import jakarta.servlet.jsp.JspException;
 
 import de.laures.cewolf.CewolfException;
 import de.laures.cewolf.ChartHolder;
-import de.laures.cewolf.ChartImage;
 import static de.laures.cewolf.ChartImage.IMG_TYPE_LEGEND;
 import de.laures.cewolf.Configuration;
 import static de.laures.cewolf.Configuration.getInstance;
@@ -64,17 +63,25 @@ public class LegendTag extends HTMLImgTag implements CewolfRootTag {
     private transient String sessionKey;
     private transient String renderer;
     private String mimeType = DEFAULT_MIME_TYPE;
+    // like width and height not reset, see reset()
+    private final EncoderOptions encoderOptions = new EncoderOptions();
 
     public int doStartTag() throws JspException {
         var cd = getChartHolder(getChartId(), pageContext);
-        ChartImage cid = new ChartImageDefinition(cd, width, height, IMG_TYPE_LEGEND, mimeType, timeout);
-        var storage = getInstance(pageContext.getServletContext()).getStorage();
+        var cid = new ChartImageDefinition(cd, width, height, IMG_TYPE_LEGEND, mimeType, timeout);
+        cid.setEncoderOptions(encoderOptions.toMap());
+        var config = getInstance(pageContext.getServletContext());
+        var storage = config.getStorage();
         try {
         	this.sessionKey = storage.storeChartImage(cid, pageContext);
         } catch(CewolfException cwex){
         	log.error("LegendTag.doStartTag: "+cwex.getMessage());
         	throw new JspException(cwex.getMessage());
         }
+        // after storing, a storage may take the recipe to render it on another node
+        if (config.isRetainingRenderedOnly()) {
+        	cid.retainRenderedOnly();
+        }
         return SKIP_BODY;
     }
 
@@ -131,6 +138,22 @@ public class LegendTag extends HTMLImgTag implements CewolfRootTag {
         this.mimeType = mimeType;
     }
 
+    /**
+     * Sets the quality of the JPEG image, by default 1.0.
+     * @see de.laures.cewolf.ImageEncoder#OPTION_QUALITY
+     */
+    public void setQuality(String quality) {
+        encoderOptions.setQuality(quality);
+    }
+
+    /**
+     * Sets the chroma subsampling of the JPEG image.
+     * @see de.laures.cewolf.ImageEncoder#OPTION_SUBSAMPLING
+     */
+    public void setSubsampling(String subsampling) {
+        encoderOptions.setSubsampling(subsampling);
+    }
+
     /**
      * @return Returns the timeout.
      */
@@ -0,0 +1,378 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.taglib.util;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.jfree.data.general.Dataset;
+import org.jfree.util.PublicCloneable;
+
+import de.laures.cewolf.DatasetProduceException;
+import de.laures.cewolf.DatasetProducer;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * Application wide cache of produced datasets, keyed by producer id and production
+ * parameters. A cached dataset is reused as long as its producer does not report it
+ * as expired and, if configured, its time to live has not passed. If the cache is full
+ * the least recently used dataset is evicted.
+ * <p>
+ * The cache is off unless a size is configured. A dataset produced for one user is
+ * handed out to any other user asking for the same producer id and parameters, so it
+ * must only be turned on if no producer's datasets depend on the user, e.g. on the
+ * session or the request.
+ * <p>
+ * If stale-while-revalidate is turned on, an expired dataset is still served while a single
+ * background refresh produces the new one. Concurrent misses for the same key wait for
+ * one production instead of running the producer several times.
+ * <p>
+ * Charts register themselves as listeners of their datasets, so datasets implementing
+ * {@link PublicCloneable} are cloned before they are handed out from the cache.
+ * Other datasets are shared between the charts using them.
+ */
+public class DatasetCache implements DatasetCacheMBean {
+
+	private static final Log log = getLog(DatasetCache.class);
+
+	private static final DatasetCache instance = new DatasetCache();
+
+	private static class Entry {
+
+		final Dataset dataset;
+		final Date produceTime;
+		final long loadedAt;
+		volatile long lastAccess;
+		final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+		Entry (Dataset dataset, Date produceTime) {
+			this.dataset = dataset;
+			this.produceTime = produceTime;
+			loadedAt = currentTimeMillis();
+			lastAccess = loadedAt;
+		}
+	}
+
+	private final ConcurrentHashMap<DatasetProductionTimesKey,Entry> entries = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<DatasetProductionTimesKey,CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+	private volatile int maxSize = 0;
+	private volatile long timeToLive = 0;
+	private volatile boolean staleWhileRevalidate = false;
+	private volatile ExecutorService refresher;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bypasses = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder loadTime = new LongAdder();
+	private final AtomicLong maxLoadTime = new AtomicLong();
+
+	private DatasetCache() { }
+
+	public static final DatasetCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets up the cache. Called by the rendering servlet on startup.
+	 * @param maxSize the maximum number of cached datasets; 0 turns caching off
+	 * @param timeToLive the time in milliseconds after which a dataset is produced again
+	 * even if its producer does not report it as expired; 0 means no limit
+	 * @param staleWhileRevalidate whether to serve expired datasets during a background refresh
+	 */
+	public synchronized void configure (int maxSize, long timeToLive, boolean staleWhileRevalidate) {
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.staleWhileRevalidate = staleWhileRevalidate;
+		if (staleWhileRevalidate && refresher == null) {
+			var threadCount = new AtomicInteger();
+			var executor = new ThreadPoolExecutor(1, 1, 60, SECONDS, new LinkedBlockingQueue<>(), r -> {
+				var thread = new Thread(r, "Cewolf-DatasetRefresh-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.allowCoreThreadTimeOut(true);
+			refresher = executor;
+		}
+		trim();
+	}
+
+	/**
+	 * Stops the background refresh and drops all cached datasets.
+	 */
+	public synchronized void shutdown() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+		clear();
+	}
+
+	/**
+	 * Returns the dataset for the passed producer and parameters, producing it if necessary.
+	 * @param key the key of producer and parameters
+	 * @param producer the producer of the dataset
+	 * @param params the production parameters
+	 * @param produceTime the production time recorded for newly produced data
+	 * @param useCache <code>false</code> to always produce a new dataset
+	 * @return the dataset, or <code>null</code> if the producer returned none
+	 * @throws DatasetProduceException if the production failed
+	 */
+	public Dataset get (DatasetProductionTimesKey key, DatasetProducer producer, Map<String,Object> params,
+			Date produceTime, boolean useCache) throws DatasetProduceException {
+		if (!useCache || maxSize <= 0) {
+			bypasses.increment();
+			return load(key, producer, params, produceTime).dataset;
+		}
+		var entry = entries.get(key);
+		if (entry != null) {
+			entry.lastAccess = currentTimeMillis();
+			if (isFresh(entry, producer, params)) {
+				hits.increment();
+				return copy(entry.dataset);
+			}
+			if (staleWhileRevalidate && refresh(key, entry, producer, params)) {
+				staleHits.increment();
+				return copy(entry.dataset);
+			}
+			entries.remove(key, entry);
+		}
+		misses.increment();
+		return loadShared(key, producer, params, produceTime);
+	}
+
+	private boolean isFresh (Entry entry, DatasetProducer producer, Map<String,Object> params) {
+		if (timeToLive > 0 && currentTimeMillis() - entry.loadedAt > timeToLive) {
+			return false;
+		}
+		return !producer.hasExpired(params, entry.produceTime);
+	}
+
+	/**
+	 * Starts a background refresh unless one is running for this entry already.
+	 * @return <code>false</code> if no refresh could be scheduled
+	 */
+	private boolean refresh (final DatasetProductionTimesKey key, final Entry entry,
+			final DatasetProducer producer, final Map<String,Object> params) {
+		var executor = refresher;
+		if (executor == null) {
+			return false;
+		}
+		if (!entry.refreshing.compareAndSet(false, true)) {
+			return true;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					var fresh = load(key, producer, params, new Date());
+					refreshes.increment();
+					if (fresh.dataset != null) {
+						entries.put(key, fresh);
+					}
+				} catch (DatasetProduceException | RuntimeException ex) {
+					log.warn("background refresh of dataset from " + producer.getProducerId() + " failed", ex);
+					entries.remove(key, entry);
+				} finally {
+					entry.refreshing.set(false);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ex) {
+			entry.refreshing.set(false);
+			return false;
+		}
+	}
+
+	private Dataset loadShared (DatasetProductionTimesKey key, DatasetProducer producer,
+			Map<String,Object> params, Date produceTime) throws DatasetProduceException {
+		var future = new CompletableFuture<Entry>();
+		var running = loading.putIfAbsent(key, future);
+		if (running != null) {
+			return copy(await(running).dataset);
+		}
+		try {
+			var entry = load(key, producer, params, produceTime);
+			if (entry.dataset != null) {
+				entries.put(key, entry);
+				trim();
+			}
+			future.complete(entry);
+			return entry.dataset;
+		} catch (DatasetProduceException | RuntimeException | Error ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			loading.remove(key, future);
+		}
+	}
+
+	private static Entry await (CompletableFuture<Entry> running) throws DatasetProduceException {
+		try {
+			return running.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new DatasetProduceException("interrupted while waiting for dataset", ex);
+		} catch (ExecutionException ex) {
+			var cause = ex.getCause();
+			if (cause instanceof DatasetProduceException) {
+				throw (DatasetProduceException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new DatasetProduceException(cause.getMessage(), ex);
+		}
+	}
+
+	private Entry load (DatasetProductionTimesKey key, DatasetProducer producer, Map<String,Object> params, Date produceTime)
+			throws DatasetProduceException {
+		var start = nanoTime();
+		Dataset dataset;
+		try {
+			dataset = (Dataset) producer.produceDataset(params);
+		} catch (DatasetProduceException | RuntimeException ex) {
+			loadFailures.increment();
+			throw ex;
+		}
+		var elapsed = NANOSECONDS.toMillis(nanoTime() - start);
+		loads.increment();
+		loadTime.add(elapsed);
+		maxLoadTime.accumulateAndGet(elapsed, Math::max);
+		DatasetProductionTimeStore.getInstance().addEntry(key, produceTime);
+		return new Entry(dataset, produceTime);
+	}
+
+	/**
+	 * Evicts the least recently used datasets until the cache fits its maximum size.
+	 */
+	private void trim() {
+		while (entries.size() > maxSize) {
+			Map.Entry<DatasetProductionTimesKey,Entry> eldest = null;
+			for (var candidate : entries.entrySet()) {
+				if (eldest == null || candidate.getValue().lastAccess < eldest.getValue().lastAccess) {
+					eldest = candidate;
+				}
+			}
+			if (eldest == null) {
+				return;
+			}
+			if (entries.remove(eldest.getKey(), eldest.getValue())) {
+				evictions.increment();
+			}
+		}
+	}
+
+	private static Dataset copy (Dataset dataset) throws DatasetProduceException {
+		if (dataset instanceof PublicCloneable) {
+			try {
+				return (Dataset) ((PublicCloneable) dataset).clone();
+			} catch (CloneNotSupportedException ex) {
+				log.debug("dataset of type " + dataset.getClass().getName() + " is shared: " + ex.getMessage());
+			}
+		}
+		return dataset;
+	}
+
+	public int getSize() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public boolean isStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getStaleHitCount() {
+		return staleHits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getBypassCount() {
+		return bypasses.sum();
+	}
+
+	public long getLoadCount() {
+		return loads.sum();
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailures.sum();
+	}
+
+	public long getRefreshCount() {
+		return refreshes.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public long getAverageLoadTime() {
+		var count = loads.sum();
+		return count == 0 ? 0 : loadTime.sum() / count;
+	}
+
+	public long getMaxLoadTime() {
+		return maxLoadTime.get();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+}
@@ -22,35 +22,179 @@
 
 package de.laures.cewolf.taglib.util;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
 
 /**
+ * Remembers when the data of a producer had been produced for a set of parameters.
+ * The store is safe for concurrent use. It keeps at most a configured number of
+ * entries per producer, evicting the oldest ones in batches, and drops entries which are older
+ * than the configured maximum age.
  * @author glaures
  */
-public class DatasetProductionTimeStore extends HashMap<DatasetProductionTimesKey,Date> {
-
-	static final long serialVersionUID = -9086317504718166157L;
+public class DatasetProductionTimeStore implements DatasetProductionTimeStoreMBean {
 
     private static final DatasetProductionTimeStore instance = new DatasetProductionTimeStore();
 
+    private static final long SWEEP_INTERVAL = 60000;
+    /** a producer at its limit is trimmed by this fraction of the limit at once, so the scan for the oldest is rare */
+    private static final int EVICTION_FRACTION = 8;
+
+    private static class Entry {
+
+        final Date produceTime;
+        final long storedAt;
+
+        Entry (Date produceTime) {
+            this.produceTime = produceTime;
+            storedAt = currentTimeMillis();
+        }
+    }
+
+    private final ConcurrentHashMap<String,ConcurrentHashMap<DatasetProductionTimesKey,Entry>> producers = new ConcurrentHashMap<>();
+
+    private volatile int maxEntriesPerProducer = 1000;
+    private volatile long maxAge = 3600000;
+    private final AtomicLong lastSweep = new AtomicLong(currentTimeMillis());
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private DatasetProductionTimeStore() { }
+
     public static final DatasetProductionTimeStore getInstance() {
         return instance;
     }
 
+    /**
+     * Sets the limits of the store. Called by the rendering servlet on startup.
+     * @param maxEntriesPerProducer the maximum number of production times kept per producer
+     * @param maxAge the time in milliseconds after which a production time is dropped; 0 means no limit
+     */
+    public void configure (int maxEntriesPerProducer, long maxAge) {
+        this.maxEntriesPerProducer = maxEntriesPerProducer;
+        this.maxAge = maxAge;
+    }
+
     public boolean containsEntry (String producerId, Map params) {
-        return containsKey(new DatasetProductionTimesKey(producerId, params));
+        return getProductionTime(new DatasetProductionTimesKey(producerId, params)) != null;
     }
 
     public void addEntry (String producerId, Map params, Date produceTime) {
-        put(new DatasetProductionTimesKey(producerId, params), produceTime);
+        addEntry(new DatasetProductionTimesKey(producerId, params), produceTime);
     }
 
     public void removeEntry (String producerId, Map params) {
-        remove(new DatasetProductionTimesKey(producerId, params));
+        removeEntry(new DatasetProductionTimesKey(producerId, params));
     }
 
     public Date getProductionTime (String producerId, Map params) {
-        return get(new DatasetProductionTimesKey(producerId, params));
+        return getProductionTime(new DatasetProductionTimesKey(producerId, params));
+    }
+
+    /**
+     * @param key the production key
+     * @return the production time or <code>null</code> if none is known or it is too old
+     */
+    public Date getProductionTime (DatasetProductionTimesKey key) {
+        lookups.increment();
+        var entries = producers.get(key.getProducerId());
+        if (entries == null) {
+            return null;
+        }
+        var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (isTooOld(entry, currentTimeMillis())) {
+            if (entries.remove(key, entry)) {
+                evictions.increment();
+            }
+            return null;
+        }
+        hits.increment();
+        return entry.produceTime;
+    }
+
+    public void addEntry (DatasetProductionTimesKey key, Date produceTime) {
+        var entry = new Entry(produceTime);
+        // put under the lock of the producer's bin, so that the sweep can't drop the map in between
+        var entries = producers.compute(key.getProducerId(), (id, map) -> {
+            if (map == null) {
+                map = new ConcurrentHashMap<>();
+            }
+            map.put(key, entry);
+            return map;
+        });
+        if (entries.size() > maxEntriesPerProducer) {
+            evictOldest(entries);
+        }
+        sweepIfDue();
+    }
+
+    public void removeEntry (DatasetProductionTimesKey key) {
+        var entries = producers.get(key.getProducerId());
+        if (entries != null) {
+            entries.remove(key);
+        }
+    }
+
+    private boolean isTooOld (Entry entry, long now) {
+        return maxAge > 0 && now - entry.storedAt > maxAge;
+    }
+
+    /**
+     * Evicts the oldest entries of a producer which exceeds its limit, down to the limit
+     * less an eighth of it. The cost of sorting the entries is thus spread over the many
+     * adds until the limit is reached again.
+     */
+    private void evictOldest (ConcurrentHashMap<DatasetProductionTimesKey,Entry> entries) {
+        var max = maxEntriesPerProducer;
+        var keep = Math.max(0, max - Math.max(1, max / EVICTION_FRACTION));
+        var oldestFirst = new ArrayList<>(entries.entrySet());
+        if (oldestFirst.size() <= max) {
+            // trimmed by a concurrent add
+            return;
+        }
+        oldestFirst.sort(Comparator.comparingLong(e -> e.getValue().storedAt));
+        for (var i = 0; i < oldestFirst.size() - keep; i++) {
+            var oldest = oldestFirst.get(i);
+            if (entries.remove(oldest.getKey(), oldest.getValue())) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops all entries which are too old. Runs at most once a minute, on the thread
+     * which happens to add an entry when the interval has passed.
+     */
+    private void sweepIfDue() {
+        var now = currentTimeMillis();
+        var last = lastSweep.get();
+        if (maxAge <= 0 || now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (var entries : producers.values()) {
+            for (var it = entries.values().iterator(); it.hasNext(); ) {
+                if (isTooOld(it.next(), now)) {
+                    it.remove();
+                    evictions.increment();
+                }
+            }
+        }
+        for (var id : producers.keySet()) {
+            // checked again under the bin lock, an entry may have been added meanwhile
+            producers.computeIfPresent(id, (key, entries) -> entries.isEmpty() ? null : entries);
+        }
     }
 
     public String paramsToString (Map params){
@@ -64,4 +208,40 @@ public class DatasetProductionTimeStore extends HashMap<DatasetProductionTimesKe
     	return buf.toString();
     }
 
+    public int getEntryCount() {
+        var count = 0;
+        for (var entries : producers.values()) {
+            count += entries.size();
+        }
+        return count;
+    }
+
+    public int getProducerCount() {
+        return producers.size();
+    }
+
+    public int getMaxEntriesPerProducer() {
+        return maxEntriesPerProducer;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public void clear() {
+        producers.clear();
+    }
+
 }
@@ -22,34 +22,39 @@
 
 package de.laures.cewolf.taglib.util;
 
-import static de.laures.cewolf.taglib.util.KeyGenerator.generateKey;
 import java.io.Serializable;
-import static java.lang.String.valueOf;
 import java.util.Map;
 
 /**
+ * Key of a dataset production: the producer id and the production parameters.
+ * The parameters are hashed once on construction, lookups only compare the hash.
  * @author glaures
  */
-class DatasetProductionTimesKey implements Serializable {
+public final class DatasetProductionTimesKey implements Serializable {
 
-	static final long serialVersionUID = -6015635895045896059L;
+	static final long serialVersionUID = -6015635895045896060L;
 
-	private final int key;
+	private final String producerId;
+	private final long hash1;
+	private final long hash2;
 
 	public DatasetProductionTimesKey(String producerId, Map params){
-		key = generateKey((Serializable) params);
+		this.producerId = producerId;
+		var hash = new Fingerprint().add(producerId).add((Object) params).hash128();
+		hash1 = hash[0];
+		hash2 = hash[1];
 	}
 
-	public int getKey(){
-		return key;
+	public String getProducerId(){
+		return producerId;
 	}
 
 	public String toString() {
-		return valueOf(key);
+		return producerId + ":" + Long.toHexString(hash1) + Long.toHexString(hash2);
 	}
 
 	public int hashCode() {
-		return key;
+		return (int) hash1;
 	}
 
 	public boolean equals(Object o) {
@@ -57,7 +62,8 @@ class DatasetProductionTimesKey implements Serializable {
 			return true;
 		}
 		if (o instanceof DatasetProductionTimesKey) {
-			return key == ((DatasetProductionTimesKey) o).getKey();
+			var other = (DatasetProductionTimesKey) o;
+			return hash1 == other.hash1 && hash2 == other.hash2;
 		}
 		return false;
 	}
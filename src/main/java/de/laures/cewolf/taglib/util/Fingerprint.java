@@ -0,0 +1,175 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.taglib.util;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Collects the identity of a chart as a sequence of values. Objects implementing
+ * {@link Fingerprintable} add their own relevant state, simple values are added
+ * as is and any other serializable object is added in its serialized form.
+ * All values are fed directly into a 128 bit MurmurHash3, nothing is buffered.
+ * @see KeyGenerator
+ */
+public class Fingerprint {
+
+	private static final int NULL = 0;
+	private static final int VALUE = 1;
+
+	private static final Base64.Encoder KEY_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private final Murmur3Hasher hasher = new Murmur3Hasher();
+
+	public Fingerprint add (boolean value) {
+		hasher.write(value ? 1 : 0);
+		return this;
+	}
+
+	public Fingerprint add (int value) {
+		hasher.writeInt(value);
+		return this;
+	}
+
+	public Fingerprint add (long value) {
+		hasher.writeLong(value);
+		return this;
+	}
+
+	public Fingerprint add (double value) {
+		return add(Double.doubleToLongBits(value));
+	}
+
+	public Fingerprint add (String value) {
+		if (value == null) {
+			hasher.write(NULL);
+		} else {
+			hasher.write(VALUE);
+			hasher.writeInt(value.length());
+			for (var i = 0; i < value.length(); i++) {
+				hasher.writeShort(value.charAt(i));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Adds an arbitrary object. Maps are added independent of their iteration order.
+	 * @param value the object to add
+	 * @return this fingerprint
+	 * @throws KeyGenerator.NoKeyException if the object can not be fingerprinted
+	 */
+	public Fingerprint add (Object value) {
+		if (value == null) {
+			return add((String) null);
+		} else if (value instanceof Fingerprintable) {
+			add(value.getClass().getName());
+			((Fingerprintable) value).fingerprint(this);
+		} else if (value instanceof String) {
+			add((String) value);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			add(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			add(((Long) value).longValue());
+		} else if (value instanceof Float || value instanceof Double) {
+			add(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			add(((Boolean) value).booleanValue());
+		} else if (value instanceof Date) {
+			add(((Date) value).getTime());
+		} else if (value.getClass() == Color.class) {
+			add(((Color) value).getRGB());
+		} else if (value instanceof Map) {
+			addMap((Map<?,?>) value);
+		} else if (value instanceof Collection) {
+			var collection = (Collection<?>) value;
+			add(collection.size());
+			for (var element : collection) {
+				add(element);
+			}
+		} else if (value instanceof Serializable) {
+			addSerialized((Serializable) value);
+		} else {
+			throw new KeyGenerator.NoKeyException(value.getClass().getName() + " is not serializable.");
+		}
+		return this;
+	}
+
+	/**
+	 * Every entry is hashed on its own and the entry hashes are summed up,
+	 * which makes the result independent of the iteration order of the map.
+	 */
+	private void addMap (Map<?,?> map) {
+		long sum1 = 0, sum2 = 0;
+		for (var entry : map.entrySet()) {
+			var entryHash = new Fingerprint().add(entry.getKey()).add(entry.getValue()).hasher.finish();
+			sum1 += entryHash[0];
+			sum2 += entryHash[1];
+		}
+		add(map.size()).add(sum1).add(sum2);
+	}
+
+	private void addSerialized (Serializable value) {
+		add(value.getClass().getName());
+		try {
+			var oos = new ObjectOutputStream(hasher);
+			oos.writeObject(value);
+			oos.flush();
+		} catch (IOException ioex) {
+			throw new KeyGenerator.NoKeyException(value.getClass().getName() + " is not serializable.");
+		}
+	}
+
+	/**
+	 * @return the 128 bit hash of all values added so far, the low 64 bits first
+	 */
+	long[] hash128() {
+		return hasher.finish();
+	}
+
+	/**
+	 * @return a 32 bit hash code of all values added so far
+	 */
+	public int hash() {
+		return (int) hasher.finish()[0];
+	}
+
+	/**
+	 * @return the 128 bit hash of all values added so far as a URL safe string of 22 characters
+	 */
+	public String toKey() {
+		var hash = hasher.finish();
+		var bytes = new byte[16];
+		for (var i = 0; i < 8; i++) {
+			bytes[i] = (byte) (hash[0] >>> (i << 3));
+			bytes[i + 8] = (byte) (hash[1] >>> (i << 3));
+		}
+		return KEY_ENCODER.encodeToString(bytes);
+	}
+}
@@ -0,0 +1,47 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.taglib.util;
+
+/**
+ * Implemented by objects which are able to describe their identity as a chart (part).
+ * Only state which influences the rendered image may be added to the fingerprint,
+ * so that equal charts get the same key across page views.
+ * @see KeyGenerator
+ */
+public interface Fingerprintable {
+
+	/**
+	 * Adds the state relevant for the rendered image to the fingerprint.
+	 * @param fp the fingerprint to add to
+	 */
+	public void fingerprint (Fingerprint fp);
+
+	/**
+	 * Returns the key generated for this object before, for objects which drop the
+	 * state their fingerprint is made of.
+	 * @return the key or <code>null</code> to have it generated from the fingerprint
+	 */
+	public default String getKnownKey() {
+		return null;
+	}
+}
@@ -22,9 +22,7 @@
 
 package de.laures.cewolf.taglib.util;
 
-import java.io.IOException;
 import java.io.Serializable;
-import java.rmi.MarshalledObject;
 
 import org.apache.commons.logging.Log;
 import static org.apache.commons.logging.LogFactory.getLog;
@@ -36,7 +34,7 @@ public abstract class KeyGenerator {
 
     private static final Log log = getLog(KeyGenerator.class);
     
-    private static class NoKeyException extends RuntimeException {
+    static class NoKeyException extends RuntimeException {
 
 		static final long serialVersionUID = -6826954827480537636L;
 
@@ -45,17 +43,34 @@ public abstract class KeyGenerator {
         }
     }
 
-    public static int generateKey (Serializable obj) {
+    /**
+     * Generates a key for the passed object. Objects implementing {@link Fingerprintable}
+     * are keyed by their fingerprint, so that only state relevant for the rendered image
+     * is taken into account. Any other object is keyed by its serialized form, which is
+     * streamed into the hash without being buffered.
+     * @param obj the object to generate a key for
+     * @return a URL safe key of 22 characters representing a 128 bit hash
+     */
+    public static String generateKey (Serializable obj) {
         if (obj == null) {
             var ex = new NoKeyException("assertion failed: can not generate key for null,");
             throw ex;
         }
-        try {
-            MarshalledObject mo = new MarshalledObject<>(obj);
-            return mo.hashCode();
-        } catch (IOException ioex) {
-            log.error("KeyGenerator.generate: IOException during key generation KeyGenerator.generateKey(): "+ioex.getMessage());
-            throw new NoKeyException(obj + " is not serializable.");
+        var fp = new Fingerprint();
+        if (obj instanceof Fingerprintable) {
+            var known = ((Fingerprintable) obj).getKnownKey();
+            if (known != null) {
+                return known;
+            }
+            ((Fingerprintable) obj).fingerprint(fp);
+        } else {
+            try {
+                fp.add((Object) obj);
+            } catch (NoKeyException ex) {
+                log.error("KeyGenerator.generateKey(): no key for " + obj.getClass().getName() + ": " + ex.getMessage());
+                throw ex;
+            }
         }
+        return fp.toKey();
     }
 }
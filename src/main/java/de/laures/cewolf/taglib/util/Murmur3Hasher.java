@@ -0,0 +1,131 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.taglib.util;
+
+import java.io.OutputStream;
+
+/**
+ * Streaming implementation of the 128 bit variant of MurmurHash3 (x64).
+ * Bytes are mixed in as they are written, so no buffer of the hashed data is kept.
+ * As an OutputStream it can be fed directly by an ObjectOutputStream.
+ * @see Fingerprint
+ */
+final class Murmur3Hasher extends OutputStream {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private long h1;
+	private long h2;
+	private long k1;
+	private long k2;
+	private int pos;
+	private long length;
+
+	Murmur3Hasher() {
+		this(0);
+	}
+
+	Murmur3Hasher(long seed) {
+		h1 = seed;
+		h2 = seed;
+	}
+
+	public void write (int b) {
+		var value = (long) (b & 0xff);
+		if (pos < 8) {
+			k1 |= value << (pos << 3);
+		} else {
+			k2 |= value << ((pos - 8) << 3);
+		}
+		length++;
+		if (++pos == 16) {
+			mixBlock();
+		}
+	}
+
+	public void write (byte[] b, int off, int len) {
+		for (var i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	void writeShort (int value) {
+		write(value);
+		write(value >>> 8);
+	}
+
+	void writeInt (int value) {
+		write(value);
+		write(value >>> 8);
+		write(value >>> 16);
+		write(value >>> 24);
+	}
+
+	void writeLong (long value) {
+		writeInt((int) value);
+		writeInt((int) (value >>> 32));
+	}
+
+	private void mixBlock() {
+		k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+		h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+		k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+		h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+		k1 = 0;
+		k2 = 0;
+		pos = 0;
+	}
+
+	/**
+	 * Computes the hash of all bytes written so far. The state of the hasher is not
+	 * changed, so writing may continue afterwards.
+	 * @return the 128 bit hash, the low 64 bits first
+	 */
+	long[] finish() {
+		long a = h1, b = h2;
+		if (pos > 0) {
+			long t1 = k1, t2 = k2;
+			t2 *= C2; t2 = Long.rotateLeft(t2, 33); t2 *= C1; b ^= t2;
+			t1 *= C1; t1 = Long.rotateLeft(t1, 31); t1 *= C2; a ^= t1;
+		}
+		a ^= length;
+		b ^= length;
+		a += b;
+		b += a;
+		a = fmix(a);
+		b = fmix(b);
+		a += b;
+		b += a;
+		return new long[] { a, b };
+	}
+
+	private static long fmix (long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
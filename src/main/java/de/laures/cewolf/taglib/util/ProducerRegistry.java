@@ -0,0 +1,79 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.taglib.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.laures.cewolf.DatasetProducer;
+
+/**
+ * Dataset producers shared by all users, by their id. A producer is only put here by
+ * the application, typically on startup on every node, e.g. from a
+ * <code>ServletContextListener</code>. It must hold no per-user state, as a chart
+ * definition refers to a registered producer by its id only when it is serialized, and
+ * after deserialization, e.g. on another node of a cluster, the registered producer is
+ * used for whichever user the chart belongs to. Producers which are not registered are
+ * serialized with the chart definition.
+ */
+public class ProducerRegistry {
+
+	private static final ProducerRegistry instance = new ProducerRegistry();
+
+	private final ConcurrentHashMap<String,DatasetProducer> producers = new ConcurrentHashMap<>();
+
+	private ProducerRegistry() { }
+
+	public static final ProducerRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Registers a producer shared by all users under its id.
+	 * @param producer a producer without per-user state
+	 */
+	public void register (DatasetProducer producer) {
+		var id = producer.getProducerId();
+		if (id == null) {
+			throw new IllegalArgumentException("a shared producer needs an id");
+		}
+		producers.put(id, producer);
+	}
+
+	public void unregister (String producerId) {
+		producers.remove(producerId);
+	}
+
+	/**
+	 * @return the producer registered under the id, or <code>null</code>
+	 */
+	public DatasetProducer get (String producerId) {
+		return producerId == null ? null : producers.get(producerId);
+	}
+
+	/**
+	 * @return <code>true</code> if the producer is the one registered under its id
+	 */
+	public boolean isShared (DatasetProducer producer) {
+		return producer != null && get(producer.getProducerId()) == producer;
+	}
+}
@@ -0,0 +1,83 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+
+import de.laures.cewolf.ImageEncoder;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * The image encoders by MIME type. The built-in encoders for PNG, JPEG and SVG are
+ * always available; encoders found by <code>java.util.ServiceLoader</code> are added
+ * and replace a built-in encoder for the same MIME type.
+ */
+public class ImageEncoders {
+
+	private static final Log log = getLog(ImageEncoders.class);
+
+	private static final Map<String,ImageEncoder> encoders = new ConcurrentHashMap<>();
+
+	static {
+		register(new PngEncoder());
+		register(new JpegEncoder());
+		register(new SvgEncoder());
+		try {
+			for (var encoder : ServiceLoader.load(ImageEncoder.class, ImageEncoders.class.getClassLoader())) {
+				if (!isBuiltIn(encoder)) {
+					log.info("using image encoder " + encoder.getClass().getName() + " for " + encoder.getMimeType());
+					register(encoder);
+				}
+			}
+		} catch (ServiceConfigurationError err) {
+			log.error("could not load image encoders", err);
+		}
+	}
+
+	private ImageEncoders() { }
+
+	private static boolean isBuiltIn (ImageEncoder encoder) {
+		return encoder.getClass().getPackage() == ImageEncoders.class.getPackage();
+	}
+
+	/**
+	 * Registers an encoder, replacing the one registered for the same MIME type.
+	 * @param encoder the encoder
+	 */
+	public static void register (ImageEncoder encoder) {
+		encoders.put(encoder.getMimeType(), encoder);
+	}
+
+	/**
+	 * @param mimeType the MIME type of the image
+	 * @return the encoder or <code>null</code> if the MIME type is not supported
+	 */
+	public static ImageEncoder getEncoder (String mimeType) {
+		return mimeType == null ? null : encoders.get(mimeType);
+	}
+}
@@ -0,0 +1,127 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. durations in microseconds or
+ * sizes in bytes. Each power of two is split into eight buckets, so percentiles
+ * are accurate to about 6%. Recording a value is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BITS = 3;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record (long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	private static int index (long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		var major = 63 - Long.numberOfLeadingZeros(value);
+		var sub = (int) (value >>> (major - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (major - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the value in the middle of the bucket with the passed index
+	 */
+	private static long value (int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		var shift = index / SUB_BUCKETS - 1;
+		var lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) >>> 1);
+	}
+
+	/**
+	 * @param quantile the quantile between 0 and 1, e.g. 0.95
+	 * @return the approximate value below which the passed share of recorded values lie
+	 */
+	public long getPercentile (double quantile) {
+		var total = 0L;
+		var snapshot = new long[BUCKETS];
+		for (var i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		var rank = Math.max(1, (long) Math.ceil(quantile * total));
+		var seen = 0L;
+		for (var i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(value(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMean() {
+		var n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Starts a new window. Values recorded concurrently may end up in either window.
+	 */
+	public void reset() {
+		for (var i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
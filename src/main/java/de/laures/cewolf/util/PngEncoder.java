@@ -0,0 +1,786 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import de.laures.cewolf.WebConstants;
+
+/**
+ * Writes 8 bit RGB PNG images, or RGBA if the image has transparent pixels; the
+ * chart is drawn with alpha, so a transparent background paint is kept. The deflate level is set by the option
+ * <code>compression</code> (default 6, 1 for the "fast" and 9 for the "small"
+ * <code>encoding</code>), the row filter by <code>filter</code>: one of the PNG filters
+ * none (the default), sub, up, average and paeth, or adaptive to pick the best filter
+ * for every row. Charts mostly consist of areas of one color, which deflate best
+ * unfiltered; filters pay off for gradients and background images.
+ * <p>
+ * With the option <code>palette</code> set to auto (the default of the "small"
+ * <code>encoding</code>), images of at most 256 colors are written as palette images
+ * of 1 to 8 bits per pixel, typically a third to a quarter of the size; transparent
+ * colors get their alpha by a tRNS chunk. Set to a number
+ * of colors, the image is reduced to the most frequent colors if it has more, with every
+ * other color replaced by the nearest one kept; for charts that are mostly the
+ * anti-aliased edges. The colors are counted while scanning the raster, which is cut
+ * short if there are too many.
+ * <p>
+ * The scanlines are cut into stripes that are filtered and deflated independently, in
+ * parallel on the common fork/join pool if there is more than one processor. Every stripe
+ * but the first is primed with the last 32K of the scanlines before it as preset
+ * dictionary and all but the last end on a byte boundary, so the stripes simply
+ * concatenate into one zlib stream, compressing nearly as well as a single deflater.
+ * The pixels are read from the raster of the image without copying it.
+ */
+public class PngEncoder extends RasterEncoder {
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int IDAT_SIZE = 64 * 1024;
+	private static final int STRIPE_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final int ADLER_BASE = 65521;
+	private static final int MAX_COUNTED_COLORS = 16384;
+
+	static final int NONE = 0;
+	static final int SUB = 1;
+	static final int UP = 2;
+	static final int AVERAGE = 3;
+	static final int PAETH = 4;
+	static final int ADAPTIVE = 5;
+
+	private static final String[] FILTERS = {"none", "sub", "up", "average", "paeth", "adaptive"};
+
+	public String getMimeType() {
+		return WebConstants.MIME_PNG;
+	}
+
+	protected int getImageType() {
+		return BufferedImage.TYPE_INT_ARGB;
+	}
+
+	public void encode(BufferedImage image, Map<String,String> options, OutputStream out) throws IOException {
+		var palette = getPalette(image, options);
+		if (palette != null) {
+			writeSignature(out, image.getWidth(), image.getHeight(), palette.depth, 3);
+			writeChunk(out, "PLTE", palette.entries, palette.entries.length);
+			if (palette.alphas != null) {
+				writeChunk(out, "tRNS", palette.alphas, palette.alphas.length);
+			}
+			writeImageData(out, new IndexedScanlines(image, palette), getLevel(options), getFilter(options));
+		} else {
+			var alpha = hasAlpha(image);
+			writeSignature(out, image.getWidth(), image.getHeight(), 8, alpha ? 6 : 2);
+			writeImageData(out, new RgbScanlines(image, alpha), getLevel(options), getFilter(options));
+		}
+		writeChunk(out, "IEND", new byte[0], 0);
+	}
+
+	/**
+	 * @return <code>true</code> if any pixel of the image is not fully opaque
+	 */
+	static boolean hasAlpha(BufferedImage image) {
+		if (!image.getColorModel().hasAlpha()) {
+			return false;
+		}
+		var width = image.getWidth();
+		var pixels = getPixels(image);
+		var row = pixels != null ? null : new int[width];
+		for (var y = 0; y < image.getHeight(); y++) {
+			var argb = pixels;
+			var offset = y * width;
+			if (pixels == null) {
+				argb = image.getRGB(0, y, width, 1, row, 0, width);
+				offset = 0;
+			}
+			for (var x = 0; x < width; x++) {
+				if (argb[offset + x] >>> 24 != 0xff) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the palette to write the image with, or <code>null</code> for RGB
+	 */
+	static Palette getPalette(BufferedImage image, Map<String,String> options) {
+		var mode = options.get(OPTION_PALETTE);
+		if (mode == null) {
+			mode = isEncoding(options, "small") ? "auto" : "off";
+		}
+		mode = mode.trim();
+		if ("off".equalsIgnoreCase(mode)) {
+			return null;
+		}
+		if ("auto".equalsIgnoreCase(mode)) {
+			return Palette.create(image, 256, false);
+		}
+		return Palette.create(image, intOption(options, OPTION_PALETTE, 256, 2, 256), true);
+	}
+
+	static int getLevel(Map<String,String> options) {
+		return intOption(options, OPTION_COMPRESSION,
+				isEncoding(options, "fast") ? 1 : isEncoding(options, "small") ? 9 : 6, 0, 9);
+	}
+
+	static int getFilter(Map<String,String> options) {
+		var filter = NONE;
+		var name = options.get(OPTION_FILTER);
+		for (var i = 0; name != null && i < FILTERS.length; i++) {
+			if (FILTERS[i].equalsIgnoreCase(name.trim())) {
+				filter = i;
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Writes the filtered and deflated scanlines as IDAT chunks.
+	 */
+	static void writeImageData(OutputStream out, Scanlines lines, int level, int filter) throws IOException {
+		var rowsPerStripe = Math.max(1, STRIPE_SIZE / (lines.rowBytes + 1));
+		var stripes = new ArrayList<Stripe>();
+		for (var first = 0; first < lines.height; first += rowsPerStripe) {
+			stripes.add(new Stripe(lines, level, filter, first, Math.min(lines.height, first + rowsPerStripe)));
+		}
+		if (stripes.size() > 1 && Runtime.getRuntime().availableProcessors() > 1) {
+			try {
+				for (var done : ForkJoinPool.commonPool().invokeAll(stripes)) {
+					done.get();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while compressing the image", ex);
+			} catch (ExecutionException ex) {
+				throw new IOException("compressing the image failed", ex.getCause());
+			}
+		} else {
+			for (var stripe : stripes) {
+				stripe.call();
+			}
+		}
+		var idat = new ChunkOutputStream(out, "IDAT");
+		// zlib header: deflate with a 32K window, the level hint and the check bits
+		var flags = (level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3) << 6;
+		idat.write(0x78);
+		idat.write(flags + 31 - (0x7800 + flags) % 31);
+		var adler = 1L;
+		for (var stripe : stripes) {
+			idat.write(stripe.deflated);
+			adler = combineAdler(adler, stripe.adler, stripe.length);
+		}
+		var trailer = new byte[4];
+		putInt(trailer, 0, (int) adler);
+		idat.write(trailer, 0, 4);
+		idat.flush();
+	}
+
+	/**
+	 * @return the Adler-32 checksum of two blocks of data from their checksums, as zlib's adler32_combine
+	 */
+	static long combineAdler(long adler1, long adler2, long length2) {
+		var rem = length2 % ADLER_BASE;
+		var sum1 = adler1 & 0xffff;
+		var sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum2 >= ADLER_BASE << 1) {
+			sum2 -= ADLER_BASE << 1;
+		}
+		if (sum2 >= ADLER_BASE) {
+			sum2 -= ADLER_BASE;
+		}
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * @return the pixels of an int RGB or ARGB image without copying them, or <code>null</code>
+	 */
+	static int[] getPixels(BufferedImage image) {
+		if ((image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+				&& image.getRaster().getDataBuffer() instanceof DataBufferInt
+				&& image.getRaster().getParent() == null) {
+			var buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+			if (buffer.getNumBanks() == 1 && buffer.getSize() == image.getWidth() * image.getHeight()) {
+				return buffer.getData();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the PNG signature and the image header.
+	 * @param colorType 2 for RGB, 3 for palette, 6 for RGBA images
+	 */
+	static void writeSignature(OutputStream out, int width, int height, int depth, int colorType) throws IOException {
+		out.write(SIGNATURE);
+		var header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = (byte) depth;
+		header[9] = (byte) colorType;
+		writeChunk(out, "IHDR", header, header.length);
+	}
+
+	static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+		var crc = new CRC32();
+		var typeBytes = type.getBytes("US-ASCII");
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		var dout = new DataOutputStream(out);
+		dout.writeInt(length);
+		dout.write(typeBytes);
+		dout.write(data, 0, length);
+		dout.writeInt((int) crc.getValue());
+	}
+
+	static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * The unfiltered scanlines of an image. Implementations must allow reading rows
+	 * concurrently.
+	 */
+	abstract static class Scanlines {
+
+		final int height;
+		final int rowBytes;
+		final int pixelBytes;
+
+		Scanlines (int height, int rowBytes, int pixelBytes) {
+			this.height = height;
+			this.rowBytes = rowBytes;
+			this.pixelBytes = pixelBytes;
+		}
+
+		/**
+		 * Reads the row <code>y</code> into <code>row</code>.
+		 */
+		abstract void read(int y, byte[] row);
+	}
+
+	/**
+	 * The scanlines of an image as 8 bit RGB or RGBA, read straight from an int raster if it has one.
+	 */
+	static final class RgbScanlines extends Scanlines {
+
+		private final BufferedImage image;
+		private final int width;
+		private final int[] pixels;
+		private final boolean alpha;
+
+		RgbScanlines (BufferedImage image, boolean alpha) {
+			super(image.getHeight(), image.getWidth() * (alpha ? 4 : 3), alpha ? 4 : 3);
+			this.image = image;
+			this.alpha = alpha;
+			width = image.getWidth();
+			pixels = getPixels(image);
+		}
+
+		void read(int y, byte[] row) {
+			int[] rgb;
+			int offset;
+			if (pixels != null) {
+				rgb = pixels;
+				offset = y * width;
+			} else {
+				rgb = image.getRGB(0, y, width, 1, null, 0, width);
+				offset = 0;
+			}
+			for (int x = 0, i = 0; x < width; x++) {
+				var p = rgb[offset + x];
+				row[i++] = (byte) (p >> 16);
+				row[i++] = (byte) (p >> 8);
+				row[i++] = (byte) p;
+				if (alpha) {
+					row[i++] = (byte) (p >>> 24);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The scanlines of an image as palette indexes, packed if less than 8 bits per pixel.
+	 */
+	static final class IndexedScanlines extends Scanlines {
+
+		private final BufferedImage image;
+		private final int width;
+		private final int[] pixels;
+		private final Palette palette;
+
+		IndexedScanlines (BufferedImage image, Palette palette) {
+			super(image.getHeight(), (image.getWidth() * palette.depth + 7) / 8, 1);
+			this.image = image;
+			this.palette = palette;
+			width = image.getWidth();
+			pixels = getPixels(image);
+		}
+
+		void read(int y, byte[] row) {
+			int[] rgb;
+			int offset;
+			if (pixels != null) {
+				rgb = pixels;
+				offset = y * width;
+			} else {
+				rgb = image.getRGB(0, y, width, 1, null, 0, width);
+				offset = 0;
+			}
+			var depth = palette.depth;
+			var perByte = 8 / depth;
+			var last = rgb[offset] | palette.opaque;
+			var index = palette.indexOf(last);
+			var packed = 0;
+			for (var x = 0; x < width; x++) {
+				var color = rgb[offset + x] | palette.opaque;
+				if (color != last) {
+					last = color;
+					index = palette.indexOf(color);
+				}
+				packed = (packed << depth) | index;
+				if (x % perByte == perByte - 1) {
+					row[x / perByte] = (byte) packed;
+					packed = 0;
+				}
+			}
+			if (width % perByte != 0) {
+				row[row.length - 1] = (byte) (packed << (depth * (perByte - width % perByte)));
+			}
+		}
+	}
+
+	/**
+	 * The colors of an image with their alpha and their palette indexes, kept in an open
+	 * addressing hash table.
+	 */
+	static final class Palette {
+
+		private static final long USED = 1L << 32;
+
+		final byte[] entries;
+		final byte[] alphas;
+		final int depth;
+		/** the alpha bits to set on the pixels of an image without alpha, whose raster may leave them 0 */
+		final int opaque;
+		private final long[] colors;
+		private final int[] indexes;
+
+		private Palette (byte[] entries, byte[] alphas, int opaque, long[] colors, int[] indexes) {
+			this.entries = entries;
+			this.alphas = alphas;
+			this.opaque = opaque;
+			this.colors = colors;
+			this.indexes = indexes;
+			var size = entries.length / 3;
+			depth = size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+		}
+
+		/**
+		 * Counts the colors of the image.
+		 * @param reduce whether to reduce the image to the <code>maxColors</code> most frequent
+		 * colors if it has more
+		 * @return the palette, or <code>null</code> if the image has too many colors
+		 */
+		static Palette create(BufferedImage image, int maxColors, boolean reduce) {
+			var limit = reduce ? MAX_COUNTED_COLORS : maxColors;
+			var opaque = image.getColorModel().hasAlpha() ? 0 : 0xff000000;
+			var colors = new long[64];
+			var counts = new int[64];
+			var size = 0;
+			var width = image.getWidth();
+			var pixels = getPixels(image);
+			var row = pixels != null ? null : new int[width];
+			var slot = -1;
+			var last = 0;
+			for (var y = 0; y < image.getHeight(); y++) {
+				var argb = pixels;
+				var offset = y * width;
+				if (pixels == null) {
+					argb = image.getRGB(0, y, width, 1, row, 0, width);
+					offset = 0;
+				}
+				for (var x = 0; x < width; x++) {
+					var color = argb[offset + x] | opaque;
+					if (slot < 0 || color != last) {
+						last = color;
+						slot = find(colors, color);
+						if (counts[slot] == 0) {
+							if (++size > limit) {
+								return null;
+							}
+							colors[slot] = key(color);
+							if (size * 2 > colors.length) {
+								var grownColors = new long[colors.length * 2];
+								var grownCounts = new int[colors.length * 2];
+								for (var i = 0; i < colors.length; i++) {
+									if (colors[i] != 0) {
+										var to = find(grownColors, (int) colors[i]);
+										grownColors[to] = colors[i];
+										grownCounts[to] = counts[i];
+									}
+								}
+								colors = grownColors;
+								counts = grownCounts;
+								slot = find(colors, color);
+							}
+						}
+					}
+					counts[slot]++;
+				}
+			}
+			// the most frequent colors first
+			var order = new long[size];
+			for (int i = 0, n = 0; i < colors.length; i++) {
+				if (counts[i] != 0) {
+					order[n++] = ((long) counts[i] << 32) | i;
+				}
+			}
+			Arrays.sort(order);
+			var kept = Math.min(size, maxColors);
+			var entries = new byte[kept * 3];
+			var alphas = new byte[kept];
+			var translucent = 0;
+			var indexes = new int[colors.length];
+			for (var n = 0; n < size; n++) {
+				var i = (int) order[size - 1 - n];
+				var color = (int) colors[i];
+				if (n < kept) {
+					entries[n * 3] = (byte) (color >> 16);
+					entries[n * 3 + 1] = (byte) (color >> 8);
+					entries[n * 3 + 2] = (byte) color;
+					alphas[n] = (byte) (color >>> 24);
+					if (color >>> 24 != 0xff) {
+						translucent = n + 1;
+					}
+					indexes[i] = n;
+				} else {
+					indexes[i] = nearest(entries, alphas, color);
+				}
+			}
+			// the alpha of the entries after the last translucent one defaults to opaque
+			return new Palette(entries, translucent == 0 ? null : Arrays.copyOf(alphas, translucent), opaque, colors, indexes);
+		}
+
+		/**
+		 * @return the color as kept in the table, with the bit above the ARGB bits set to
+		 * tell transparent black from free slots
+		 */
+		private static long key(int color) {
+			return (color & 0xffffffffL) | USED;
+		}
+
+		/**
+		 * @return the slot of the color, or the free slot to put it in
+		 */
+		private static int find(long[] colors, int color) {
+			var mask = colors.length - 1;
+			var key = key(color);
+			var slot = (color * 0x9E3779B9) >>> 16 & mask;
+			while (colors[slot] != key && colors[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * @return the index of the palette entry closest to the color
+		 */
+		private static int nearest(byte[] entries, byte[] alphas, int color) {
+			var a = color >>> 24;
+			var r = (color >> 16) & 0xff;
+			var g = (color >> 8) & 0xff;
+			var b = color & 0xff;
+			var best = 0;
+			var bestDistance = Integer.MAX_VALUE;
+			for (var i = 0; i < entries.length / 3; i++) {
+				var da = a - (alphas[i] & 0xff);
+				var dr = r - (entries[i * 3] & 0xff);
+				var dg = g - (entries[i * 3 + 1] & 0xff);
+				var db = b - (entries[i * 3 + 2] & 0xff);
+				// weighted by the sensitivity of the eye, a wrong alpha shows on any background
+				var distance = 4 * da * da + 2 * dr * dr + 4 * dg * dg + 3 * db * db;
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					best = i;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * @return the palette index for the ARGB color, which must have been counted
+		 */
+		int indexOf(int color) {
+			return indexes[find(colors, color)];
+		}
+	}
+
+	/**
+	 * Filters and deflates the rows <code>first</code> up to <code>last</code> into a raw
+	 * deflate stream that continues the stream of the stripe before.
+	 */
+	static final class Stripe implements Callable<Stripe> {
+
+		private final Scanlines lines;
+		private final int level;
+		private final int filter;
+		private final int first;
+		private final int last;
+		byte[] deflated;
+		long adler;
+		long length;
+
+		Stripe (Scanlines lines, int level, int filter, int first, int last) {
+			this.lines = lines;
+			this.level = level;
+			this.filter = filter;
+			this.first = first;
+			this.last = last;
+		}
+
+		public Stripe call() {
+			var filterer = new RowFilter(lines, filter);
+			var lineBytes = lines.rowBytes + 1;
+			var deflater = new Deflater(level, true);
+			try {
+				if (first > 0) {
+					// filter the rows before again to get the dictionary the deflater before ended with
+					var dictionaryRows = Math.min(first, (DICTIONARY_SIZE + lineBytes - 1) / lineBytes);
+					var from = first - dictionaryRows;
+					if (from > 0) {
+						filterer.filter(from - 1);
+					}
+					var dictionary = new byte[dictionaryRows * lineBytes];
+					for (var y = from; y < first; y++) {
+						System.arraycopy(filterer.filter(y), 0, dictionary, (y - from) * lineBytes, lineBytes);
+					}
+					var size = Math.min(DICTIONARY_SIZE, dictionary.length);
+					deflater.setDictionary(dictionary, dictionary.length - size, size);
+				}
+				var out = new ByteArrayOutputStream(Math.max(64, (last - first) * lineBytes / 8));
+				var buffer = new byte[8192];
+				var checksum = new Adler32();
+				for (var y = first; y < last; y++) {
+					var line = filterer.filter(y);
+					checksum.update(line);
+					deflater.setInput(line);
+					while (!deflater.needsInput()) {
+						out.write(buffer, 0, deflater.deflate(buffer));
+					}
+				}
+				if (last == lines.height) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						out.write(buffer, 0, deflater.deflate(buffer));
+					}
+				} else {
+					// end on a byte boundary so the next stripe can follow directly
+					int n;
+					do {
+						n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						out.write(buffer, 0, n);
+					} while (n == buffer.length);
+				}
+				deflated = out.toByteArray();
+				adler = checksum.getValue();
+				length = (long) (last - first) * lineBytes;
+			} finally {
+				deflater.end();
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Turns rows of pixels into filtered scanlines, each starting with its filter type.
+	 */
+	static final class RowFilter {
+
+		private final Scanlines lines;
+		private final int filter;
+		private final int bpp;
+		private byte[] prior;
+		private byte[] raw;
+		private final byte[][] candidates = new byte[5][];
+
+		RowFilter (Scanlines lines, int filter) {
+			this.lines = lines;
+			this.filter = filter;
+			bpp = lines.pixelBytes;
+			prior = new byte[lines.rowBytes];
+			raw = new byte[lines.rowBytes];
+			for (var i = 0; i < candidates.length; i++) {
+				if (filter == ADAPTIVE || filter == i) {
+					candidates[i] = new byte[lines.rowBytes + 1];
+					candidates[i][0] = (byte) i;
+				}
+			}
+		}
+
+		/**
+		 * Reads and filters the row <code>y</code>, following the row filtered before.
+		 * @return the filtered scanline, valid until the next call
+		 */
+		byte[] filter(int y) {
+			lines.read(y, raw);
+			byte[] best;
+			if (filter == ADAPTIVE && Arrays.equals(raw, prior)) {
+				// repeated rows, common in charts, are all zeros with up; no need to try the others
+				best = candidates[UP];
+				apply(UP, best);
+			} else if (filter == ADAPTIVE) {
+				best = null;
+				var bestSum = Long.MAX_VALUE;
+				for (var type = NONE; type <= PAETH; type++) {
+					var sum = apply(type, candidates[type]);
+					if (sum < bestSum) {
+						bestSum = sum;
+						best = candidates[type];
+					}
+				}
+			} else {
+				best = candidates[filter];
+				apply(filter, best);
+			}
+			var swap = prior;
+			prior = raw;
+			raw = swap;
+			return best;
+		}
+
+		/**
+		 * Filters the raw row into the scanline.
+		 * @return the sum of the filtered bytes as signed values, the usual estimate of compressibility
+		 */
+		private long apply(int type, byte[] line) {
+			var sum = 0L;
+			var n = raw.length;
+			for (var i = 0; i < n; i++) {
+				var a = i >= bpp ? raw[i - bpp] & 0xff : 0;
+				var b = prior[i] & 0xff;
+				int v;
+				switch (type) {
+					case SUB:
+						v = raw[i] - a;
+						break;
+					case UP:
+						v = raw[i] - b;
+						break;
+					case AVERAGE:
+						v = raw[i] - ((a + b) >>> 1);
+						break;
+					case PAETH:
+						v = raw[i] - paeth(a, b, i >= bpp ? prior[i - bpp] & 0xff : 0);
+						break;
+					default:
+						v = raw[i];
+				}
+				line[i + 1] = (byte) v;
+				sum += Math.abs((byte) v);
+			}
+			return sum;
+		}
+
+		private static int paeth(int a, int b, int c) {
+			var p = a + b - c;
+			var pa = Math.abs(p - a);
+			var pb = Math.abs(p - b);
+			var pc = Math.abs(p - c);
+			if (pa <= pb && pa <= pc) {
+				return a;
+			}
+			return pb <= pc ? b : c;
+		}
+	}
+
+	/**
+	 * Cuts the stream written into chunks of the given type.
+	 */
+	static final class ChunkOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private final String type;
+		private final byte[] buffer = new byte[IDAT_SIZE];
+		private int count;
+
+		ChunkOutputStream (OutputStream out, String type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					flush();
+				}
+				var n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Writes the buffered data as a chunk.
+		 */
+		public void flush() throws IOException {
+			if (count > 0) {
+				writeChunk(out, type, buffer, count);
+				count = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.jfree.chart.ChartRenderingInfo;
+import org.jfree.chart.JFreeChart;
+
+import de.laures.cewolf.ImageEncoder;
+
+/**
+ * Base class of encoders for raster images. The chart is drawn into an image of the
+ * type the encoder asks for, which is then encoded; legends are drawn by the renderer
+ * and only encoded here.
+ */
+public abstract class RasterEncoder implements ImageEncoder {
+
+	public void encode(JFreeChart chart, int width, int height, ChartRenderingInfo info,
+			Map<String,String> options, OutputStream out) throws IOException {
+		encode(chart.createBufferedImage(width, height, getImageType(), info), options, out);
+	}
+
+	/**
+	 * @return the type of the image the chart is drawn into, RGB unless the format
+	 * can keep transparency
+	 */
+	protected int getImageType() {
+		return BufferedImage.TYPE_INT_RGB;
+	}
+
+	/**
+	 * Encodes an image drawn already.
+	 * @param image the image
+	 * @param options the encoder options, never <code>null</code>
+	 * @param out the stream to write to, it is not closed
+	 * @throws IOException if writing to the stream failed
+	 */
+	public abstract void encode(BufferedImage image, Map<String,String> options, OutputStream out) throws IOException;
+
+	/**
+	 * @return <code>true</code> if the options ask for the given encoding preset
+	 */
+	protected static boolean isEncoding(Map<String,String> options, String encoding) {
+		return encoding.equalsIgnoreCase(options.get(OPTION_ENCODING));
+	}
+
+	/**
+	 * @return the option as int within the given bounds, or the default value if it is not set
+	 */
+	protected static int intOption(Map<String,String> options, String name, int defaultValue, int min, int max) {
+		var value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(min, Math.min(max, Integer.parseInt(value.trim())));
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return the option as float within the given bounds, or the default value if it is not set
+	 */
+	protected static float floatOption(Map<String,String> options, String name, float defaultValue, float min, float max) {
+		var value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(min, Math.min(max, Float.parseFloat(value.trim())));
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+}
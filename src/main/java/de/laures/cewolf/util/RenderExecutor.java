@@ -0,0 +1,259 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * Bounded executor which renders charts off the container's request threads.
+ * Tasks which can not be queued are rejected right away, tasks which waited
+ * longer than the configured timeout in the queue are told so when they start,
+ * so that the caller can answer with a fallback instead of a stale render.
+ * Jobs either run on a fixed pool of platform threads or, if the runtime supports
+ * them, each on a virtual thread of its own. Virtual threads are started right away
+ * and wait on a semaphore for one of the <code>threads</code> permits, so a render
+ * blocked on I/O while producing its dataset costs no platform thread.
+ */
+public class RenderExecutor {
+
+	private static final Log log = getLog(RenderExecutor.class);
+
+	/**
+	 * A render job. The queue wait is passed in so the job can decide to give up.
+	 */
+	public interface Task {
+
+		/**
+		 * Runs the job.
+		 * @param timedOut <code>true</code> if the job waited longer than the queue timeout
+		 */
+		void run(boolean timedOut);
+	}
+
+	/** the platform thread pool, <code>null</code> if virtual threads are used */
+	private final ThreadPoolExecutor executor;
+	/** the factory of the virtual threads, <code>null</code> if platform threads are used */
+	private final ThreadFactory virtualThreads;
+	/** permits for jobs running or waiting on a virtual thread */
+	private final Semaphore admitted;
+	/** permits for jobs running on a virtual thread */
+	private final Semaphore running;
+	private final int capacity;
+	private final Set<Thread> started = ConcurrentHashMap.newKeySet();
+	private volatile boolean shutdown;
+	private final long queueTimeout;
+
+	private final LongAdder queueWaitTotal = new LongAdder();
+	private final LongAdder tasksStarted = new LongAdder();
+	private final AtomicLong queueWaitMax = new AtomicLong();
+	private final AtomicInteger rejected = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * @param threads maximum number of jobs running at the same time
+	 * @param virtual if virtual threads should be used for the jobs
+	 * @param queueSize maximum number of render jobs waiting to run
+	 * @param queueTimeout maximum time in milliseconds a job may wait in the queue
+	 */
+	public RenderExecutor (int threads, boolean virtual, int queueSize, long queueTimeout) {
+		this.queueTimeout = queueTimeout;
+		this.capacity = threads + queueSize;
+		var threadFactory = virtual ? getVirtualThreadFactory() : null;
+		if (virtual && threadFactory == null)
+			log.warn("virtual threads are not supported by this runtime, using platform threads");
+		if (threadFactory != null) {
+			executor = null;
+			virtualThreads = threadFactory;
+			admitted = new Semaphore(capacity);
+			running = new Semaphore(threads);
+		} else {
+			executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS,
+					new ArrayBlockingQueue<>(queueSize), new PlatformThreadFactory());
+			virtualThreads = null;
+			admitted = null;
+			running = null;
+		}
+	}
+
+	/**
+	 * Queues a render job.
+	 * @param task the job
+	 * @return <code>false</code> if the queue is full and the job was rejected
+	 */
+	public boolean submit (final Task task) {
+		final var queued = currentTimeMillis();
+		if (executor != null) {
+			try {
+				executor.execute(() -> run(task, queued));
+				return true;
+			} catch (RejectedExecutionException ex) {
+				rejected.incrementAndGet();
+				return false;
+			}
+		}
+		if (shutdown || !admitted.tryAcquire()) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		try {
+			var thread = virtualThreads.newThread(() -> {
+				try {
+					running.acquire();
+				} catch (InterruptedException ex) {
+					// shut down while waiting, the job is told it timed out
+					rejected.incrementAndGet();
+					try {
+						task.run(true);
+					} finally {
+						started.remove(Thread.currentThread());
+						admitted.release();
+					}
+					return;
+				}
+				try {
+					run(task, queued);
+				} finally {
+					running.release();
+				}
+			});
+			started.add(thread);
+			thread.start();
+			return true;
+		} catch (RuntimeException | Error ex) {
+			admitted.release();
+			log.error("could not start render thread", ex);
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	private void run (Task task, long queued) {
+		var wait = currentTimeMillis() - queued;
+		queueWaitTotal.add(wait);
+		tasksStarted.increment();
+		queueWaitMax.accumulateAndGet(wait, Math::max);
+		var timedOut = wait > queueTimeout;
+		if (timedOut)
+			rejected.incrementAndGet();
+		active.incrementAndGet();
+		try {
+			task.run(timedOut);
+		} finally {
+			active.decrementAndGet();
+			if (admitted != null) {
+				started.remove(Thread.currentThread());
+				admitted.release();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting new jobs and waits a short while for the running ones.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				if (!executor.awaitTermination(queueTimeout, MILLISECONDS))
+					executor.shutdownNow();
+			} catch (InterruptedException ex) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		shutdown = true;
+		try {
+			// all permits are back once the last job has finished
+			if (admitted.tryAcquire(capacity, queueTimeout, MILLISECONDS))
+				return;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		started.forEach(Thread::interrupt);
+	}
+
+	public int getQueueDepth() {
+		return executor != null ? executor.getQueue().size() : running.getQueueLength();
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getAverageQueueWait() {
+		var started = tasksStarted.sum();
+		return started == 0 ? 0 : queueWaitTotal.sum() / started;
+	}
+
+	public long getMaxQueueWait() {
+		return queueWaitMax.get();
+	}
+
+	public int getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Looks up <code>Thread.ofVirtual().factory()</code> reflectively, so this
+	 * class still runs on runtimes without virtual threads.
+	 * @return the factory or <code>null</code> if virtual threads are not available
+	 */
+	private static ThreadFactory getVirtualThreadFactory() {
+		try {
+			// go through the public Thread.Builder interface, the implementation classes are internal
+			var builderClass = Class.forName("java.lang.Thread$Builder");
+			var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Cewolf-Render-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	private static class PlatformThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread (Runnable r) {
+			var thread = new Thread(r, "Cewolf-Render-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Usage counters and latency histograms per chart type and per chart post processor
+ * class. All updates are lock-free. Latencies are kept in microseconds.
+ */
+public class RenderMetrics {
+
+	private static final RenderMetrics instance = new RenderMetrics();
+
+	private static final String UNKNOWN = "unknown";
+
+	/**
+	 * The phases of producing and sending a chart image.
+	 */
+	public enum Phase {
+		STORAGE("storage"), DATASET("dataset"), BUILD("build"), CPP("cpp"), ENCODE("encode"), WRITE("write");
+
+		private final String label;
+
+		Phase (String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private static class ChartStats {
+
+		final LongAdder uses = new LongAdder();
+		final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+		final LatencyHistogram bytes = new LatencyHistogram();
+
+		ChartStats() {
+			for (var i = 0; i < phases.length; i++) {
+				phases[i] = new LatencyHistogram();
+			}
+		}
+
+		void reset() {
+			uses.reset();
+			for (var phase : phases) {
+				phase.reset();
+			}
+			bytes.reset();
+		}
+	}
+
+	private static class CppStats {
+
+		final LongAdder uses = new LongAdder();
+		final LatencyHistogram time = new LatencyHistogram();
+
+		void reset() {
+			uses.reset();
+			time.reset();
+		}
+	}
+
+	private final ConcurrentHashMap<String,ChartStats> charts = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,CppStats> cpps = new ConcurrentHashMap<>();
+	private volatile Date since = new Date();
+
+	private RenderMetrics() { }
+
+	public static final RenderMetrics getInstance() {
+		return instance;
+	}
+
+	private ChartStats chart (String type) {
+		return charts.computeIfAbsent(type == null ? UNKNOWN : type, t -> new ChartStats());
+	}
+
+	private CppStats cpp (String className) {
+		return cpps.computeIfAbsent(className, c -> new CppStats());
+	}
+
+	public void chartUsed (String type) {
+		chart(type).uses.increment();
+	}
+
+	public void cppUsed (String className) {
+		cpp(className).uses.increment();
+	}
+
+	/**
+	 * Counts a run of a post processor and records how long it took.
+	 * @param className the class of the post processor
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void cppProcessed (String className, long nanos) {
+		var stats = cpp(className);
+		stats.uses.increment();
+		stats.time.record(NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records the duration of a phase.
+	 * @param type the chart type, may be <code>null</code> if unknown
+	 * @param phase the phase
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record (String type, Phase phase, long nanos) {
+		chart(type).phases[phase.ordinal()].record(NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records the size of an image sent to a client.
+	 * @param type the chart type, may be <code>null</code> if unknown
+	 * @param bytes the number of bytes written
+	 */
+	public void written (String type, long bytes) {
+		chart(type).bytes.record(bytes);
+	}
+
+	public int getCppCount() {
+		var count = 0L;
+		for (var stats : cpps.values()) {
+			count += stats.uses.sum();
+		}
+		return (int) count;
+	}
+
+	public Map<String,Integer> getChartUsage() {
+		var usage = new TreeMap<String,Integer>();
+		charts.forEach((type, stats) -> usage.put(type, (int) stats.uses.sum()));
+		return usage;
+	}
+
+	public Map<String,Integer> getCppUsage() {
+		var usage = new TreeMap<String,Integer>();
+		cpps.forEach((className, stats) -> usage.put(className, (int) stats.uses.sum()));
+		return usage;
+	}
+
+	/**
+	 * @return per chart type and phase a summary like <code>n=10 p50=1.2ms p95=3.4ms p99=5.0ms max=5.1ms</code>,
+	 * keyed by <code>type/phase</code>
+	 */
+	public Map<String,String> getChartLatencies() {
+		var latencies = new TreeMap<String,String>();
+		charts.forEach((type, stats) -> {
+			for (var phase : Phase.values()) {
+				var histogram = stats.phases[phase.ordinal()];
+				if (histogram.getCount() > 0) {
+					latencies.put(type + "/" + phase.getLabel(), summary(histogram, true));
+				}
+			}
+			if (stats.bytes.getCount() > 0) {
+				latencies.put(type + "/bytes", summary(stats.bytes, false));
+			}
+		});
+		return latencies;
+	}
+
+	/**
+	 * @return per post processor class a summary of its processing times
+	 */
+	public Map<String,String> getCppLatencies() {
+		var latencies = new TreeMap<String,String>();
+		cpps.forEach((className, stats) -> {
+			if (stats.time.getCount() > 0) {
+				latencies.put(className, summary(stats.time, true));
+			}
+		});
+		return latencies;
+	}
+
+	private static String summary (LatencyHistogram histogram, boolean micros) {
+		return "n=" + histogram.getCount()
+				+ " p50=" + format(histogram.getPercentile(0.5), micros)
+				+ " p95=" + format(histogram.getPercentile(0.95), micros)
+				+ " p99=" + format(histogram.getPercentile(0.99), micros)
+				+ " max=" + format(histogram.getMax(), micros);
+	}
+
+	private static String format (long value, boolean micros) {
+		return micros ? (value / 1000.0) + "ms" : value + "B";
+	}
+
+	/**
+	 * @return the start of the current statistics window
+	 */
+	public Date getSince() {
+		return since;
+	}
+
+	/**
+	 * Clears all counters and histograms and starts a new window.
+	 */
+	public void reset() {
+		charts.values().forEach(ChartStats::reset);
+		cpps.values().forEach(CppStats::reset);
+		since = new Date();
+	}
+}
@@ -0,0 +1,143 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.laures.cewolf.CewolfException;
+import de.laures.cewolf.ChartRenderingException;
+
+/**
+ * Registry of the renders currently in progress, keyed by chart key. If a chart
+ * is requested while the same chart is being rendered by another thread (e.g. by
+ * the browser, a map tag and a prefetching proxy at the same time), the caller
+ * waits for that render and gets its result instead of rendering again.
+ */
+public class RenderRegistry {
+
+	private static final RenderRegistry instance = new RenderRegistry();
+
+	/**
+	 * A render which is only executed if no other thread renders the same chart.
+	 */
+	public interface RenderJob {
+
+		RenderedImage render() throws CewolfException;
+	}
+
+	private final ConcurrentHashMap<String,CompletableFuture<RenderedImage>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder renders = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	private RenderRegistry() { }
+
+	public static final RenderRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Executes the job, unless a render for the same key is in progress already.
+	 * In that case the result of the running render is returned.
+	 * @param key the chart key
+	 * @param job the render to execute
+	 * @return the rendered image
+	 * @throws CewolfException if the render failed
+	 */
+	public RenderedImage render (String key, RenderJob job) throws CewolfException {
+		var future = new CompletableFuture<RenderedImage>();
+		var running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			coalesced.increment();
+			return await(running);
+		}
+		try {
+			var image = job.render();
+			renders.increment();
+			future.complete(image);
+			return image;
+		} catch (CewolfException | RuntimeException | Error ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * Waits for a render in progress.
+	 * @param key the chart key
+	 * @return the rendered image or <code>null</code> if no render is in progress for this key
+	 * @throws CewolfException if the running render failed
+	 */
+	public RenderedImage awaitInFlight (String key) throws CewolfException {
+		var running = inFlight.get(key);
+		if (running == null) {
+			return null;
+		}
+		coalesced.increment();
+		return await(running);
+	}
+
+	private static RenderedImage await (CompletableFuture<RenderedImage> running) throws CewolfException {
+		try {
+			return running.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ChartRenderingException("interrupted while waiting for chart", ex);
+		} catch (ExecutionException ex) {
+			var cause = ex.getCause();
+			if (cause instanceof CewolfException) {
+				throw (CewolfException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ChartRenderingException(cause.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * @return the number of renders currently in progress
+	 */
+	public int getRendersInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the number of renders actually executed
+	 */
+	public long getRenderCount() {
+		return renders.sum();
+	}
+
+	/**
+	 * @return the number of requests which were served by waiting for another thread's render
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+}
@@ -0,0 +1,76 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import de.laures.cewolf.util.RenderMetrics.Phase;
+
+/**
+ * Collects the time spent in the phases of a chart render on the current thread,
+ * so that phases measured in different places (e.g. the dataset production inside
+ * the chart construction) can be told apart.
+ */
+public final class RenderTimer {
+
+	private static final ThreadLocal<RenderTimer> current = ThreadLocal.withInitial(RenderTimer::new);
+
+	private final long[] nanos = new long[Phase.values().length];
+	private String chartType;
+
+	private RenderTimer() { }
+
+	/**
+	 * @return the timer of the current thread
+	 */
+	public static RenderTimer current() {
+		return current.get();
+	}
+
+	public void add (Phase phase, long time) {
+		nanos[phase.ordinal()] += time;
+	}
+
+	/**
+	 * @return the time in nanoseconds spent in the phase since the last reset
+	 */
+	public long get (Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return the type of the chart last worked on by this thread, may be <code>null</code>
+	 */
+	public String getChartType() {
+		return chartType;
+	}
+
+	public void setChartType (String chartType) {
+		this.chartType = chartType;
+	}
+
+	public void reset() {
+		for (var i = 0; i < nanos.length; i++) {
+			nanos[i] = 0;
+		}
+		chartType = null;
+	}
+}
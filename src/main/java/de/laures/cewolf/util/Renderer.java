@@ -23,20 +23,19 @@
 package de.laures.cewolf.util;
 
 import java.awt.Color;
-import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.batik.dom.GenericDOMImplementation;
-import org.apache.batik.svggen.SVGGeneratorContext;
-import org.apache.batik.svggen.SVGGraphics2D;
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
@@ -44,10 +43,7 @@ import org.jfree.chart.block.RectangleConstraint;
 import org.jfree.chart.entity.StandardEntityCollection;
 import org.jfree.chart.title.LegendTitle;
 import org.jfree.ui.RectangleEdge;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
 
-import javax.imageio.*;
 //import com.sun.image.codec.jpeg.JPEGCodec;
 //import com.sun.image.codec.jpeg.JPEGEncodeParam;
 //import com.sun.image.codec.jpeg.JPEGImageEncoder;
@@ -56,22 +52,18 @@ import de.laures.cewolf.CewolfException;
 import de.laures.cewolf.ChartImage;
 import static de.laures.cewolf.ChartImage.IMG_TYPE_CHART;
 import static de.laures.cewolf.ChartImage.IMG_TYPE_LEGEND;
+import static de.laures.cewolf.ImageEncoder.OPTION_GZIP;
+import static de.laures.cewolf.ImageEncoder.OPTION_QUALITY;
 import de.laures.cewolf.ChartRenderingException;
 import de.laures.cewolf.ConfigurationException;
 import de.laures.cewolf.WebConstants;
+import static de.laures.cewolf.util.ImageEncoders.getEncoder;
 import static de.laures.cewolf.util.RenderingHelper.createImage;
 import static java.awt.Color.white;
-import static javax.imageio.ImageIO.createImageOutputStream;
-import static javax.imageio.ImageIO.getImageWritersBySuffix;
-import static javax.imageio.ImageWriteParam.MODE_EXPLICIT;
-import static org.apache.batik.dom.GenericDOMImplementation.getDOMImplementation;
-import static org.apache.batik.svggen.SVGGeneratorContext.createDefault;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import static org.apache.commons.logging.LogFactory.getLog;
-import static org.jfree.chart.ChartUtilities.writeChartAsJPEG;
-import static org.jfree.chart.ChartUtilities.writeChartAsPNG;
 import static org.jfree.ui.RectangleEdge.BOTTOM;
 
 /**
@@ -96,103 +88,114 @@ public class Renderer implements WebConstants {
 	 * @throws CewolfException
 	 */
 	public static RenderedImage render(ChartImage cd, Object chart) throws CewolfException {
-		switch (cd.getType()) {
-			case IMG_TYPE_CHART :
-				return renderChart(cd, chart);
-			case IMG_TYPE_LEGEND :
-				return renderLegend(cd, chart);
-			default :
-				throw new ConfigurationException(cd.getType() + " is not a supported image type");
+		final var baos = new ByteArrayOutputStream();
+		if (!isGzipped(cd)) {
+			final var info = render(cd, chart, baos);
+			return new RenderedImage(baos.toByteArray(), getMimeType(cd), info);
+		}
+		// compressed once here instead of on every request
+		try {
+			final var gzip = new GZIPOutputStream(baos, 8192);
+			final var info = render(cd, chart, gzip);
+			gzip.finish();
+			return new RenderedImage(baos.toByteArray(), getMimeType(cd), info);
+		} catch (IOException ioex) {
+			log.error("Renderer.render: "+ioex.getMessage());
+			throw new ChartRenderingException(ioex.getMessage(), ioex);
 		}
 	}
 
 	/**
-	 * Renders a chart
-	 * @param cd the chart image to be rendered
-	 * @return the rendered image
-	 * @throws CewolfException
+	 * SVG images are kept gzip compressed if the encoder option <code>gzip</code> is set.
+	 * Images streamed into a response are never compressed.
 	 */
-	private static RenderedImage renderChart(ChartImage cd, Object chart) throws CewolfException {
-		try {
-			final var baos = new ByteArrayOutputStream();
-			final var info = new ChartRenderingInfo(new StandardEntityCollection());
-			final var mimeType = cd.getMimeType();
-			if (null == mimeType) {
-                            throw new RenderingException("Mime type " + mimeType + " is unsupported.");
-                        } else switch (mimeType) {
-                case MIME_PNG:
-                    handlePNG(baos, (JFreeChart)chart, cd.getWidth(), cd.getHeight(), info);
-                    break;
-                case MIME_JPEG:
-                    handleJPEG(baos, (JFreeChart)chart, cd.getWidth(), cd.getHeight(), info);
-                    break;
-                case MIME_SVG:
-                    handleSVG(baos, (JFreeChart)chart, cd.getWidth(), cd.getHeight());
-                    break;
-                default:
-                    throw new RenderingException("Mime type " + mimeType + " is unsupported.");
-            }
-			baos.close();
-			return new RenderedImage(baos.toByteArray(), mimeType, info);
-		} catch (IOException ioex) {
-			log.error("Renderer.renderChart: "+ioex.getMessage());
-			throw new ChartRenderingException(ioex.getMessage(), ioex);
+	private static boolean isGzipped(ChartImage cd) {
+		return MIME_SVG.equals(getMimeType(cd)) && "true".equalsIgnoreCase(cd.getEncoderOptions().get(OPTION_GZIP));
+	}
+
+	/**
+	 * Returns the content encoding of the bytes of an image, telling gzip compressed SVG
+	 * images by the gzip header, which can't start an XML document.
+	 * @param mimeType the MIME type of the image
+	 * @param head the bytes of the image, at least the first two
+	 * @return {@link WebConstants#ENCODING_GZIP} or <code>null</code>
+	 * @see ChartImage#getContentEncoding()
+	 */
+	public static String getContentEncoding(String mimeType, byte[] head) {
+		return MIME_SVG.equals(mimeType) && head != null && head.length >= 2
+				&& head[0] == (byte) 0x1f && head[1] == (byte) 0x8b ? ENCODING_GZIP : null;
+	}
+
+	/**
+	 * Writes the bytes of an image into a stream that is sent without content encoding,
+	 * decompressing them if they are kept gzip compressed. The stream is not closed.
+	 * @param mimeType the MIME type of the image
+	 * @param data the bytes of the image
+	 * @param out the stream to write the image to
+	 * @return the number of bytes written
+	 * @throws IOException if writing to the stream failed
+	 */
+	public static long writeUncompressed(String mimeType, byte[] data, OutputStream out) throws IOException {
+		if (!ENCODING_GZIP.equals(getContentEncoding(mimeType, data))) {
+			out.write(data);
+			return data.length;
+		}
+		try (var in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+			return in.transferTo(out);
 		}
 	}
 
 	/**
-	 * Handles rendering a chart as a PNG.
+	 * Renders a chart image straight into the passed stream without buffering the
+	 * encoded image. The stream is flushed but not closed.
 	 *
-	 * @param  baos
-	 * @param  chart
-	 * @param  width
-	 * @param  height
-	 * @param  info
-	 * @throws IOException
+	 * @param  cd                  the chart to render
+	 * @param  out                 the stream to write the encoded image to
+	 * @return                     the rendering info collected while drawing the chart
+	 * @throws CewolfException
 	 */
-	private static void handlePNG (ByteArrayOutputStream baos, JFreeChart chart,
-			int width, int height, ChartRenderingInfo info)
-		throws IOException {
-			writeChartAsPNG(baos, chart, width, height, info);
+	public static ChartRenderingInfo render(ChartImage cd, Object chart, OutputStream out) throws CewolfException {
+		switch (cd.getType()) {
+			case IMG_TYPE_CHART :
+				return renderChart(cd, chart, out);
+			case IMG_TYPE_LEGEND :
+				return renderLegend(cd, chart, out);
+			default :
+				throw new ConfigurationException(cd.getType() + " is not a supported image type");
+		}
 	}
 
 	/**
-	 * Handles rendering a chart as a JPEG.
-	 *
-	 * @param  baos
-	 * @param  chart
-	 * @param  width
-	 * @param  height
-	 * @param  info
-	 * @throws IOException
+	 * Returns the MIME type the image will actually be rendered in.
+	 * Legends are always rendered as JPEG.
 	 */
-	private static void handleJPEG (ByteArrayOutputStream baos, JFreeChart chart,
-			int width, int height, ChartRenderingInfo info)
-		throws IOException {
-			writeChartAsJPEG(baos, chart, width, height, info);
+	private static String getMimeType(ChartImage cd) {
+		return cd.getType() == IMG_TYPE_LEGEND ? MIME_JPEG : cd.getMimeType();
 	}
 
 	/**
-	 * Handles rendering a chart as a SVG. 
-	 *
-	 * @param  baos
-	 * @param  chart
-	 * @param  width
-	 * @param  height
-	 * @throws IOException
+	 * Renders a chart by the encoder registered for its MIME type.
+	 * @param cd the chart image to be rendered
+	 * @param out the stream to write the encoded image to
+	 * @return the rendering info
+	 * @throws CewolfException
 	 */
-	private static void handleSVG (ByteArrayOutputStream baos, JFreeChart chart, int width, int height)
-		throws IOException {
-        try (var writer = new OutputStreamWriter(baos, "UTF-8")) {
-            var domImpl = getDOMImplementation();
-            var document = domImpl.createDocument("cewolf-svg", "svg", null);
-            var ctx = createDefault(document);
-//		ctx.setComment("Generated by Cewolf using JFreeChart and Apache Batik SVG Generator");
-            var svgGenerator = new SVGGraphics2D(ctx, false);
-            svgGenerator.setSVGCanvasSize(new Dimension(width, height));
-            chart.draw(svgGenerator, new Rectangle2D.Double(0, 0, width, height), null);
-            svgGenerator.stream(writer, false);
-        }
+	private static ChartRenderingInfo renderChart(ChartImage cd, Object chart, OutputStream out) throws CewolfException {
+		try {
+			// without an image map the chart entities are not worth collecting
+			final var info = new ChartRenderingInfo(cd.isMapped() ? new StandardEntityCollection() : null);
+			final var mimeType = cd.getMimeType();
+			final var encoder = getEncoder(mimeType);
+			if (null == encoder) {
+				throw new RenderingException("Mime type " + mimeType + " is unsupported.");
+			}
+			encoder.encode((JFreeChart) chart, cd.getWidth(), cd.getHeight(), info, cd.getEncoderOptions(), out);
+			out.flush();
+			return info;
+		} catch (IOException ioex) {
+			log.error("Renderer.renderChart: "+ioex.getMessage());
+			throw new ChartRenderingException(ioex.getMessage(), ioex);
+		}
 	}
 
   //gets first legend in the list
@@ -233,10 +236,11 @@ public class Renderer implements WebConstants {
 	/**
 	 * Renders a legend
 	 * @param cd the chart iamge to be rendred
-	 * @return the rendered image
+	 * @param out the stream to write the encoded image to
+	 * @return the rendering info
 	 * @throws CewolfException
 	 */
-	private static RenderedImage renderLegend(ChartImage cd, Object c) throws CewolfException {
+	private static ChartRenderingInfo renderLegend(ChartImage cd, Object c, OutputStream out) throws CewolfException {
 		try {
 		    var chart = (JFreeChart) c;
 			final var width = cd.getWidth();
@@ -260,23 +264,12 @@ public class Renderer implements WebConstants {
 			g.fillRect(0, 0, width, height);
 			legend.arrange(g,new RectangleConstraint(width,height));
  			legend.draw(g, new Rectangle(width, height));
-			var out = new ByteArrayOutputStream();
-/*
-			JPEGImageEncoder encoder = JPEGCodec.createJPEGEncoder(out);
-			JPEGEncodeParam param = encoder.getDefaultJPEGEncodeParam(bi);
-			param.setQuality(1.0f, true);
-			encoder.encode(bi, param);
-*/
-			var writer = getImageWritersBySuffix("jpeg").next();
-			writer.setOutput(createImageOutputStream(out)); 
-			var iwp = writer.getDefaultWriteParam();
-			iwp.setCompressionMode(MODE_EXPLICIT); 
-			iwp.setCompressionQuality (1.0f); 
-			writer.write(null, new IIOImage(bi, null, null), iwp); 
-			writer.write(bi); 
-			writer.dispose(); 
-
-			out.close();
+			// legends are always JPEG, by default in best quality
+			var options = new HashMap<>(cd.getEncoderOptions());
+			options.putIfAbsent(OPTION_QUALITY, "1.0");
+			var encoder = getEncoder(MIME_JPEG);
+			(encoder instanceof RasterEncoder ? (RasterEncoder) encoder : new JpegEncoder()).encode(bi, options, out);
+			out.flush();
 
 			// if the chart had no legend, reset it to null in order to give back the
 			// chart in the state we received it.
@@ -284,7 +277,7 @@ public class Renderer implements WebConstants {
 				removeLegend(chart);
 			}
 
-			return new RenderedImage(out.toByteArray(), "image/jpeg", new ChartRenderingInfo(new StandardEntityCollection()));
+			return new ChartRenderingInfo(new StandardEntityCollection());
 		} catch (IOException ioex) {
 			log.error("Renderer.renderLegend: "+ioex.getMessage());
 			throw new ChartRenderingException(ioex.getMessage(), ioex);
@@ -0,0 +1,82 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.awt.Dimension;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.util.Map;
+
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.jfree.chart.ChartRenderingInfo;
+import org.jfree.chart.JFreeChart;
+
+import de.laures.cewolf.ImageEncoder;
+import de.laures.cewolf.WebConstants;
+import static org.apache.batik.dom.GenericDOMImplementation.getDOMImplementation;
+import static org.apache.batik.svggen.SVGGeneratorContext.createDefault;
+
+/**
+ * Writes SVG images by the Batik SVG generator, or with the option <code>generator</code>
+ * set to stream (the default of the "fast" encoding) by {@link SvgGraphics2D}, which
+ * writes the elements while the chart is drawn instead of building a document first.
+ * That takes a fraction of the memory and time for charts of many elements, like
+ * scatter plots. The number of decimal places of the coordinates is set by the option
+ * <code>precision</code> (1 to 12, by default 4 and 2 for the "small" encoding); fewer
+ * places make smaller documents.
+ */
+public class SvgEncoder implements ImageEncoder {
+
+	public String getMimeType() {
+		return WebConstants.MIME_SVG;
+	}
+
+	/**
+	 * The writer is only flushed, so that the underlying stream stays open for the caller.
+	 */
+	public void encode(JFreeChart chart, int width, int height, ChartRenderingInfo info,
+			Map<String,String> options, OutputStream out) throws IOException {
+		var precision = RasterEncoder.intOption(options, OPTION_PRECISION,
+				RasterEncoder.isEncoding(options, "small") ? 2 : 4, 1, 12);
+		// Batik's XML writer writes single characters
+		var writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+		var generator = options.get(OPTION_GENERATOR);
+		if (generator == null ? RasterEncoder.isEncoding(options, "fast") : "stream".equalsIgnoreCase(generator.trim())) {
+			var g2 = new SvgGraphics2D(writer, width, height, precision);
+			chart.draw(g2, new Rectangle2D.Double(0, 0, width, height), info);
+			g2.finish();
+			return;
+		}
+		var document = getDOMImplementation().createDocument("cewolf-svg", "svg", null);
+		var ctx = createDefault(document);
+		ctx.setPrecision(precision);
+		var svgGenerator = new SVGGraphics2D(ctx, false);
+		svgGenerator.setSVGCanvasSize(new Dimension(width, height));
+		chart.draw(svgGenerator, new Rectangle2D.Double(0, 0, width, height), info);
+		svgGenerator.stream(writer, false);
+		writer.flush();
+	}
+}
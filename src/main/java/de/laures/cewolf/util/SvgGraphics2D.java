@@ -0,0 +1,1103 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GradientPaint;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.MultipleGradientPaint;
+import java.awt.Paint;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.AttributedCharacterIterator;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A Graphics2D that writes what is drawn as SVG right away instead of building a
+ * document first, so memory does not grow with the number of elements drawn.
+ * <p>
+ * Each element gets the transform in effect as attribute. Elements drawn one after the
+ * other with the same clip share a group referring to it. Styles are de-duplicated into
+ * CSS classes, written as one style sheet at the end of the document. Lines drawn one
+ * after the other with the same style, transform and clip are merged into one path,
+ * continuing it where a line starts at the end of the one before. Clips and
+ * gradients are defined where first used. Images are embedded as PNG data. XOR mode and
+ * copyArea are not supported.
+ * <p>
+ * Call {@link #finish()} on the graphics the document was started with to complete it.
+ */
+public class SvgGraphics2D extends Graphics2D {
+
+	/**
+	 * The state shared by a graphics and all graphics created from it.
+	 */
+	private static final class Document {
+
+		private final Writer writer;
+		private final long scale;
+		private final int precision;
+		private final StringBuilder buffer = new StringBuilder(256);
+		private final Map<String,String> classes = new LinkedHashMap<>();
+		private final Map<String,String> clips = new HashMap<>();
+		private final Map<String,String> gradients = new HashMap<>();
+		private final Graphics2D scratch;
+		private String openClip;
+		private IOException failure;
+		/** the lines not written yet and the style, transform and clip they are drawn with */
+		private final StringBuilder lines = new StringBuilder();
+		private String linesStyle;
+		private AffineTransform linesTransform;
+		private Shape linesClip;
+		private String linesClipId;
+		private boolean linesJoinable;
+		private double lastX;
+		private double lastY;
+
+		Document (Writer writer, int precision) {
+			this.writer = writer;
+			this.precision = precision;
+			var scale = 1L;
+			for (var i = 0; i < precision; i++) {
+				scale *= 10;
+			}
+			this.scale = scale;
+			// font metrics and the device configuration come from a small image
+			scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+		}
+
+		/**
+		 * Writes and clears the buffer.
+		 */
+		void flush() {
+			if (failure == null) {
+				try {
+					writer.append(buffer);
+				} catch (IOException ex) {
+					failure = ex;
+				}
+			}
+			buffer.setLength(0);
+		}
+	}
+
+	private final Document doc;
+	private final StringBuilder out;
+	private AffineTransform transform = new AffineTransform();
+	private Shape clip;
+	private String clipId;
+	private Paint paint = Color.black;
+	private Color color = Color.black;
+	private Color background = Color.white;
+	private Stroke stroke = new BasicStroke();
+	private Font font = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+	private Composite composite = AlphaComposite.SrcOver;
+	private RenderingHints hints = new RenderingHints(null);
+
+	/**
+	 * Starts a document, writing the opening svg element.
+	 * @param writer the writer to write the document to, it is not closed
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param precision the number of decimal places of coordinates
+	 */
+	public SvgGraphics2D (Writer writer, int width, int height, int precision) {
+		doc = new Document(writer, precision);
+		out = doc.buffer;
+		out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+			.append("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"")
+			.append(" width=\"").append(width).append("\" height=\"").append(height)
+			.append("\" viewBox=\"0 0 ").append(width).append(' ').append(height).append("\">\n");
+		doc.flush();
+	}
+
+	private SvgGraphics2D (SvgGraphics2D g) {
+		doc = g.doc;
+		out = doc.buffer;
+		transform = new AffineTransform(g.transform);
+		clip = g.clip;
+		clipId = g.clipId;
+		paint = g.paint;
+		color = g.color;
+		background = g.background;
+		stroke = g.stroke;
+		font = g.font;
+		composite = g.composite;
+		hints = (RenderingHints) g.hints.clone();
+	}
+
+	/**
+	 * Completes the document: closes the open group, writes the style sheet and the
+	 * closing svg element, and flushes the writer.
+	 * @throws IOException if writing the document failed at any point
+	 */
+	public void finish() throws IOException {
+		writeLines();
+		setGroup(null);
+		if (!doc.classes.isEmpty()) {
+			out.append("<style type=\"text/css\"><![CDATA[\n");
+			for (var entry : doc.classes.entrySet()) {
+				out.append('.').append(entry.getValue()).append('{').append(entry.getKey()).append("}\n");
+			}
+			out.append("]]></style>\n");
+		}
+		out.append("</svg>\n");
+		doc.flush();
+		if (doc.failure != null) {
+			throw doc.failure;
+		}
+		doc.writer.flush();
+		doc.scratch.dispose();
+	}
+
+	// ------------------------------------------------------------------ writing elements
+
+	/**
+	 * Opens the group of the current clip if the elements before had another one.
+	 */
+	private void setGroup(String id) {
+		if (id == null ? doc.openClip == null : id.equals(doc.openClip)) {
+			return;
+		}
+		if (doc.openClip != null) {
+			out.append("</g>\n");
+		}
+		if (id != null) {
+			out.append("<g clip-path=\"url(#").append(id).append(")\">\n");
+		}
+		doc.openClip = id;
+	}
+
+	/**
+	 * Starts an element: defines the clip if used for the first time, switches to its
+	 * group and writes the element name, class and transform.
+	 */
+	private void start(String element, String style) {
+		writeLines();
+		if (clip != null && clipId == null) {
+			var data = pathData(clip, null);
+			clipId = doc.clips.get(data);
+			if (clipId == null) {
+				clipId = "c" + doc.clips.size();
+				doc.clips.put(data, clipId);
+				out.append("<clipPath id=\"").append(clipId).append("\"><path d=\"").append(data)
+					.append("\"/></clipPath>\n");
+			}
+		}
+		setGroup(clipId);
+		out.append('<').append(element);
+		if (!style.isEmpty()) {
+			var className = doc.classes.get(style);
+			if (className == null) {
+				className = "s" + doc.classes.size();
+				doc.classes.put(style, className);
+			}
+			out.append(" class=\"").append(className).append('"');
+		}
+		if (!transform.isIdentity()) {
+			out.append(" transform=\"");
+			if (transform.getType() == AffineTransform.TYPE_TRANSLATION) {
+				out.append("translate(");
+				number(transform.getTranslateX()).append(',');
+				number(transform.getTranslateY()).append(')');
+			} else {
+				out.append("matrix(");
+				number(transform.getScaleX()).append(',');
+				number(transform.getShearY()).append(',');
+				number(transform.getShearX()).append(',');
+				number(transform.getScaleY()).append(',');
+				number(transform.getTranslateX()).append(',');
+				number(transform.getTranslateY()).append(')');
+			}
+			out.append('"');
+		}
+	}
+
+	private void attribute(String name, double value) {
+		out.append(' ').append(name).append("=\"");
+		number(value).append('"');
+	}
+
+	/**
+	 * Appends a number with at most the configured decimal places.
+	 */
+	private StringBuilder number(double value) {
+		return number(out, value);
+	}
+
+	private StringBuilder number(StringBuilder out, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return out.append('0');
+		}
+		var abs = Math.abs(value);
+		if (abs * doc.scale >= 1e17) {
+			return out.append(value);
+		}
+		var scaled = Math.round(abs * doc.scale);
+		if (scaled == 0) {
+			return out.append('0');
+		}
+		if (value < 0) {
+			out.append('-');
+		}
+		out.append(scaled / doc.scale);
+		var fraction = scaled % doc.scale;
+		if (fraction != 0) {
+			out.append('.');
+			var digits = doc.precision;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			var text = Long.toString(fraction);
+			for (var i = text.length(); i < digits; i++) {
+				out.append('0');
+			}
+			out.append(text);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the shape as SVG path data, in the coordinates given by the transform if not <code>null</code>
+	 */
+	private String pathData(Shape shape, AffineTransform at) {
+		var start = out.length();
+		var coords = new double[6];
+		for (var it = shape.getPathIterator(at); !it.isDone(); it.next()) {
+			var type = it.currentSegment(coords);
+			switch (type) {
+				case PathIterator.SEG_MOVETO:
+					out.append('M');
+					break;
+				case PathIterator.SEG_LINETO:
+					out.append('L');
+					break;
+				case PathIterator.SEG_QUADTO:
+					out.append('Q');
+					break;
+				case PathIterator.SEG_CUBICTO:
+					out.append('C');
+					break;
+				default:
+					out.append('Z');
+					continue;
+			}
+			var n = type == PathIterator.SEG_CUBICTO ? 6 : type == PathIterator.SEG_QUADTO ? 4 : 2;
+			for (var i = 0; i < n; i++) {
+				if (i > 0) {
+					out.append(' ');
+				}
+				number(coords[i]);
+			}
+		}
+		var data = out.substring(start);
+		out.setLength(start);
+		return data;
+	}
+
+	private void shape(Shape shape, String style) {
+		if (shape instanceof Rectangle2D) {
+			var r = (Rectangle2D) shape;
+			if (r.getWidth() < 0 || r.getHeight() < 0) {
+				return;
+			}
+			start("rect", style);
+			attribute("x", r.getX());
+			attribute("y", r.getY());
+			attribute("width", r.getWidth());
+			attribute("height", r.getHeight());
+		} else if (shape instanceof Ellipse2D) {
+			var e = (Ellipse2D) shape;
+			if (e.getWidth() < 0 || e.getHeight() < 0) {
+				return;
+			}
+			start("ellipse", style);
+			attribute("cx", e.getCenterX());
+			attribute("cy", e.getCenterY());
+			attribute("rx", e.getWidth() / 2);
+			attribute("ry", e.getHeight() / 2);
+		} else if (shape instanceof Line2D) {
+			var l = (Line2D) shape;
+			start("line", style);
+			attribute("x1", l.getX1());
+			attribute("y1", l.getY1());
+			attribute("x2", l.getX2());
+			attribute("y2", l.getY2());
+		} else {
+			var data = pathData(shape, null);
+			if (data.isEmpty()) {
+				return;
+			}
+			start("path", style);
+			out.append(" d=\"").append(data).append('"');
+			if (shape.getPathIterator(null).getWindingRule() == PathIterator.WIND_EVEN_ODD) {
+				out.append(" fill-rule=\"evenodd\"");
+			}
+		}
+		out.append("/>\n");
+		doc.flush();
+	}
+
+	// ------------------------------------------------------------------ styles
+
+	/**
+	 * @return the CSS value of the paint, defining a gradient if needed
+	 */
+	private void paintValue(Paint p, StringBuilder style, String property) {
+		var alpha = composite instanceof AlphaComposite ? ((AlphaComposite) composite).getAlpha() : 1f;
+		Color c;
+		if (p instanceof GradientPaint) {
+			var gp = (GradientPaint) p;
+			var key = gradientKey(gp);
+			var id = doc.gradients.get(key);
+			if (id == null) {
+				id = "g" + doc.gradients.size();
+				doc.gradients.put(key, id);
+				out.append("<linearGradient id=\"").append(id).append("\" gradientUnits=\"userSpaceOnUse\"");
+				attribute("x1", gp.getPoint1().getX());
+				attribute("y1", gp.getPoint1().getY());
+				attribute("x2", gp.getPoint2().getX());
+				attribute("y2", gp.getPoint2().getY());
+				if (gp.isCyclic()) {
+					out.append(" spreadMethod=\"reflect\"");
+				}
+				out.append('>');
+				stop(0, gp.getColor1());
+				stop(1, gp.getColor2());
+				out.append("</linearGradient>\n");
+				doc.flush();
+			}
+			style.append(property).append(":url(#").append(id).append(')');
+			c = null;
+		} else if (p instanceof Color) {
+			c = (Color) p;
+		} else if (p instanceof MultipleGradientPaint) {
+			c = ((MultipleGradientPaint) p).getColors()[0];
+		} else {
+			c = color;
+		}
+		if (c != null) {
+			style.append(property).append(':');
+			hex(style, c);
+			alpha *= c.getAlpha() / 255f;
+		}
+		if (alpha < 1f) {
+			style.append(';').append(property).append("-opacity:");
+			number(style, alpha);
+		}
+	}
+
+	private static String gradientKey(GradientPaint gp) {
+		return gp.getPoint1() + " " + gp.getPoint2() + " " + gp.getColor1().getRGB() + " "
+			+ gp.getColor2().getRGB() + " " + gp.isCyclic();
+	}
+
+	private void stop(int offset, Color c) {
+		out.append("<stop offset=\"").append(offset).append("\" stop-color=\"");
+		hex(out, c);
+		out.append('"');
+		if (c.getAlpha() < 255) {
+			attribute("stop-opacity", c.getAlpha() / 255.0);
+		}
+		out.append("/>");
+	}
+
+	private static void hex(StringBuilder sb, Color c) {
+		var rgb = c.getRGB() & 0xffffff;
+		sb.append('#');
+		// #rgb if both digits of every component are equal
+		var step = (rgb & 0xf0f0f) * 0x11 == rgb ? 8 : 4;
+		for (var shift = 20; shift >= 0; shift -= step) {
+			sb.append(Character.forDigit((rgb >> shift) & 0xf, 16));
+		}
+	}
+
+	private void rendering(StringBuilder style) {
+		if (RenderingHints.VALUE_ANTIALIAS_OFF.equals(hints.get(RenderingHints.KEY_ANTIALIASING))) {
+			style.append(";shape-rendering:crispEdges");
+		}
+	}
+
+	private String fillStyle() {
+		var style = new StringBuilder();
+		paintValue(paint, style, "fill");
+		rendering(style);
+		return style.toString();
+	}
+
+	/**
+	 * @return the style of outlines, or <code>null</code> if the stroke is not a BasicStroke
+	 */
+	private String strokeStyle() {
+		if (!(stroke instanceof BasicStroke)) {
+			return null;
+		}
+		var bs = (BasicStroke) stroke;
+		var style = new StringBuilder("fill:none;");
+		paintValue(paint, style, "stroke");
+		// a width of 0 is the thinnest line possible
+		style.append(";stroke-width:");
+		number(style, bs.getLineWidth() > 0 ? bs.getLineWidth() : 1);
+		if (bs.getEndCap() == BasicStroke.CAP_ROUND) {
+			style.append(";stroke-linecap:round");
+		} else if (bs.getEndCap() == BasicStroke.CAP_SQUARE) {
+			style.append(";stroke-linecap:square");
+		}
+		if (bs.getLineJoin() == BasicStroke.JOIN_ROUND) {
+			style.append(";stroke-linejoin:round");
+		} else if (bs.getLineJoin() == BasicStroke.JOIN_BEVEL) {
+			style.append(";stroke-linejoin:bevel");
+		} else if (bs.getMiterLimit() != 4f) {
+			style.append(";stroke-miterlimit:");
+			number(style, Math.max(1, bs.getMiterLimit()));
+		}
+		var dash = bs.getDashArray();
+		if (dash != null && dash.length > 0) {
+			style.append(";stroke-dasharray:");
+			for (var i = 0; i < dash.length; i++) {
+				number(style.append(i > 0 ? "," : ""), dash[i]);
+			}
+			if (bs.getDashPhase() != 0) {
+				style.append(";stroke-dashoffset:");
+				number(style, bs.getDashPhase());
+			}
+		}
+		rendering(style);
+		return style.toString();
+	}
+
+	private String textStyle() {
+		var style = new StringBuilder();
+		paintValue(paint, style, "fill");
+		style.append(";font-family:");
+		var family = font.getFamily();
+		if (Font.SANS_SERIF.equals(family) || Font.DIALOG.equals(family)) {
+			style.append("sans-serif");
+		} else if (Font.SERIF.equals(family)) {
+			style.append("serif");
+		} else if (Font.MONOSPACED.equals(family) || Font.DIALOG_INPUT.equals(family)) {
+			style.append("monospace");
+		} else {
+			style.append('\'').append(family.replace("'", "").replace("]]>", "")).append('\'');
+		}
+		style.append(";font-size:");
+		number(style, font.getSize2D()).append("px");
+		if (font.isBold()) {
+			style.append(";font-weight:bold");
+		}
+		if (font.isItalic()) {
+			style.append(";font-style:italic");
+		}
+		return style.toString();
+	}
+
+	// ------------------------------------------------------------------ Graphics2D drawing
+
+	public void draw(Shape s) {
+		var style = strokeStyle();
+		if (style == null) {
+			fill(stroke.createStrokedShape(s));
+		} else if (s instanceof Line2D) {
+			line((Line2D) s, style);
+		} else {
+			shape(s, style);
+		}
+	}
+
+	/**
+	 * Adds the line to the lines not written yet, writing those first if they are drawn
+	 * differently. A line starting at the end of the one before continues its subpath,
+	 * unless the stroke is dashed: dash patterns start anew with every subpath.
+	 * Translucent lines are written one by one, overlapping parts of one path are only
+	 * painted once, so crossing lines would not darken as they do in Java2D.
+	 */
+	private void line(Line2D l, String style) {
+		if (style.contains("stroke-opacity")) {
+			writeLines();
+			shape(l, style);
+			return;
+		}
+		if (doc.linesStyle != null && !(style.equals(doc.linesStyle) && transform.equals(doc.linesTransform)
+				&& clip == doc.linesClip)) {
+			writeLines();
+		}
+		var lines = doc.lines;
+		if (doc.linesStyle == null) {
+			doc.linesStyle = style;
+			doc.linesTransform = new AffineTransform(transform);
+			doc.linesClip = clip;
+			doc.linesClipId = clipId;
+			doc.linesJoinable = !style.contains("stroke-dasharray");
+		}
+		if (!(doc.linesJoinable && lines.length() > 0 && l.getX1() == doc.lastX && l.getY1() == doc.lastY)) {
+			lines.append('M');
+			number(lines, l.getX1()).append(' ');
+			number(lines, l.getY1());
+		}
+		lines.append('L');
+		number(lines, l.getX2()).append(' ');
+		number(lines, l.getY2());
+		doc.lastX = l.getX2();
+		doc.lastY = l.getY2();
+	}
+
+	/**
+	 * Writes the lines not written yet as one path, with the transform and clip they
+	 * were drawn with.
+	 */
+	private void writeLines() {
+		var style = doc.linesStyle;
+		if (style == null) {
+			return;
+		}
+		doc.linesStyle = null;
+		var savedTransform = transform;
+		var savedClip = clip;
+		var savedClipId = clipId;
+		transform = doc.linesTransform;
+		clip = doc.linesClip;
+		clipId = doc.linesClipId;
+		try {
+			start("path", style);
+			out.append(" d=\"").append(doc.lines).append("\"/>\n");
+			doc.flush();
+		} finally {
+			transform = savedTransform;
+			clip = savedClip;
+			clipId = savedClipId;
+			doc.lines.setLength(0);
+			doc.linesTransform = null;
+			doc.linesClip = null;
+			doc.linesClipId = null;
+		}
+	}
+
+	public void fill(Shape s) {
+		if (!(s instanceof Line2D)) {
+			shape(s, fillStyle());
+		}
+	}
+
+	public void drawString(String str, float x, float y) {
+		if (str == null || str.isEmpty()) {
+			return;
+		}
+		start("text", textStyle());
+		attribute("x", x);
+		attribute("y", y);
+		if (str.startsWith(" ") || str.endsWith(" ") || str.contains("  ")) {
+			out.append(" xml:space=\"preserve\"");
+		}
+		out.append('>');
+		for (var i = 0; i < str.length(); i++) {
+			var ch = str.charAt(i);
+			switch (ch) {
+				case '&':
+					out.append("&amp;");
+					break;
+				case '<':
+					out.append("&lt;");
+					break;
+				case '>':
+					out.append("&gt;");
+					break;
+				default:
+					// characters XML does not allow are left out
+					if (ch >= 0x20 || ch == '\t') {
+						out.append(ch);
+					}
+			}
+		}
+		out.append("</text>\n");
+		doc.flush();
+	}
+
+	public void drawString(String str, int x, int y) {
+		drawString(str, (float) x, (float) y);
+	}
+
+	public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+		var sb = new StringBuilder();
+		for (var ch = iterator.first(); ch != AttributedCharacterIterator.DONE; ch = iterator.next()) {
+			sb.append(ch);
+		}
+		drawString(sb.toString(), x, y);
+	}
+
+	public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+		drawString(iterator, (float) x, (float) y);
+	}
+
+	public void drawGlyphVector(GlyphVector g, float x, float y) {
+		fill(g.getOutline(x, y));
+	}
+
+	public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+		var saved = transform;
+		transform = new AffineTransform(transform);
+		if (xform != null) {
+			transform.concatenate(xform);
+		}
+		try {
+			return drawImage(img, 0, 0, obs);
+		} finally {
+			transform = saved;
+		}
+	}
+
+	public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+		drawImage(op == null ? img : op.filter(img, null), x, y, null);
+	}
+
+	public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+		BufferedImage image;
+		if (img instanceof BufferedImage) {
+			image = (BufferedImage) img;
+		} else {
+			var cm = img.getColorModel();
+			var raster = cm.createCompatibleWritableRaster(img.getWidth(), img.getHeight());
+			img.copyData(raster);
+			image = new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+		}
+		drawImage(image, xform, null);
+	}
+
+	public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+		drawRenderedImage(img.createDefaultRendering(), xform);
+	}
+
+	public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+		return drawImage(img, x, y, img.getWidth(observer), img.getHeight(observer), observer);
+	}
+
+	public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+		return drawImage(img, x, y, img.getWidth(observer), img.getHeight(observer), bgcolor, observer);
+	}
+
+	public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+		return drawImage(img, x, y, width, height, null, observer);
+	}
+
+	public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor, ImageObserver observer) {
+		var w = img.getWidth(observer);
+		var h = img.getHeight(observer);
+		if (w <= 0 || h <= 0) {
+			return false;
+		}
+		return drawImage(img, x, y, x + width, y + height, 0, 0, w, h, bgcolor, observer);
+	}
+
+	public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2,
+			int sx1, int sy1, int sx2, int sy2, ImageObserver observer) {
+		return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null, observer);
+	}
+
+	public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2,
+			int sx1, int sy1, int sx2, int sy2, Color bgcolor, ImageObserver observer) {
+		var w = img.getWidth(observer);
+		var h = img.getHeight(observer);
+		if (w <= 0 || h <= 0 || sx2 <= sx1 || sy2 <= sy1) {
+			return false;
+		}
+		// the part of the image drawn, with the background color if any
+		var part = new BufferedImage(sx2 - sx1, sy2 - sy1, BufferedImage.TYPE_INT_ARGB);
+		var g = part.createGraphics();
+		if (bgcolor != null) {
+			g.setColor(bgcolor);
+			g.fillRect(0, 0, part.getWidth(), part.getHeight());
+		}
+		g.drawImage(img, -sx1, -sy1, null);
+		g.dispose();
+		var png = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(part, "png", png);
+		} catch (IOException ex) {
+			return false;
+		}
+		start("image", "");
+		attribute("x", Math.min(dx1, dx2));
+		attribute("y", Math.min(dy1, dy2));
+		attribute("width", Math.abs(dx2 - dx1));
+		attribute("height", Math.abs(dy2 - dy1));
+		out.append(" preserveAspectRatio=\"none\" xlink:href=\"data:image/png;base64,")
+			.append(Base64.getEncoder().encodeToString(png.toByteArray())).append("\"/>\n");
+		doc.flush();
+		return true;
+	}
+
+	public void drawLine(int x1, int y1, int x2, int y2) {
+		draw(new Line2D.Double(x1, y1, x2, y2));
+	}
+
+	public void fillRect(int x, int y, int width, int height) {
+		fill(new Rectangle(x, y, width, height));
+	}
+
+	public void clearRect(int x, int y, int width, int height) {
+		var savedPaint = paint;
+		var savedComposite = composite;
+		paint = background;
+		composite = AlphaComposite.Src;
+		fillRect(x, y, width, height);
+		paint = savedPaint;
+		composite = savedComposite;
+	}
+
+	public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+		draw(new RoundRectangle2D.Double(x, y, width, height, arcWidth, arcHeight));
+	}
+
+	public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+		fill(new RoundRectangle2D.Double(x, y, width, height, arcWidth, arcHeight));
+	}
+
+	public void drawOval(int x, int y, int width, int height) {
+		draw(new Ellipse2D.Double(x, y, width, height));
+	}
+
+	public void fillOval(int x, int y, int width, int height) {
+		fill(new Ellipse2D.Double(x, y, width, height));
+	}
+
+	public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+		draw(new Arc2D.Double(x, y, width, height, startAngle, arcAngle, Arc2D.OPEN));
+	}
+
+	public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+		fill(new Arc2D.Double(x, y, width, height, startAngle, arcAngle, Arc2D.PIE));
+	}
+
+	public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+		if (nPoints > 1) {
+			var path = new Path2D.Double();
+			path.moveTo(xPoints[0], yPoints[0]);
+			for (var i = 1; i < nPoints; i++) {
+				path.lineTo(xPoints[i], yPoints[i]);
+			}
+			draw(path);
+		}
+	}
+
+	public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+		draw(new Polygon(xPoints, yPoints, nPoints));
+	}
+
+	public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+		fill(new Polygon(xPoints, yPoints, nPoints));
+	}
+
+	public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+		// not possible without the pixels
+	}
+
+	public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+		if (onStroke) {
+			s = stroke.createStrokedShape(s);
+		}
+		s = transform.createTransformedShape(s);
+		if (clip != null) {
+			var area = new Area(s);
+			area.intersect(new Area(clip));
+			s = area;
+		}
+		return s.intersects(rect);
+	}
+
+	// ------------------------------------------------------------------ state
+
+	public Graphics create() {
+		return new SvgGraphics2D(this);
+	}
+
+	/**
+	 * Graphics created from this one share its document; it is completed by {@link #finish()}.
+	 */
+	public void dispose() {
+	}
+
+	public GraphicsConfiguration getDeviceConfiguration() {
+		return doc.scratch.getDeviceConfiguration();
+	}
+
+	public void setComposite(Composite comp) {
+		composite = comp;
+	}
+
+	public Composite getComposite() {
+		return composite;
+	}
+
+	public void setPaint(Paint paint) {
+		if (paint != null) {
+			this.paint = paint;
+			if (paint instanceof Color) {
+				color = (Color) paint;
+			}
+		}
+	}
+
+	public Paint getPaint() {
+		return paint;
+	}
+
+	public void setColor(Color c) {
+		if (c != null) {
+			color = c;
+			paint = c;
+		}
+	}
+
+	public Color getColor() {
+		return color;
+	}
+
+	public void setBackground(Color color) {
+		background = color;
+	}
+
+	public Color getBackground() {
+		return background;
+	}
+
+	public void setStroke(Stroke s) {
+		stroke = s;
+	}
+
+	public Stroke getStroke() {
+		return stroke;
+	}
+
+	public void setPaintMode() {
+	}
+
+	public void setXORMode(Color c1) {
+		// not supported, drawing continues in paint mode
+	}
+
+	public Font getFont() {
+		return font;
+	}
+
+	public void setFont(Font font) {
+		if (font != null) {
+			this.font = font;
+		}
+	}
+
+	public FontMetrics getFontMetrics(Font f) {
+		doc.scratch.setRenderingHints(hints);
+		return doc.scratch.getFontMetrics(f);
+	}
+
+	public FontRenderContext getFontRenderContext() {
+		doc.scratch.setRenderingHints(hints);
+		return doc.scratch.getFontRenderContext();
+	}
+
+	public void setRenderingHint(RenderingHints.Key hintKey, Object hintValue) {
+		hints.put(hintKey, hintValue);
+	}
+
+	public Object getRenderingHint(RenderingHints.Key hintKey) {
+		return hints.get(hintKey);
+	}
+
+	public void setRenderingHints(Map<?,?> hints) {
+		this.hints.clear();
+		this.hints.putAll(hints);
+	}
+
+	public void addRenderingHints(Map<?,?> hints) {
+		this.hints.putAll(hints);
+	}
+
+	public RenderingHints getRenderingHints() {
+		return (RenderingHints) hints.clone();
+	}
+
+	public void translate(int x, int y) {
+		transform.translate(x, y);
+	}
+
+	public void translate(double tx, double ty) {
+		transform.translate(tx, ty);
+	}
+
+	public void rotate(double theta) {
+		transform.rotate(theta);
+	}
+
+	public void rotate(double theta, double x, double y) {
+		transform.rotate(theta, x, y);
+	}
+
+	public void scale(double sx, double sy) {
+		transform.scale(sx, sy);
+	}
+
+	public void shear(double shx, double shy) {
+		transform.shear(shx, shy);
+	}
+
+	public void transform(AffineTransform tx) {
+		transform.concatenate(tx);
+	}
+
+	public void setTransform(AffineTransform tx) {
+		transform = new AffineTransform(tx);
+	}
+
+	public AffineTransform getTransform() {
+		return new AffineTransform(transform);
+	}
+
+	// ------------------------------------------------------------------ clip, kept in device space
+
+	/**
+	 * @return the shape in device space
+	 */
+	private Shape toDevice(Shape s) {
+		if (s instanceof Rectangle2D && isRectilinear()) {
+			return transform((Rectangle2D) s, transform);
+		}
+		return transform.createTransformedShape(s);
+	}
+
+	/**
+	 * @return the device space shape in user space
+	 */
+	private Shape toUser(Shape s) {
+		if (s == null) {
+			return null;
+		}
+		try {
+			var inverse = transform.createInverse();
+			if (s instanceof Rectangle2D && isRectilinear()) {
+				return transform((Rectangle2D) s, inverse);
+			}
+			return inverse.createTransformedShape(s);
+		} catch (NoninvertibleTransformException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the transform keeps rectangles rectangles
+	 */
+	private boolean isRectilinear() {
+		return (transform.getType() & (AffineTransform.TYPE_GENERAL_ROTATION
+				| AffineTransform.TYPE_QUADRANT_ROTATION | AffineTransform.TYPE_GENERAL_TRANSFORM)) == 0;
+	}
+
+	private static Rectangle2D transform(Rectangle2D r, AffineTransform at) {
+		var pts = new double[] {r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY()};
+		at.transform(pts, 0, pts, 0, 2);
+		var result = new Rectangle2D.Double();
+		result.setFrameFromDiagonal(pts[0], pts[1], pts[2], pts[3]);
+		return result;
+	}
+
+	private void setDeviceClip(Shape deviceClip) {
+		clip = deviceClip;
+		clipId = null;
+	}
+
+	public void clip(Shape s) {
+		if (s == null) {
+			setClip(null);
+			return;
+		}
+		var device = toDevice(s);
+		if (clip == null) {
+			setDeviceClip(device);
+		} else if (clip instanceof Rectangle2D && device instanceof Rectangle2D) {
+			var r = new Rectangle2D.Double();
+			Rectangle2D.intersect((Rectangle2D) clip, (Rectangle2D) device, r);
+			if (r.getWidth() < 0 || r.getHeight() < 0) {
+				r.setRect(r.getX(), r.getY(), 0, 0);
+			}
+			setDeviceClip(r);
+		} else {
+			var area = new Area(clip);
+			area.intersect(new Area(device));
+			setDeviceClip(area);
+		}
+	}
+
+	public void clipRect(int x, int y, int width, int height) {
+		clip(new Rectangle(x, y, width, height));
+	}
+
+	public void setClip(int x, int y, int width, int height) {
+		setClip(new Rectangle(x, y, width, height));
+	}
+
+	public void setClip(Shape clip) {
+		setDeviceClip(clip == null ? null : toDevice(clip));
+	}
+
+	public Shape getClip() {
+		return toUser(clip);
+	}
+
+	public Rectangle getClipBounds() {
+		var user = getClip();
+		return user == null ? null : user.getBounds();
+	}
+}
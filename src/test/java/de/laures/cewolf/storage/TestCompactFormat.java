@@ -0,0 +1,196 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import static de.laures.cewolf.WebConstants.MIME_JPEG;
+import static de.laures.cewolf.WebConstants.MIME_PNG;
+import static de.laures.cewolf.WebConstants.MIME_SVG;
+
+/**
+ * Round trips of the building blocks of the compact image format, and their behaviour
+ * on corrupt input.
+ */
+public class TestCompactFormat extends TestCase {
+
+	public void testVarIntRoundTrip() throws IOException {
+		int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		for (var value : values) {
+			CompactFormat.writeVarInt(out, value);
+		}
+		var in = input(bytes.toByteArray());
+		for (var value : values) {
+			assertEquals(value, CompactFormat.readVarInt(in));
+		}
+	}
+
+	public void testVarIntSize() throws IOException {
+		assertEquals(1, varIntSize(0));
+		assertEquals(1, varIntSize(127));
+		assertEquals(2, varIntSize(128));
+		assertEquals(2, varIntSize(16383));
+		assertEquals(3, varIntSize(16384));
+		assertEquals(5, varIntSize(-1));
+	}
+
+	public void testMalformedVarInt() throws IOException {
+		var in = input(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0});
+		try {
+			CompactFormat.readVarInt(in);
+			fail("six byte integer accepted");
+		} catch (InvalidObjectException ex) {
+			// expected
+		}
+	}
+
+	public void testMimeTypeRoundTrip() throws IOException {
+		for (var mimeType : new String[] {MIME_PNG, MIME_JPEG, MIME_SVG, "image/gif"}) {
+			var bytes = new ByteArrayOutputStream();
+			CompactFormat.writeMimeType(new DataOutputStream(bytes), mimeType);
+			var read = CompactFormat.readMimeType(input(bytes.toByteArray()));
+			assertEquals(mimeType, read);
+			assertSame(mimeType.intern(), read);
+		}
+	}
+
+	public void testWellKnownMimeTypeIsOneByte() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		CompactFormat.writeMimeType(new DataOutputStream(bytes), MIME_PNG);
+		assertEquals(1, bytes.size());
+	}
+
+	public void testUnknownMimeTypeCode() throws IOException {
+		try {
+			CompactFormat.readMimeType(input(new byte[] {99}));
+			fail("unknown MIME type code accepted");
+		} catch (InvalidObjectException ex) {
+			// expected
+		}
+	}
+
+	public void testBinaryDataIsWrittenRaw() throws IOException {
+		var data = new byte[1000];
+		for (var i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		var written = writeData(MIME_PNG, data);
+		// encoding byte and two byte length
+		assertEquals(data.length + 3, written.length);
+		assertTrue(Arrays.equals(data, CompactFormat.readData(input(written))));
+	}
+
+	public void testTextDataIsDeflated() throws IOException {
+		var svg = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\">");
+		for (var i = 0; i < 200; i++) {
+			svg.append("<path class=\"s1\" d=\"M").append(i).append(" 0L").append(i).append(" 100\"/>");
+		}
+		svg.append("</svg>");
+		var data = svg.toString().getBytes(StandardCharsets.UTF_8);
+		var written = writeData(MIME_SVG, data);
+		assertTrue("SVG of " + data.length + " bytes written as " + written.length, written.length < data.length / 4);
+		assertTrue(Arrays.equals(data, CompactFormat.readData(input(written))));
+	}
+
+	public void testShortTextIsWrittenRaw() throws IOException {
+		var data = "<svg/>".getBytes(StandardCharsets.UTF_8);
+		var written = writeData(MIME_SVG, data);
+		assertEquals(data.length + 2, written.length);
+		assertTrue(Arrays.equals(data, CompactFormat.readData(input(written))));
+	}
+
+	public void testNegativeLengthIsRejected() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeByte(0);
+		CompactFormat.writeVarInt(out, -5);
+		assertRejected(bytes.toByteArray());
+	}
+
+	public void testHugeLengthIsRejected() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeByte(0);
+		CompactFormat.writeVarInt(out, Integer.MAX_VALUE);
+		assertRejected(bytes.toByteArray());
+	}
+
+	public void testCompressedLongerThanDataIsRejected() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeByte(1);
+		CompactFormat.writeVarInt(out, 10);
+		CompactFormat.writeVarInt(out, 1000);
+		assertRejected(bytes.toByteArray());
+	}
+
+	public void testCorruptDeflatedDataIsRejected() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeByte(1);
+		CompactFormat.writeVarInt(out, 100);
+		CompactFormat.writeVarInt(out, 4);
+		out.write(new byte[] {1, 2, 3, 4});
+		assertRejected(bytes.toByteArray());
+	}
+
+	public void testUnknownEncodingIsRejected() throws IOException {
+		assertRejected(new byte[] {7, 1, 0});
+	}
+
+	private static void assertRejected(byte[] bytes) throws IOException {
+		try {
+			CompactFormat.readData(input(bytes));
+			fail("corrupt data accepted");
+		} catch (InvalidObjectException ex) {
+			// expected
+		}
+	}
+
+	private static int varIntSize(int value) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		CompactFormat.writeVarInt(new DataOutputStream(bytes), value);
+		return bytes.size();
+	}
+
+	private static byte[] writeData(String mimeType, byte[] data) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		CompactFormat.writeData(new DataOutputStream(bytes), mimeType, data);
+		return bytes.toByteArray();
+	}
+
+	private static DataInputStream input(byte[] bytes) {
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+}
@@ -0,0 +1,214 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import de.laures.cewolf.CewolfException;
+import de.laures.cewolf.ChartImage;
+import static de.laures.cewolf.WebConstants.MIME_PNG;
+import static de.laures.cewolf.WebConstants.MIME_SVG;
+
+/**
+ * Round trips of the externalized stored images, and the size of their serialized form.
+ */
+public class TestSerializableChartImage extends TestCase {
+
+	/**
+	 * Fixed overhead of a serialized image with a well known MIME type: stream header,
+	 * class descriptor and the compact fields. Raised only if the format grows on purpose.
+	 */
+	private static final int MAX_OVERHEAD = 200;
+
+	private static final long TIMEOUT = 1234567890123L;
+
+	public void testPngRoundTrip() throws Exception {
+		var image = new SerializableChartImage(new Image(640, 480, MIME_PNG, binary(5000), new Date(TIMEOUT)));
+		var copy = (SerializableChartImage) roundTrip(image);
+		assertEquals(640, copy.getWidth());
+		assertEquals(480, copy.getHeight());
+		assertEquals(ChartImage.IMG_TYPE_LEGEND, copy.getType());
+		assertEquals(MIME_PNG, copy.getMimeType());
+		assertEquals(new Date(TIMEOUT), copy.getTimeoutTime());
+		assertTrue(Arrays.equals(image.getBytes(), copy.getBytes()));
+	}
+
+	public void testSvgRoundTrip() throws Exception {
+		var image = new SerializableChartImage(new Image(800, 600, MIME_SVG, svg(), new Date(TIMEOUT)));
+		var copy = (SerializableChartImage) roundTrip(image);
+		assertEquals(MIME_SVG, copy.getMimeType());
+		assertTrue(Arrays.equals(image.getBytes(), copy.getBytes()));
+	}
+
+	public void testRoundTripWithoutTimeout() throws Exception {
+		var copy = (SerializableChartImage) roundTrip(new SerializableChartImage(new Image(10, 10, "image/gif", binary(10), null)));
+		assertNull(copy.getTimeoutTime());
+		assertEquals("image/gif", copy.getMimeType());
+	}
+
+	public void testPngSize() throws Exception {
+		var data = binary(20000);
+		var size = serialize(new SerializableChartImage(new Image(640, 480, MIME_PNG, data, new Date(TIMEOUT)))).length;
+		assertTrue("PNG of " + data.length + " bytes serialized as " + size, size <= data.length + MAX_OVERHEAD);
+	}
+
+	public void testSvgSize() throws Exception {
+		var data = svg();
+		var size = serialize(new SerializableChartImage(new Image(800, 600, MIME_SVG, data, new Date(TIMEOUT)))).length;
+		assertTrue("SVG of " + data.length + " bytes serialized as " + size, size < data.length / 4);
+	}
+
+	public void testUnknownVersionIsRejected() throws Exception {
+		var bytes = serialize(new SerializableChartImage(new Image(10, 10, MIME_PNG, binary(10), new Date(TIMEOUT))));
+		bytes[indexOfVersion(bytes)] = 99;
+		try {
+			deserialize(bytes);
+			fail("unknown version accepted");
+		} catch (InvalidObjectException ex) {
+			// expected
+		}
+	}
+
+	public void testSessionStorageItemRoundTrip() throws Exception {
+		var image = new SerializableChartImage(new Image(640, 480, MIME_PNG, binary(3000), new Date(TIMEOUT)));
+		var item = new SessionStorageItem(image, "key-1", new Date(TIMEOUT));
+		var copy = (SessionStorageItem) roundTrip(item);
+		assertEquals("key-1", copy.getCid());
+		assertEquals(new Date(TIMEOUT), copy.getTimeout());
+		assertTrue(Arrays.equals(image.getBytes(), copy.getChart().getBytes()));
+	}
+
+	public void testSessionStorageItemSize() throws Exception {
+		var data = binary(3000);
+		var image = new SerializableChartImage(new Image(640, 480, MIME_PNG, data, new Date(TIMEOUT)));
+		var size = serialize(new SessionStorageItem(image, "key-1", new Date(TIMEOUT))).length;
+		assertTrue("item with " + data.length + " image bytes serialized as " + size, size <= data.length + 2 * MAX_OVERHEAD);
+	}
+
+	private static int indexOfVersion(byte[] bytes) {
+		// width 10, height 10 and legend type follow the version byte
+		for (var i = 0; i + 3 < bytes.length; i++) {
+			if (bytes[i] == 1 && bytes[i + 1] == 10 && bytes[i + 2] == 10 && bytes[i + 3] == ChartImage.IMG_TYPE_LEGEND) {
+				return i;
+			}
+		}
+		throw new AssertionError("version not found");
+	}
+
+	private static Object roundTrip(Object object) throws IOException, ClassNotFoundException {
+		return deserialize(serialize(object));
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		try (var in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+
+	/**
+	 * Bytes which don't compress, like a PNG.
+	 */
+	private static byte[] binary(int length) {
+		var data = new byte[length];
+		var seed = 42L;
+		for (var i = 0; i < length; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			data[i] = (byte) (seed >>> 56);
+		}
+		return data;
+	}
+
+	private static byte[] svg() {
+		var svg = new StringBuilder("<?xml version=\"1.0\"?><svg xmlns=\"http://www.w3.org/2000/svg\">");
+		for (var i = 0; i < 500; i++) {
+			svg.append("<path class=\"s2\" d=\"M").append(i).append(" 10L").append(i + 1).append(" 20\"/>");
+		}
+		svg.append("</svg>");
+		return svg.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static final class Image implements ChartImage {
+
+		static final long serialVersionUID = 1L;
+
+		private final int width;
+		private final int height;
+		private final String mimeType;
+		private final byte[] data;
+		private final Date timeout;
+
+		Image (int width, int height, String mimeType, byte[] data, Date timeout) {
+			this.width = width;
+			this.height = height;
+			this.mimeType = mimeType;
+			this.data = data;
+			this.timeout = timeout;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getType() {
+			return IMG_TYPE_LEGEND;
+		}
+
+		public byte[] getBytes() throws CewolfException {
+			return data;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public int getSize() {
+			return data.length;
+		}
+
+		public Date getTimeoutTime() {
+			return timeout;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/* ================================================================
+ * Cewolf : Chart enabling Web Objects Framework
+ * ================================================================
+ *
+ * Project Info:  http://cewolf.sourceforge.net
+ * Project Lead:  Guido Laures (guido@laures.de);
+ *
+ * (C) Copyright 2002, by Guido Laures
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+package de.laures.cewolf.util;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import static de.laures.cewolf.ImageEncoder.OPTION_COMPRESSION;
+import static de.laures.cewolf.ImageEncoder.OPTION_FILTER;
+import static de.laures.cewolf.ImageEncoder.OPTION_PALETTE;
+
+/**
+ * Round trips of the PNG encoder through the ImageIO PNG reader, and checks of the parts
+ * it writes by hand: chunks, the zlib stream built from independently deflated stripes
+ * and the packed palette scanlines.
+ */
+public class TestPngEncoder extends TestCase {
+
+	private static final String[] FILTERS = {"none", "sub", "up", "average", "paeth", "adaptive"};
+
+	public void testRoundTripWithEveryFilterAndLevel() throws Exception {
+		// rows of 1800 bytes, so the scanlines are cut into several stripes
+		var image = chart(600, 400, BufferedImage.TYPE_INT_RGB);
+		for (var filter : FILTERS) {
+			for (var level : new int[] {0, 1, 6, 9}) {
+				var png = encode(image, options(OPTION_FILTER, filter, OPTION_COMPRESSION, String.valueOf(level)));
+				var chunks = checkChunks(png);
+				assertEquals(2, colorType(png));
+				assertEquals("filter " + filter + ", level " + level, 0, differences(image, decode(png)));
+				checkZlibStream(chunks.idat);
+			}
+		}
+	}
+
+	public void testSingleStripe() throws Exception {
+		var image = chart(40, 30, BufferedImage.TYPE_INT_RGB);
+		var png = encode(image, options());
+		checkZlibStream(checkChunks(png).idat);
+		assertEquals(0, differences(image, decode(png)));
+	}
+
+	public void testImageWithoutIntRaster() throws Exception {
+		var image = new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+		var g = image.createGraphics();
+		g.drawImage(chart(300, 200, BufferedImage.TYPE_INT_RGB), 0, 0, null);
+		g.dispose();
+		assertEquals(0, differences(image, decode(encode(image, options(OPTION_FILTER, "adaptive")))));
+	}
+
+	public void testCombineAdler() {
+		var data = new byte[100000];
+		for (var i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7 + i / 300);
+		}
+		for (var split : new int[] {0, 1, 5552, 65521, 70000, data.length}) {
+			var whole = new Adler32();
+			whole.update(data);
+			var first = new Adler32();
+			first.update(data, 0, split);
+			var second = new Adler32();
+			second.update(data, split, data.length - split);
+			assertEquals("split at " + split, whole.getValue(),
+					PngEncoder.combineAdler(first.getValue(), second.getValue(), data.length - split));
+		}
+	}
+
+	public void testPaletteDepths() throws Exception {
+		int[][] cases = {{2, 1}, {3, 2}, {4, 2}, {16, 4}, {17, 8}, {256, 8}};
+		for (var c : cases) {
+			// odd widths leave partly filled bytes at the end of packed rows
+			var image = colors(257, 61, c[0]);
+			var png = encode(image, options(OPTION_PALETTE, "auto", OPTION_FILTER, "adaptive"));
+			checkZlibStream(checkChunks(png).idat);
+			assertEquals(3, colorType(png));
+			assertEquals(c[0] + " colors", c[1], png[24]);
+			assertEquals(c[0] + " colors", 0, differences(image, decode(png)));
+		}
+	}
+
+	public void testTooManyColorsForAutoPalette() throws Exception {
+		var image = colors(100, 100, 257);
+		var png = encode(image, options(OPTION_PALETTE, "auto"));
+		assertEquals(2, colorType(png));
+		assertEquals(0, differences(image, decode(png)));
+	}
+
+	public void testReducedPalette() throws Exception {
+		var image = chart(400, 300, BufferedImage.TYPE_INT_RGB);
+		var png = encode(image, options(OPTION_PALETTE, "16"));
+		assertEquals(3, colorType(png));
+		assertEquals(4, png[24]);
+		var decoded = decode(png);
+		var colors = new java.util.HashSet<Integer>();
+		for (var y = 0; y < decoded.getHeight(); y++) {
+			for (var x = 0; x < decoded.getWidth(); x++) {
+				colors.add(decoded.getRGB(x, y));
+			}
+		}
+		assertTrue(colors.size() + " colors", colors.size() <= 16);
+		// the background, the most frequent color, is kept exactly
+		assertEquals(image.getRGB(0, 0), decoded.getRGB(0, 0));
+	}
+
+	public void testTransparency() throws Exception {
+		var image = chart(300, 200, BufferedImage.TYPE_INT_ARGB);
+		var g = image.createGraphics();
+		g.setComposite(java.awt.AlphaComposite.Clear);
+		g.fillRect(0, 0, 50, 50);
+		g.dispose();
+		var png = encode(image, options(OPTION_FILTER, "paeth"));
+		assertEquals(6, colorType(png));
+		var decoded = decode(png);
+		assertEquals(0, decoded.getRGB(0, 0) >>> 24);
+		assertEquals(0, differences(image, decoded));
+	}
+
+	public void testTransparentPalette() throws Exception {
+		var image = new BufferedImage(33, 9, BufferedImage.TYPE_INT_ARGB);
+		int[] argb = {0x00000000, 0xffff0000, 0x8000ff00, 0xff0000ff};
+		for (var y = 0; y < image.getHeight(); y++) {
+			for (var x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, argb[(x + y) % argb.length]);
+			}
+		}
+		var png = encode(image, options(OPTION_PALETTE, "auto"));
+		assertEquals(3, colorType(png));
+		assertNotNull(checkChunks(png).trns);
+		assertEquals(0, differences(image, decode(png)));
+	}
+
+	public void testOpaqueArgbIsWrittenAsRgb() throws Exception {
+		var image = chart(100, 80, BufferedImage.TYPE_INT_ARGB);
+		var png = encode(image, options());
+		assertEquals(2, colorType(png));
+		assertNull(checkChunks(png).trns);
+		assertEquals(0, differences(image, decode(png)));
+	}
+
+	/**
+	 * The chunks of an image, with the concatenated image data.
+	 */
+	private static final class Chunks {
+		byte[] idat;
+		byte[] trns;
+	}
+
+	/**
+	 * Checks the signature, the order and the checksums of the chunks.
+	 */
+	private static Chunks checkChunks(byte[] png) throws IOException {
+		var in = new DataInputStream(new ByteArrayInputStream(png));
+		var signature = new byte[8];
+		in.readFully(signature);
+		assertTrue(Arrays.equals(new byte[] {(byte) 137, 80, 78, 71, 13, 10, 26, 10}, signature));
+		var chunks = new Chunks();
+		var idat = new ByteArrayOutputStream();
+		String type = null;
+		for (var first = true; !"IEND".equals(type); first = false) {
+			var length = in.readInt();
+			var typeBytes = new byte[4];
+			in.readFully(typeBytes);
+			type = new String(typeBytes, StandardCharsets.US_ASCII);
+			var data = new byte[length];
+			in.readFully(data);
+			var crc = new CRC32();
+			crc.update(typeBytes);
+			crc.update(data);
+			assertEquals(type + " checksum", (int) crc.getValue(), in.readInt());
+			assertEquals(first, "IHDR".equals(type));
+			if ("IDAT".equals(type)) {
+				idat.write(data);
+			} else if ("tRNS".equals(type)) {
+				chunks.trns = data;
+			}
+		}
+		assertEquals("data after IEND", -1, in.read());
+		chunks.idat = idat.toByteArray();
+		return chunks;
+	}
+
+	/**
+	 * Checks the zlib header and inflates the stream, which verifies the Adler-32 trailer.
+	 */
+	private static void checkZlibStream(byte[] zlib) throws Exception {
+		assertEquals(0x78, zlib[0] & 0xff);
+		assertEquals(0, ((zlib[0] & 0xff) << 8 | (zlib[1] & 0xff)) % 31);
+		assertEquals("preset dictionary flag", 0, zlib[1] & 0x20);
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(zlib);
+			var buffer = new byte[65536];
+			while (!inflater.finished()) {
+				var n = inflater.inflate(buffer);
+				assertFalse("stream is truncated", n == 0 && (inflater.needsInput() || inflater.needsDictionary()));
+			}
+			assertEquals("data after the zlib stream", 0, inflater.getRemaining());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static int colorType(byte[] png) {
+		return png[25];
+	}
+
+	private static byte[] encode(BufferedImage image, Map<String,String> options) throws IOException {
+		var out = new ByteArrayOutputStream();
+		new PngEncoder().encode(image, options, out);
+		return out.toByteArray();
+	}
+
+	private static BufferedImage decode(byte[] png) throws IOException {
+		var image = ImageIO.read(new ByteArrayInputStream(png));
+		assertNotNull("not readable", image);
+		return image;
+	}
+
+	private static int differences(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		var alpha = expected.getColorModel().hasAlpha();
+		var differences = 0;
+		for (var y = 0; y < expected.getHeight(); y++) {
+			for (var x = 0; x < expected.getWidth(); x++) {
+				var e = expected.getRGB(x, y);
+				var a = actual.getRGB(x, y);
+				if (!alpha) {
+					e |= 0xff000000;
+				}
+				if (e != a) {
+					differences++;
+				}
+			}
+		}
+		return differences;
+	}
+
+	private static Map<String,String> options(String... nameValues) {
+		var options = new HashMap<String,String>();
+		for (var i = 0; i < nameValues.length; i += 2) {
+			options.put(nameValues[i], nameValues[i + 1]);
+		}
+		return options;
+	}
+
+	/**
+	 * An image like a chart: a plain background, a gradient and anti-aliased lines.
+	 */
+	private static BufferedImage chart(int width, int height, int type) {
+		var image = new BufferedImage(width, height, type);
+		var g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.setPaint(new GradientPaint(0, 0, new Color(230, 230, 250), width, height, new Color(120, 140, 200)));
+		g.fillRect(width / 8, height / 8, width * 3 / 4, height * 3 / 4);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setStroke(new BasicStroke(2f));
+		for (var i = 0; i < 12; i++) {
+			g.setColor(new Color(40 * i % 256, 90 * i % 256, 150 + 8 * i));
+			g.drawLine(i * width / 12, height - 1, (i + 1) * width / 12, height / (i + 2));
+		}
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * An image of exactly the given number of colors.
+	 */
+	private static BufferedImage colors(int width, int height, int count) {
+		var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (var y = 0; y < height; y++) {
+			for (var x = 0; x < width; x++) {
+				var i = (x / 3 + y * 7) % count;
+				image.setRGB(x, y, i * 0x010307 & 0xffffff);
+			}
+		}
+		return image;
+	}
+}